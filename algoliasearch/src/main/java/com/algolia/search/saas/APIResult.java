@@ -25,15 +25,16 @@ package com.algolia.search.saas;
 
 import android.support.annotation.NonNull;
 
-import org.json.JSONObject;
-
 /**
- * Encapsulates the two possible outcomes of an API request: either a JSON object (success), or an error (failure).
+ * Encapsulates the two possible outcomes of an API request: either some content, usually a JSON object (success), or
+ * an error (failure).
  * One and only one is guaranteed to be non-null.
+ *
+ * @param <T> Type of the content.
  */
-class APIResult {
+class APIResult<T> {
     /** The content returned (in case of success). */
-    public final JSONObject content;
+    public final T content;
 
     /** The error encountered (in case of failure). */
     public final AlgoliaException error;
@@ -43,7 +44,7 @@ class APIResult {
      *
      * @param content The content returned.
      */
-    public APIResult(@NonNull JSONObject content) {
+    public APIResult(@NonNull T content) {
         this.content = content;
         this.error = null;
     }
@@ -36,25 +36,33 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An abstract API client.
@@ -92,13 +100,147 @@ public abstract class AbstractClient {
         }
     }
 
+    /**
+     * Statistics about a host, used to select the best host for each request.
+     * <p>
+     * Instances are shared by all threads performing requests. To avoid contention, they are lock-free: every field
+     * is updated atomically, and updates never allocate. Two fields may be momentarily inconsistent with each other
+     * (e.g. the up flag and the last try timestamp), which only affects the choice of host for a concurrent request.
+     * </p>
+     */
     private static class HostStatus {
-        boolean isUp = true;
-        long lastTryTimestamp;
+        volatile boolean isUp = true;
+        volatile long lastTryTimestamp;
+
+        /**
+         * Decaying average (high 32 bits) and variance (low 32 bits) of the latency (ms), as raw float bits.
+         * Both are packed into a single word so that they can be updated together atomically.
+         * The average is NaN until a first response is received.
+         */
+        final AtomicLong latencyStats = new AtomicLong(packLatencyStats(Float.NaN, 0));
+        /** Time when the latency was last measured. */
+        volatile long lastLatencyTimestamp;
+        /** Decaying average of the error rate (0..1), as raw double bits. */
+        final AtomicLong errorRate = new AtomicLong(Double.doubleToRawLongBits(0));
+        final AtomicLong requestCount = new AtomicLong();
+        final AtomicLong errorCount = new AtomicLong();
+
+        /**
+         * Record a response from this host.
+         *
+         * @param latency Time until the response was received (ms).
+         * @param isError Whether the response is a server error.
+         */
+        void recordResponse(double latency, boolean isError) {
+            this.lastTryTimestamp = System.currentTimeMillis();
+            this.isUp = true;
+            recordLatency(latency);
+            recordOutcome(isError);
+        }
+
+        /**
+         * Record an attempt on this host that was cancelled before completion (because another host answered first).
+         * The host is not at fault, but it was at least this slow.
+         *
+         * @param elapsed Time elapsed until the cancellation (ms).
+         */
+        void recordCancellation(double elapsed) {
+            requestCount.incrementAndGet();
+            recordLatency(elapsed);
+        }
+
+        private void recordLatency(double latency) {
+            long oldStats;
+            long newStats;
+            do {
+                oldStats = latencyStats.get();
+                final double mean = unpackLatencyMean(oldStats);
+                if (Double.isNaN(mean)) {
+                    // NOTE: A single sample says nothing about the variance; assume a coefficient of variation.
+                    final double deviation = latency * INITIAL_LATENCY_VARIATION;
+                    newStats = packLatencyStats((float) latency, (float) (deviation * deviation));
+                } else {
+                    // Exponentially weighted moving variance.
+                    final double diff = latency - mean;
+                    final double increment = LATENCY_SMOOTHING * diff;
+                    final double variance = (1 - LATENCY_SMOOTHING) * (unpackLatencyVariance(oldStats) + diff * increment);
+                    newStats = packLatencyStats((float) (mean + increment), (float) variance);
+                }
+            } while (!latencyStats.compareAndSet(oldStats, newStats));
+            this.lastLatencyTimestamp = System.currentTimeMillis();
+        }
 
-        HostStatus(boolean isUp) {
-            this.isUp = isUp;
-            lastTryTimestamp = new Date().getTime();
+        /**
+         * Record a network failure on this host.
+         */
+        void recordFailure() {
+            this.lastTryTimestamp = System.currentTimeMillis();
+            this.isUp = false;
+            recordOutcome(true);
+        }
+
+        private void recordOutcome(boolean isError) {
+            requestCount.incrementAndGet();
+            if (isError) {
+                errorCount.incrementAndGet();
+            }
+            long oldBits;
+            double newValue;
+            do {
+                oldBits = errorRate.get();
+                final double oldValue = Double.longBitsToDouble(oldBits);
+                newValue = oldValue + ERROR_RATE_SMOOTHING * ((isError ? 1 : 0) - oldValue);
+            } while (!errorRate.compareAndSet(oldBits, Double.doubleToRawLongBits(newValue)));
+        }
+
+        double getLatency() {
+            return unpackLatencyMean(latencyStats.get());
+        }
+
+        double getLatencyStandardDeviation() {
+            return Math.sqrt(unpackLatencyVariance(latencyStats.get()));
+        }
+
+        /**
+         * Estimate a percentile of this host's latency, assuming a normal distribution.
+         *
+         * @param percentile The percentile to estimate, in ]0, 100[.
+         * @return The estimated latency (ms), or NaN if unknown.
+         */
+        double getLatencyPercentile(double percentile) {
+            final long stats = latencyStats.get();
+            return unpackLatencyMean(stats) + normalQuantile(percentile / 100) * Math.sqrt(unpackLatencyVariance(stats));
+        }
+
+        private static long packLatencyStats(float mean, float variance) {
+            return ((long) Float.floatToRawIntBits(mean) << 32) | (Float.floatToRawIntBits(variance) & 0xFFFFFFFFL);
+        }
+
+        private static double unpackLatencyMean(long stats) {
+            return Float.intBitsToFloat((int) (stats >>> 32));
+        }
+
+        private static double unpackLatencyVariance(long stats) {
+            return Float.intBitsToFloat((int) stats);
+        }
+
+        double getErrorRate() {
+            return Double.longBitsToDouble(errorRate.get());
+        }
+
+        /**
+         * Compute the expected latency of a request to this host, taking errors into account.
+         *
+         * @param now           Current time (ms since the epoch).
+         * @param probeInterval Maximum age of a latency measurement (ms).
+         * @return The expected latency (ms), or 0 if it is unknown or outdated, so that the host gets probed.
+         */
+        double expectedLatency(long now, int probeInterval) {
+            final double latency = getLatency();
+            if (Double.isNaN(latency) || now - lastLatencyTimestamp >= probeInterval) {
+                return 0;
+            }
+            return latency / Math.max(1 - getErrorRate(), MIN_SUCCESS_RATE);
         }
     }
 
@@ -112,6 +254,27 @@ public abstract class AbstractClient {
     /** Maximum size for an API key to be sent in the HTTP headers. Bigger keys will go inside the body. */
     private final static int MAX_API_KEY_LENGTH = 500;
 
+    /** Request compression threshold disabling the compression of request bodies. */
+    public final static int REQUEST_COMPRESSION_DISABLED = -1;
+
+    /** Weight of a new measurement in a host's latency average. */
+    private final static double LATENCY_SMOOTHING = 0.3;
+
+    /** Weight of a new outcome in a host's error rate average. */
+    private final static double ERROR_RATE_SMOOTHING = 0.2;
+
+    /** Lower bound on the success rate when penalizing a host's latency with its error rate. */
+    private final static double MIN_SUCCESS_RATE = 0.1;
+
+    /** Assumed ratio of a host's latency standard deviation to its average, until measured. */
+    private final static double INITIAL_LATENCY_VARIATION = 0.5;
+
+    /** Hedging delay used for hosts whose latency is not known yet (ms). */
+    private final static int DEFAULT_HEDGING_DELAY = 1000;
+
+    /** Lower bound for the hedging delay (ms), to avoid doubling the load on noise. */
+    private final static int MIN_HEDGING_DELAY = 50;
+
     // ----------------------------------------------------------------------
     // Fields
     // ----------------------------------------------------------------------
@@ -137,19 +300,48 @@ public abstract class AbstractClient {
     /** Delay to wait when a host is down before retrying it (ms). */
     private int hostDownDelay = 5000;
 
+    /** Maximum age of a host's latency measurement before the host is probed again (ms). */
+    private int hostProbeInterval = 60000;
+
+    /** Whether read requests are hedged across hosts. */
+    private boolean hedgingEnabled = false;
+
+    /** Percentile of a host's latency after which a read request is hedged on the next host. */
+    private double hedgingPercentile = 95;
+
+    /** Minimum size of a request body to compress it (bytes), or {@link #REQUEST_COMPRESSION_DISABLED}. */
+    private int requestCompressionThreshold = REQUEST_COMPRESSION_DISABLED;
+
+    /** Executor running hedged attempts. Threads are only created when hedging is used. */
+    private final ExecutorService hedgingExecutorService = Executors.newCachedThreadPool();
+
     private final String applicationID;
     private final String apiKey;
     private List<String> readHosts;
     private List<String> writeHosts;
-    private HashMap<String, HostStatus> hostStatuses = new HashMap<>();
+    /**
+     * Status of each host, by host name.
+     * NOTE: Hosts are identified by name rather than position, because the same host may appear in both the read and
+     * write lists.
+     */
+    private final ConcurrentHashMap<String, HostStatus> hostStatuses = new ConcurrentHashMap<>();
+
+    /** Transport used to perform HTTP exchanges. */
+    private @NonNull Transport transport = new HttpURLConnectionTransport();
 
     /**
      * HTTP headers that will be sent with every request.
      */
     private HashMap<String, String> headers = new HashMap<String, String>();
 
-    /** Thread pool used to run asynchronous requests. */
-    protected ExecutorService searchExecutorService = Executors.newFixedThreadPool(4);
+    /**
+     * Thread pool used to run asynchronous requests.
+     * NOTE: Concurrency is limited per priority by the request scheduler, which feeds this pool.
+     */
+    protected ExecutorService searchExecutorService = Executors.newCachedThreadPool();
+
+    /** Schedules asynchronous requests by priority. */
+    final RequestScheduler requestScheduler = new RequestScheduler(this);
 
     /** Executor used to run completion handlers. By default, runs on the main thread. */
     protected @NonNull
@@ -190,6 +382,15 @@ public abstract class AbstractClient {
         return applicationID;
     }
 
+    /**
+     * Get the API key used by this client.
+     *
+     * @return The API key, if any.
+     */
+    @Nullable String getApiKey() {
+        return apiKey;
+    }
+
     /**
      * Set an HTTP header that will be sent with every request.
      *
@@ -245,6 +446,25 @@ public abstract class AbstractClient {
         setWriteHosts(hosts);
     }
 
+    /**
+     * Get the transport used to perform HTTP exchanges.
+     *
+     * @return The transport.
+     */
+    public @NonNull Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Change the transport used to perform HTTP exchanges.
+     * By default, a {@link HttpURLConnectionTransport} is used.
+     *
+     * @param transport The new transport to use.
+     */
+    public void setTransport(@NonNull Transport transport) {
+        this.transport = transport;
+    }
+
     /**
      * Get the connection timeout.
      *
@@ -321,6 +541,129 @@ public abstract class AbstractClient {
         this.hostDownDelay = hostDownDelay;
     }
 
+    /**
+     * Get the interval at which hosts are probed again.
+     *
+     * @return The maximum age of a host's latency measurement (ms).
+     */
+    public int getHostProbeInterval() {
+        return hostProbeInterval;
+    }
+
+    /**
+     * Set the interval at which hosts are probed again.
+     * <p>
+     * Hosts are tried by increasing expected latency. When a host's latency has not been measured for this long, it
+     * is tried first on the next request, so that a host which has become faster (or has recovered) can be picked
+     * again.
+     * </p>
+     *
+     * @param hostProbeInterval The maximum age of a host's latency measurement (ms).
+     */
+    public void setHostProbeInterval(int hostProbeInterval) {
+        checkTimeout(hostProbeInterval);
+        this.hostProbeInterval = hostProbeInterval;
+    }
+
+    /**
+     * Test whether read requests are hedged.
+     *
+     * @return true if hedging is enabled, false otherwise.
+     */
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+    /**
+     * Enable or disable hedging of read requests (disabled by default).
+     * <p>
+     * When hedging is enabled, if a host has not answered a read request within the hedging percentile of its
+     * latency (see {@link #setHedgingPercentile(double)}), the same request is sent to the next host in parallel.
+     * Whichever answers first wins, and the other request is cancelled. This reduces tail latency on unreliable
+     * networks without changing timeouts, at the cost of a slightly higher number of requests.
+     * </p>
+     * <p>
+     * Write requests are never hedged.
+     * </p>
+     *
+     * @param hedgingEnabled true to enable hedging, false to disable it.
+     */
+    public void setHedgingEnabled(boolean hedgingEnabled) {
+        this.hedgingEnabled = hedgingEnabled;
+    }
+
+    /**
+     * Get the latency percentile after which read requests are hedged.
+     *
+     * @return The hedging percentile, in ]0, 100[.
+     */
+    public double getHedgingPercentile() {
+        return hedgingPercentile;
+    }
+
+    /**
+     * Set the latency percentile after which read requests are hedged.
+     * For example, with a percentile of 95 (the default), roughly 5% of the requests to a healthy host are hedged.
+     *
+     * @param hedgingPercentile The hedging percentile, in ]0, 100[.
+     */
+    public void setHedgingPercentile(double hedgingPercentile) {
+        if (!(hedgingPercentile > 0 && hedgingPercentile < 100)) {
+            throw new IllegalArgumentException("Percentile must be in ]0, 100[");
+        }
+        this.hedgingPercentile = hedgingPercentile;
+    }
+
+    /**
+     * Get the minimum size of a request body to compress it.
+     *
+     * @return The threshold (bytes), or {@link #REQUEST_COMPRESSION_DISABLED}.
+     */
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * Enable or disable the compression of request bodies (disabled by default).
+     * <p>
+     * When enabled, request bodies at least as big as the threshold are compressed with gzip. This saves bandwidth
+     * when sending large payloads (like batches of objects) over slow networks, at the cost of some CPU. Batches,
+     * whose size is not known in advance, are always compressed when compression is enabled.
+     * </p>
+     * <p>
+     * This can be overridden for a given request with {@link RequestOptions#setRequestCompressionThreshold(Integer)}.
+     * </p>
+     *
+     * @param requestCompressionThreshold The threshold (bytes), or {@link #REQUEST_COMPRESSION_DISABLED}.
+     */
+    public void setRequestCompressionThreshold(int requestCompressionThreshold) {
+        if (requestCompressionThreshold < 0 && requestCompressionThreshold != REQUEST_COMPRESSION_DISABLED) {
+            throw new IllegalArgumentException("Threshold cannot be negative");
+        }
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    /**
+     * Get the statistics gathered about this client's hosts.
+     * Read hosts come first, followed by write hosts that are not also read hosts.
+     *
+     * @return A snapshot of the statistics of each host.
+     */
+    public @NonNull List<HostStatistics> getHostStatistics() {
+        final Set<String> hosts = new LinkedHashSet<>(readHosts);
+        hosts.addAll(writeHosts);
+        final List<HostStatistics> statistics = new ArrayList<>(hosts.size());
+        for (String host : hosts) {
+            final HostStatus status = hostStatuses.get(host);
+            if (status == null) {
+                statistics.add(new HostStatistics(host, true, Double.NaN, Double.NaN, 0, 0, 0, 0));
+            } else {
+                statistics.add(new HostStatistics(host, status.isUp, status.getLatency(), status.getLatencyStandardDeviation(), status.getErrorRate(), status.requestCount.get(), status.errorCount.get(), status.lastTryTimestamp));
+            }
+        }
+        return statistics;
+    }
+
     /**
      * Add a software library to the list of user agents.
      *
@@ -394,6 +737,30 @@ public abstract class AbstractClient {
         this.completionExecutor = completionExecutor;
     }
 
+    /**
+     * Get the maximum number of asynchronous requests of a given priority that may run at the same time.
+     *
+     * @param priority The requests' priority.
+     * @return The maximum number of concurrent requests.
+     */
+    public int getMaxConcurrentRequests(@NonNull RequestPriority priority) {
+        return requestScheduler.getMaxConcurrency(priority);
+    }
+
+    /**
+     * Set the maximum number of asynchronous requests of a given priority that may run at the same time.
+     * Further requests are queued until a running one completes.
+     *
+     * @param priority       The requests' priority.
+     * @param maxConcurrency The maximum number of concurrent requests. Must be strictly positive.
+     */
+    public void setMaxConcurrentRequests(@NonNull RequestPriority priority, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Max concurrency must be strictly positive");
+        }
+        requestScheduler.setMaxConcurrency(priority, maxConcurrency);
+    }
+
     // ----------------------------------------------------------------------
     // Utilities
     // ----------------------------------------------------------------------
@@ -406,47 +773,54 @@ public abstract class AbstractClient {
     }
 
     protected byte[] getRequestRaw(@NonNull String url, @Nullable Map<String, String> urlParameters, boolean search, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _requestRaw(Method.GET, url, urlParameters, /* json: */ null, getReadHostsThatAreUp(), connectTimeout, search ? searchTimeout : readTimeout, requestOptions);
+        return _requestRaw(Method.GET, url, urlParameters, /* body: */ null, getReadHostsThatAreUp(), /* readOperation: */ true, connectTimeout, search ? searchTimeout : readTimeout, requestOptions);
     }
 
     protected JSONObject getRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, boolean search, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.GET, url, urlParameters, /* json: */ null, getReadHostsThatAreUp(), connectTimeout, search ? searchTimeout : readTimeout, requestOptions);
+        return _request(Method.GET, url, urlParameters, /* body: */ null, getReadHostsThatAreUp(), /* readOperation: */ true, connectTimeout, search ? searchTimeout : readTimeout, requestOptions);
     }
 
     protected JSONObject deleteRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.DELETE, url, urlParameters, /* json: */ null, getWriteHostsThatAreUp(), connectTimeout, readTimeout, requestOptions);
+        return _request(Method.DELETE, url, urlParameters, /* body: */ null, getWriteHostsThatAreUp(), /* readOperation: */ false, connectTimeout, readTimeout, requestOptions);
     }
 
     protected JSONObject postRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String obj, boolean readOperation, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.POST, url, urlParameters, obj, (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions);
+        return _request(Method.POST, url, urlParameters, RequestBody.of(obj), (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), readOperation, connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions);
+    }
+
+    <T> T getRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, boolean search, @Nullable RequestOptions requestOptions, @NonNull ResponseDecoder<T> decoder) throws AlgoliaException {
+        return _request(Method.GET, url, urlParameters, /* body: */ null, getReadHostsThatAreUp(), /* readOperation: */ true, connectTimeout, search ? searchTimeout : readTimeout, requestOptions, decoder);
+    }
+
+    <T> T postRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String obj, boolean readOperation, @Nullable RequestOptions requestOptions, @NonNull ResponseDecoder<T> decoder) throws AlgoliaException {
+        return _request(Method.POST, url, urlParameters, RequestBody.of(obj), (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), readOperation, connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions, decoder);
     }
 
     protected byte[] postRequestRaw(@NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String obj, boolean readOperation, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _requestRaw(Method.POST, url, urlParameters, obj, (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions);
+        return _requestRaw(Method.POST, url, urlParameters, RequestBody.of(obj), (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), readOperation, connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions);
+    }
+
+    JSONObject postRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @NonNull RequestBody body, boolean readOperation, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return _request(Method.POST, url, urlParameters, body, (readOperation ? getReadHostsThatAreUp() : getWriteHostsThatAreUp()), readOperation, connectTimeout, (readOperation ? searchTimeout : readTimeout), requestOptions);
     }
 
     protected JSONObject putRequest(@NonNull String url, @Nullable Map<String, String> urlParameters, @NonNull String obj, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        return _request(Method.PUT, url, urlParameters, obj, getWriteHostsThatAreUp(), connectTimeout, readTimeout, requestOptions);
+        return _request(Method.PUT, url, urlParameters, RequestBody.of(obj), getWriteHostsThatAreUp(), /* readOperation: */ false, connectTimeout, readTimeout, requestOptions);
     }
 
     /**
-     * Reads the InputStream as UTF-8
+     * Reads the InputStream into a byte array, failing with a (non retryable) error if it can't be read
      *
      * @param stream the InputStream to read
-     * @return the stream's content as a String
-     * @throws IOException if the stream can't be read, decoded as UTF-8 or closed
+     * @return the stream's content as a byte[]
+     * @throws AlgoliaException if the stream can't be read
      */
-    private static String _toCharArray(InputStream stream) throws IOException {
-        InputStreamReader is = new InputStreamReader(stream, "UTF-8");
-        StringBuilder builder = new StringBuilder();
-        char[] buf = new char[1000];
-        int l = 0;
-        while (l >= 0) {
-            builder.append(buf, 0, l);
-            l = is.read(buf);
+    private static byte[] _readFully(InputStream stream) throws AlgoliaException {
+        try {
+            return _toByteArray(stream);
+        } catch (IOException e) {
+            throw new AlgoliaException("Error while reading stream: " + e.getMessage());
         }
-        is.close();
-        return builder.toString();
     }
 
     /**
@@ -454,23 +828,16 @@ public abstract class AbstractClient {
      *
      * @param stream the InputStream to read
      * @return the stream's content as a byte[]
-     * @throws AlgoliaException if the stream can't be read or flushed
+     * @throws IOException if the stream can't be read
      */
-    private static byte[] _toByteArray(InputStream stream) throws AlgoliaException {
+    private static byte[] _toByteArray(InputStream stream) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         int read;
         byte[] buffer = new byte[1024];
-
-        try {
-            while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
-                out.write(buffer, 0, read);
-            }
-
-            out.flush();
-            return out.toByteArray();
-        } catch (IOException e) {
-            throw new AlgoliaException("Error while reading stream: " + e.getMessage());
+        while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
         }
+        return out.toByteArray();
     }
 
 
@@ -479,34 +846,64 @@ public abstract class AbstractClient {
     }
 
     protected static JSONObject _getJSONObject(byte[] array) throws JSONException, UnsupportedEncodingException {
-        return new JSONObject(new String(array, "UTF-8"));
+        try {
+            return JSONStreamDecoder.readObject(new ByteArrayInputStream(array));
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) { // should not happen with an in-memory stream
+            throw new JSONException(e.getMessage());
+        }
     }
 
-    private static JSONObject _getAnswerJSONObject(InputStream istream) throws IOException, JSONException {
-        return _getJSONObject(_toCharArray(istream));
+    /**
+     * Decodes the body of a successful response.
+     *
+     * @param <T> Type of the decoded result.
+     */
+    interface ResponseDecoder<T> {
+        /**
+         * Decode a response body.
+         *
+         * @param stream The (already uncompressed) body. It will be closed by the caller.
+         * @return The decoded result.
+         * @throws IOException   if the stream cannot be read.
+         * @throws JSONException if the body is not valid JSON.
+         */
+        T decode(@NonNull InputStream stream) throws IOException, JSONException;
     }
 
+    /** Reads the body into a byte array, without decoding it. */
+    private static final ResponseDecoder<byte[]> RAW_DECODER = new ResponseDecoder<byte[]>() {
+        @Override
+        public byte[] decode(@NonNull InputStream stream) throws IOException {
+            return _toByteArray(stream);
+        }
+    };
+
+    /** Decodes the body as a JSON object on the fly, without buffering it first. */
+    private static final ResponseDecoder<JSONObject> JSON_DECODER = new ResponseDecoder<JSONObject>() {
+        @Override
+        public JSONObject decode(@NonNull InputStream stream) throws IOException, JSONException {
+            return JSONStreamDecoder.readObject(stream);
+        }
+    };
+
     /**
      * Send the query according to parameters and returns its result as a JSONObject
      *
      * @param m              HTTP Method to use
      * @param url            Endpoint URL, *without query string*. The query string is handled by `urlParameters`.
      * @param urlParameters  URL parameters
-     * @param json           optional JSON Object to send
+     * @param body           optional JSON body to send
      * @param hostsArray     array of hosts to try successively
+     * @param readOperation  whether the request only reads data (and may therefore be hedged)
      * @param connectTimeout maximum wait time to open connection
      * @param readTimeout    maximum time to read data on socket
      * @return a JSONObject containing the resulting data or error
      * @throws AlgoliaException if the request data is not valid json
      */
-    private JSONObject _request(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String json, @NonNull List<String> hostsArray, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        try {
-            return _getJSONObject(_requestRaw(m, url, urlParameters, json, hostsArray, connectTimeout, readTimeout, requestOptions));
-        } catch (JSONException e) {
-            throw new AlgoliaException("JSON decode error:" + e.getMessage());
-        } catch (UnsupportedEncodingException e) {
-            throw new AlgoliaException("UTF-8 decode error:" + e.getMessage());
-        }
+    private JSONObject _request(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable RequestBody body, @NonNull List<String> hostsArray, boolean readOperation, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return _request(m, url, urlParameters, body, hostsArray, readOperation, connectTimeout, readTimeout, requestOptions, JSON_DECODER);
     }
 
     /**
@@ -515,18 +912,168 @@ public abstract class AbstractClient {
      * @param m              HTTP Method to use
      * @param url            Endpoint URL, *without query string*. The query string is handled by `urlParameters`.
      * @param urlParameters  URL parameters
-     * @param json           (optional) JSON body
+     * @param body           (optional) JSON body
      * @param hostsArray     array of hosts to try successively
+     * @param readOperation  whether the request only reads data (and may therefore be hedged)
      * @param connectTimeout maximum wait time to open connection
      * @param readTimeout    maximum time to read data on socket
-     * @return a JSONObject containing the resulting data or error
+     * @return the raw response's body
      * @throws AlgoliaException in case of connection or data handling error
      */
-    private byte[] _requestRaw(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable String json, @NonNull List<String> hostsArray, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions) throws AlgoliaException {
-        String requestMethod;
-        List<Exception> errors = new ArrayList<>(hostsArray.size());
-        // for each host
-        for (String host : hostsArray) {
+    private byte[] _requestRaw(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable RequestBody body, @NonNull List<String> hostsArray, boolean readOperation, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return _request(m, url, urlParameters, body, hostsArray, readOperation, connectTimeout, readTimeout, requestOptions, RAW_DECODER);
+    }
+
+    /**
+     * Send the query according to parameters and decode its result
+     *
+     * @param m              HTTP Method to use
+     * @param url            Endpoint URL, *without query string*. The query string is handled by `urlParameters`.
+     * @param urlParameters  URL parameters
+     * @param body           (optional) JSON body
+     * @param hostsArray     array of hosts to try successively
+     * @param readOperation  whether the request only reads data (and may therefore be hedged)
+     * @param connectTimeout maximum wait time to open connection
+     * @param readTimeout    maximum time to read data on socket
+     * @param decoder        decoder for the body of a successful response
+     * @return the decoded response
+     * @throws AlgoliaException in case of connection or data handling error
+     */
+    private <T> T _request(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable RequestBody body, @NonNull List<String> hostsArray, boolean readOperation, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions, @NonNull ResponseDecoder<T> decoder) throws AlgoliaException {
+        // NOTE: Hedged attempts may report errors concurrently.
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>(hostsArray.size()));
+        T result = null;
+        if (hedgingEnabled && readOperation && hostsArray.size() > 1) {
+            result = _requestHedged(m, url, urlParameters, body, hostsArray, connectTimeout, readTimeout, requestOptions, decoder, errors);
+        } else {
+            // for each host
+            for (String host : hostsArray) {
+                result = new HostAttempt<>(host, m, url, urlParameters, body, connectTimeout, readTimeout, requestOptions, decoder, errors).call();
+                if (result != null) {
+                    break;
+                }
+                // A cancelled request must not go on with the next host.
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new AlgoliaException("Request interrupted");
+                }
+            }
+        }
+        if (result != null) {
+            return result;
+        }
+
+        String errorMessage = "All hosts failed: " + Arrays.toString(errors.toArray());
+        // When several errors occurred, use the last one as the cause for the returned exception.
+        Throwable lastError = errors.get(errors.size() - 1);
+        throw new AlgoliaException(errorMessage, lastError);
+    }
+
+    /**
+     * Send a read request to several hosts in parallel: if a host has not answered within its hedging delay, the
+     * request is sent to the next host as well. The first successful response wins; the other attempts are
+     * cancelled.
+     *
+     * @param errors list where to report host errors
+     * @return the decoded response, or null if all hosts failed
+     * @throws AlgoliaException in case of fatal error (non retryable response, invalid data or interruption)
+     */
+    private <T> T _requestHedged(@NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable RequestBody body, @NonNull List<String> hostsArray, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions, @NonNull ResponseDecoder<T> decoder, @NonNull List<Exception> errors) throws AlgoliaException {
+        final CompletionService<T> completionService = new ExecutorCompletionService<>(hedgingExecutorService);
+        final Map<Future<T>, HostAttempt<T>> pendingAttempts = new HashMap<>();
+        int nextHostIndex = 0;
+        try {
+            while (!pendingAttempts.isEmpty() || nextHostIndex < hostsArray.size()) {
+                // Make sure that at least one attempt is running.
+                if (pendingAttempts.isEmpty()) {
+                    final HostAttempt<T> attempt = new HostAttempt<>(hostsArray.get(nextHostIndex++), m, url, urlParameters, body, connectTimeout, readTimeout, requestOptions, decoder, errors);
+                    pendingAttempts.put(completionService.submit(attempt), attempt);
+                }
+                // Wait for the first attempt to complete; hedge on the next host if it takes too long.
+                final Future<T> future;
+                if (nextHostIndex < hostsArray.size()) {
+                    future = completionService.poll(getHedgingDelay(hostsArray.get(nextHostIndex - 1), readTimeout), TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        final HostAttempt<T> attempt = new HostAttempt<>(hostsArray.get(nextHostIndex++), m, url, urlParameters, body, connectTimeout, readTimeout, requestOptions, decoder, errors);
+                        pendingAttempts.put(completionService.submit(attempt), attempt);
+                        continue;
+                    }
+                } else {
+                    future = completionService.take();
+                }
+                pendingAttempts.remove(future);
+                final T result = future.get();
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            throw new AlgoliaException("Request interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AlgoliaException) {
+                throw (AlgoliaException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause()); // programming error
+        } finally {
+            for (Map.Entry<Future<T>, HostAttempt<T>> entry : pendingAttempts.entrySet()) {
+                entry.getValue().cancel();
+                entry.getKey().cancel(true);
+            }
+        }
+    }
+
+    /**
+     * One attempt at performing a request on a given host.
+     * An attempt may be cancelled from another thread, which aborts the underlying HTTP call.
+     */
+    private class HostAttempt<T> implements Callable<T> {
+        private final @NonNull String host;
+        private final @NonNull Method m;
+        private final @NonNull String url;
+        private final @Nullable Map<String, String> urlParameters;
+        private final @Nullable RequestBody body;
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final @Nullable RequestOptions requestOptions;
+        private final @NonNull ResponseDecoder<T> decoder;
+        private final @NonNull List<Exception> errors;
+
+        private volatile Transport.Call call;
+        private volatile boolean cancelled;
+
+        HostAttempt(@NonNull String host, @NonNull Method m, @NonNull String url, @Nullable Map<String, String> urlParameters, @Nullable RequestBody body, int connectTimeout, int readTimeout, @Nullable RequestOptions requestOptions, @NonNull ResponseDecoder<T> decoder, @NonNull List<Exception> errors) {
+            this.host = host;
+            this.m = m;
+            this.url = url;
+            this.urlParameters = urlParameters;
+            this.body = body;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.requestOptions = requestOptions;
+            this.decoder = decoder;
+            this.errors = errors;
+        }
+
+        /**
+         * Cancel this attempt. Has no effect if it has already completed.
+         */
+        void cancel() {
+            cancelled = true;
+            final Transport.Call call = this.call;
+            if (call != null) {
+                call.cancel();
+            }
+        }
+
+        /**
+         * Perform the request on this attempt's host.
+         *
+         * @return the decoded response, or null if the host failed (the error is then added to the error list)
+         * @throws AlgoliaException in case of fatal error
+         */
+        @Override
+        public T call() throws AlgoliaException {
+            String requestMethod;
             switch (m) {
                 case DELETE:
                     requestMethod = "DELETE";
@@ -544,8 +1091,9 @@ public abstract class AbstractClient {
                     throw new IllegalArgumentException("Method " + m + " is not supported");
             }
 
-            InputStream stream = null;
-            HttpURLConnection hostConnection = null;
+            HttpResponse response = null;
+            boolean responseCompleted = false;
+            long startTime = System.nanoTime();
             try {
                 // Compute final URL parameters.
                 final Map<String, String> parameters = new HashMap<>();
@@ -563,137 +1111,118 @@ public abstract class AbstractClient {
                 }
                 URL hostURL = new URL(urlString);
 
-                // Open connection.
-                hostConnection = (HttpURLConnection) hostURL.openConnection();
-
-                //set timeouts
-                hostConnection.setRequestMethod(requestMethod);
-                hostConnection.setConnectTimeout(connectTimeout);
-                hostConnection.setReadTimeout(readTimeout);
-
                 // Headers
-                hostConnection.setRequestProperty("Accept-Encoding", "gzip");
-                hostConnection.setRequestProperty("X-Algolia-Application-Id", this.applicationID);
+                // NOTE: Order matters, as later headers override earlier ones.
+                final Map<String, String> requestHeaders = new LinkedHashMap<>();
+                requestHeaders.put("Accept-Encoding", "gzip");
+                requestHeaders.put("X-Algolia-Application-Id", applicationID);
                 // If API key is too big, send it in the request's body (if applicable).
-                if (this.apiKey != null && this.apiKey.length() > MAX_API_KEY_LENGTH && json != null) {
-                    try {
-                        final JSONObject body = new JSONObject(json);
-                        body.put("apiKey", this.apiKey);
-                        json = body.toString();
-                    } catch (JSONException e) {
-                        throw new AlgoliaException("Failed to patch JSON body");
-                    }
-                } else {
-                    hostConnection.setRequestProperty("X-Algolia-API-Key", this.apiKey);
+                final boolean apiKeyInBody = apiKey != null && apiKey.length() > MAX_API_KEY_LENGTH && body != null;
+                if (!apiKeyInBody) {
+                    requestHeaders.put("X-Algolia-API-Key", apiKey);
                 }
                 // Client-level headers
-                for (Map.Entry<String, String> entry : this.headers.entrySet()) {
-                    hostConnection.setRequestProperty(entry.getKey(), entry.getValue());
-                }
+                requestHeaders.putAll(headers);
                 // Request-level headers
                 if (requestOptions != null) {
-                    for (Map.Entry<String, String> entry : requestOptions.headers.entrySet()) {
-                        hostConnection.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
+                    requestHeaders.putAll(requestOptions.headers);
                 }
 
                 // set user agent
-                hostConnection.setRequestProperty("User-Agent", userAgentRaw);
+                requestHeaders.put("User-Agent", userAgentRaw);
 
-                // write JSON entity
-                if (json != null) {
+                // JSON entity
+                byte[] bodyBytes = null;
+                HttpRequest.BodyWriter streamingBody = null;
+                if (body != null) {
                     if (!(requestMethod.equals("PUT") || requestMethod.equals("POST"))) {
                         throw new IllegalArgumentException("Method " + m + " cannot enclose entity");
                     }
-                    hostConnection.setRequestProperty("Content-type", "application/json; charset=UTF-8");
-                    hostConnection.setDoOutput(true);
-                    OutputStreamWriter writer = new OutputStreamWriter(hostConnection.getOutputStream(), "UTF-8");
-                    writer.write(json);
-                    writer.close();
+                    requestHeaders.put("Content-type", "application/json; charset=UTF-8");
+                    final String bodyApiKey = apiKeyInBody ? apiKey : null;
+                    final int compressionThreshold = requestOptions != null && requestOptions.requestCompressionThreshold != null ? requestOptions.requestCompressionThreshold : requestCompressionThreshold;
+                    if (body.isStreamed()) {
+                        streamingBody = body.writer(bodyApiKey);
+                        if (compressionThreshold != REQUEST_COMPRESSION_DISABLED) {
+                            requestHeaders.put("Content-Encoding", "gzip");
+                            streamingBody = RequestBody.gzip(streamingBody);
+                        }
+                    } else {
+                        try {
+                            bodyBytes = body.toBytes(bodyApiKey);
+                        } catch (JSONException e) {
+                            throw new AlgoliaException("Failed to patch JSON body");
+                        }
+                        if (compressionThreshold != REQUEST_COMPRESSION_DISABLED && bodyBytes.length >= compressionThreshold) {
+                            requestHeaders.put("Content-Encoding", "gzip");
+                            bodyBytes = RequestBody.gzip(bodyBytes);
+                        }
+                    }
                 }
 
-                // read response
-                int code = hostConnection.getResponseCode();
-                final boolean codeIsError = code / 100 != 2;
-                stream = codeIsError ? hostConnection.getErrorStream() : hostConnection.getInputStream();
-                // As per the official Java docs (not the Android docs):
-                // - `getErrorStream()` may return null => we have to handle this case.
-                //   See <https://docs.oracle.com/javase/7/docs/api/java/net/HttpURLConnection.html#getErrorStream()>.
-                // - `getInputStream()` should never return null... but let's err on the side of caution.
-                //   See <https://docs.oracle.com/javase/7/docs/api/java/net/URLConnection.html#getInputStream()>.
-                if (stream == null) {
-                    throw new IOException(String.format("Null stream when reading connection (status %d)", code));
+                // send request
+                startTime = System.nanoTime();
+                call = transport.newCall(new HttpRequest(hostURL, requestMethod, requestHeaders, bodyBytes, streamingBody, connectTimeout, readTimeout));
+                if (cancelled) {
+                    return null;
                 }
-                hostStatuses.put(host, new HostStatus(true));
+                FutureRequest.setCurrentCall(call);
+                response = call.execute();
+                int code = response.statusCode;
+                final boolean codeIsError = code / 100 != 2;
+                getHostStatus(host).recordResponse((System.nanoTime() - startTime) / 1e6, code / 100 == 5);
 
-                final byte[] rawResponse;
-                String encoding = hostConnection.getContentEncoding();
-                if (encoding != null && encoding.equals("gzip")) {
-                    rawResponse = _toByteArray(new GZIPInputStream(stream));
-                } else {
-                    rawResponse = _toByteArray(stream);
-                }
+                final InputStream responseBody = response.getBody();
 
                 // handle http errors
                 if (codeIsError) {
+                    final byte[] rawResponse = _readFully(responseBody);
+                    responseCompleted = true;
                     if (code / 100 == 4) {
-                        consumeQuietly(hostConnection);
                         throw new AlgoliaException(_getJSONObject(rawResponse).getString("message"), code);
                     } else {
-                        consumeQuietly(hostConnection);
-                        errors.add(new AlgoliaException(_toCharArray(stream), code));
-                        continue;
+                        errors.add(new AlgoliaException(new String(rawResponse, "UTF-8"), code));
+                        return null;
                     }
                 }
-                return rawResponse;
+
+                // read response
+                // NOTE: The body is decoded as it arrives, so that large responses are never held as a whole in memory.
+                try {
+                    final T result = decoder.decode(responseBody);
+                    responseCompleted = true;
+                    return result;
+                } catch (IOException e) {
+                    throw new AlgoliaException("Error while reading stream: " + e.getMessage());
+                }
 
             } catch (JSONException e) { // fatal
-                consumeQuietly(hostConnection);
                 throw new AlgoliaException("Invalid JSON returned by server", e);
             } catch (UnsupportedEncodingException e) { // fatal
-                consumeQuietly(hostConnection);
                 throw new AlgoliaException("Invalid encoding returned by server", e);
             } catch (IOException e) { // host error, continue on the next host
-                hostStatuses.put(host, new HostStatus(false));
-                consumeQuietly(hostConnection);
-                errors.add(e);
+                // NOTE: A cancelled attempt fails with an I/O error, which says nothing about the host.
+                // The whole request may have been cancelled as well, in which case its thread has been interrupted.
+                if (cancelled || Thread.currentThread().isInterrupted()) {
+                    getHostStatus(host).recordCancellation((System.nanoTime() - startTime) / 1e6);
+                } else {
+                    getHostStatus(host).recordFailure();
+                    errors.add(e);
+                }
+                return null;
             } finally {
-                if (stream != null) {
-                    try {
-                        stream.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                FutureRequest.setCurrentCall(null);
+                // NOTE: Closing the response (instead of disconnecting) lets the connection be reused. Failed or
+                // abandoned responses are not drained, as reading them could block until the read timeout.
+                if (response != null) {
+                    if (responseCompleted) {
+                        response.close();
+                    } else {
+                        response.abort();
                     }
                 }
             }
         }
-
-        String errorMessage = "All hosts failed: " + Arrays.toString(errors.toArray());
-        // When several errors occurred, use the last one as the cause for the returned exception.
-        Throwable lastError = errors.get(errors.size() - 1);
-        throw new AlgoliaException(errorMessage, lastError);
-    }
-
-    /**
-     * Ensures that the entity content is fully consumed and the content stream, if exists,
-     * is closed.
-     */
-    private static void consumeQuietly(final HttpURLConnection connection) {
-        try {
-            int read = 0;
-            while (read != -1) {
-                read = connection.getInputStream().read();
-            }
-            connection.getInputStream().close();
-            read = 0;
-            while (read != -1) {
-                read = connection.getErrorStream().read();
-            }
-            connection.getErrorStream().close();
-            connection.disconnect();
-        } catch (IOException e) {
-            // no inputStream to close
-        }
     }
 
     private void checkTimeout(int connectTimeout) {
@@ -703,10 +1232,10 @@ public abstract class AbstractClient {
     }
 
     /**
-     * Get the hosts that are not considered down in a given list.
+     * Get the hosts that are not considered down in a given list, the most promising first.
      *
      * @param hosts a list of hosts whose {@link HostStatus} will be checked.
-     * @return the hosts considered up, or all hosts if none is known to be reachable.
+     * @return the hosts considered up, by increasing expected latency, or all hosts if none is known to be reachable.
      */
     private List<String> hostsThatAreUp(List<String> hosts) {
         List<String> upHosts = new ArrayList<>();
@@ -715,12 +1244,76 @@ public abstract class AbstractClient {
                 upHosts.add(host);
             }
         }
-        return upHosts.isEmpty() ? hosts : upHosts;
+        if (upHosts.isEmpty()) {
+            return hosts;
+        }
+        // Sort by increasing expected latency.
+        // NOTE: Host lists are tiny, so an insertion sort is the cheapest option. Being stable, it keeps the order of
+        // hosts with the same expected latency (e.g. never tried).
+        final long now = System.currentTimeMillis();
+        final double[] expectedLatencies = new double[upHosts.size()];
+        for (int i = 0; i < expectedLatencies.length; ++i) {
+            final String host = upHosts.get(i);
+            final HostStatus status = hostStatuses.get(host);
+            final double expectedLatency = status == null ? 0 : status.expectedLatency(now, hostProbeInterval);
+            int j = i;
+            while (j > 0 && expectedLatencies[j - 1] > expectedLatency) {
+                expectedLatencies[j] = expectedLatencies[j - 1];
+                upHosts.set(j, upHosts.get(j - 1));
+                --j;
+            }
+            expectedLatencies[j] = expectedLatency;
+            upHosts.set(j, host);
+        }
+        return upHosts;
+    }
+
+    /**
+     * Compute how long to wait for a host before hedging a read request on the next host.
+     *
+     * @param host        the host currently tried
+     * @param readTimeout the request's read timeout (ms)
+     * @return the hedging delay (ms)
+     */
+    private long getHedgingDelay(@NonNull String host, int readTimeout) {
+        final HostStatus status = hostStatuses.get(host);
+        double delay = status == null ? Double.NaN : status.getLatencyPercentile(hedgingPercentile);
+        if (Double.isNaN(delay)) {
+            delay = DEFAULT_HEDGING_DELAY;
+        }
+        return (long) Math.min(Math.max(delay, MIN_HEDGING_DELAY), readTimeout);
+    }
+
+    /**
+     * Approximate the quantile function of the standard normal distribution.
+     * Uses the rational approximation 26.2.23 from Abramowitz and Stegun (absolute error below 4.5e-4).
+     *
+     * @param p a probability, in ]0, 1[
+     * @return the value below which a standard normal variable falls with probability <code>p</code>
+     */
+    static double normalQuantile(double p) {
+        if (p < 0.5) {
+            return -normalQuantile(1 - p);
+        }
+        final double t = Math.sqrt(-2 * Math.log(1 - p));
+        return t - (2.515517 + 0.802853 * t + 0.010328 * t * t) / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+    }
+
+    private @NonNull HostStatus getHostStatus(@NonNull String host) {
+        HostStatus status = hostStatuses.get(host);
+        if (status == null) {
+            final HostStatus newStatus = new HostStatus();
+            status = hostStatuses.putIfAbsent(host, newStatus);
+            if (status == null) {
+                status = newStatus;
+            }
+        }
+        return status;
     }
 
     boolean isUpOrCouldBeRetried(String host) {
         HostStatus status = hostStatuses.get(host);
-        return status == null || status.isUp || new Date().getTime() - status.lastTryTimestamp >= hostDownDelay;
+        return status == null || status.isUp || System.currentTimeMillis() - status.lastTryTimestamp >= hostDownDelay;
     }
 
     // ----------------------------------------------------------------------
@@ -730,15 +1323,26 @@ public abstract class AbstractClient {
     /**
      * Abstract convenience implementation of {@link FutureRequest} using the client's default executors.
      */
-    abstract protected class AsyncTaskRequest extends FutureRequest {
+    abstract protected class AsyncTaskRequest extends FutureRequest<JSONObject> {
         /**
-         * Construct a new request with the specified completion handler, executing on the client's search executor,
-         * and calling the completion handler on the client's completion executor.
+         * Construct a new interactive request with the specified completion handler, executing on the client's
+         * search executor, and calling the completion handler on the client's completion executor.
          *
          * @param completionHandler The completion handler to be notified of results. May be null if the caller omitted it.
          */
         protected AsyncTaskRequest(@Nullable CompletionHandler completionHandler) {
-            this(completionHandler, searchExecutorService);
+            this(completionHandler, RequestPriority.INTERACTIVE);
+        }
+
+        /**
+         * Construct a new request with the specified completion handler, executing on the client's search executor
+         * with the specified priority, and calling the completion handler on the client's completion executor.
+         *
+         * @param completionHandler The completion handler to be notified of results. May be null if the caller omitted it.
+         * @param priority          Priority of the request.
+         */
+        protected AsyncTaskRequest(@Nullable CompletionHandler completionHandler, @NonNull RequestPriority priority) {
+            this(completionHandler, requestScheduler.executor(priority));
         }
 
         /**
@@ -749,7 +1353,25 @@ public abstract class AbstractClient {
          * @param requestExecutor   Executor on which to execute the request.
          */
         protected AsyncTaskRequest(@Nullable CompletionHandler completionHandler, @NonNull Executor requestExecutor) {
-            super(completionHandler, requestExecutor, completionExecutor);
+            super(adapt(completionHandler), requestExecutor, completionExecutor);
         }
     }
+
+    /**
+     * Adapt a {@link CompletionHandler} to the generic interface used by {@link FutureRequest}.
+     *
+     * @param completionHandler The completion handler to adapt. May be null.
+     * @return A result handler forwarding to the completion handler, or null if it was null.
+     */
+    private static @Nullable FutureRequest.ResultHandler<JSONObject> adapt(@Nullable final CompletionHandler completionHandler) {
+        if (completionHandler == null) {
+            return null;
+        }
+        return new FutureRequest.ResultHandler<JSONObject>() {
+            @Override
+            public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+                completionHandler.requestCompleted(content, error);
+            }
+        };
+    }
 }
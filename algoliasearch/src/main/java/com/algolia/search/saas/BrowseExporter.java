@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Exports all hits of a browse to a file, in a resumable way.
+ * <p>
+ * Hits are written as newline-delimited JSON (one object per line). After each page, the file is synced to disk and
+ * a checkpoint (the cursor of the next page, the number of records and the length of the file) is atomically saved
+ * next to it. If the export is interrupted (crash, network failure, process killed...), running it again resumes
+ * from the last checkpoint: the file is truncated to its checkpointed length, so that no record is lost or written
+ * twice. Once the export completes, the checkpoint is deleted.
+ * </p>
+ * <p>
+ * Pages are prefetched while the previous one is written (see {@link BrowseHitIterator}).
+ * {@link #export()} blocks until the export completes: it must not be called from the main thread.
+ * </p>
+ */
+public class BrowseExporter {
+    /** Size of the write buffer (bytes). */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String JSON_KEY_QUERY = "query";
+    private static final String JSON_KEY_CURSOR = "cursor";
+    private static final String JSON_KEY_COUNT = "count";
+    private static final String JSON_KEY_LENGTH = "length";
+
+    /** The index being exported. */
+    private final @NonNull Index index;
+
+    /** The query used to filter the results. */
+    private final @NonNull Query query;
+
+    /** Eventual request-specific options. */
+    private final @Nullable RequestOptions requestOptions;
+
+    /** The file where hits are written. */
+    private final @NonNull File file;
+
+    /** The checkpoint file. */
+    private final @NonNull File checkpointFile;
+
+    /** Number of records written so far. */
+    private volatile long recordCount = 0;
+
+    /**
+     * Construct a new exporter.
+     *
+     * @param index          The index to be exported.
+     * @param query          The query used to filter the results.
+     * @param requestOptions Request-specific options.
+     * @param file           The file where hits are written. The checkpoint is stored in a sibling file.
+     */
+    public BrowseExporter(@NonNull Index index, @NonNull Query query, @Nullable RequestOptions requestOptions, @NonNull File file) {
+        this.index = index;
+        this.query = new Query(query);
+        this.requestOptions = requestOptions;
+        this.file = file;
+        this.checkpointFile = new File(file.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Get the file where the checkpoint is stored while an export is in progress.
+     *
+     * @return The checkpoint file.
+     */
+    public @NonNull File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Get the number of records written so far, including those written before resuming.
+     * This may be called from another thread to report progress.
+     *
+     * @return The number of records.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Run the export, resuming from the last checkpoint if any.
+     *
+     * @return The total number of exported records.
+     * @throws AlgoliaException If a request fails. The export can be resumed by calling this method again.
+     * @throws IOException      If the file cannot be written. The export can be resumed by calling this method again.
+     */
+    public long export() throws AlgoliaException, IOException {
+        // Resume from the checkpoint, if it belongs to the same export.
+        String cursor = null;
+        long length = 0;
+        recordCount = 0;
+        final JSONObject checkpoint = readCheckpoint();
+        if (checkpoint != null && query.build().equals(checkpoint.optString(JSON_KEY_QUERY)) && file.length() >= checkpoint.optLong(JSON_KEY_LENGTH)) {
+            cursor = checkpoint.optString(JSON_KEY_CURSOR, null);
+            recordCount = checkpoint.optLong(JSON_KEY_COUNT);
+            length = checkpoint.optLong(JSON_KEY_LENGTH);
+        }
+
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        final BrowseHitIterator iterator = new BrowseHitIterator(index, query, requestOptions, BrowseHitIterator.DEFAULT_READ_AHEAD, cursor);
+        try {
+            // Drop anything written after the checkpoint.
+            final FileChannel channel = output.getChannel();
+            channel.truncate(length);
+            channel.position(length);
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            JSONObject page;
+            while ((page = iterator.nextPage()) != null) {
+                final JSONArray hits = page.optJSONArray("hits");
+                final int hitCount = hits == null ? 0 : hits.length();
+                for (int i = 0; i < hitCount; ++i) {
+                    final byte[] line = (hits.optJSONObject(i) + "\n").getBytes("UTF-8");
+                    if (line.length > buffer.remaining()) {
+                        flush(channel, buffer);
+                    }
+                    if (line.length > buffer.capacity()) {
+                        write(channel, ByteBuffer.wrap(line));
+                    } else {
+                        buffer.put(line);
+                    }
+                }
+                flush(channel, buffer);
+                channel.force(false);
+                recordCount += hitCount;
+
+                final String nextCursor = page.optString(JSON_KEY_CURSOR, null);
+                if (nextCursor != null) {
+                    writeCheckpoint(nextCursor, recordCount, channel.position());
+                }
+            }
+        } catch (BrowseHitIterator.BrowseFailedException e) {
+            throw e.getCause();
+        } finally {
+            iterator.close();
+            output.close();
+        }
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            throw new IOException("Could not delete checkpoint " + checkpointFile);
+        }
+        return recordCount;
+    }
+
+    private static void flush(@NonNull FileChannel channel, @NonNull ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        write(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void write(@NonNull FileChannel channel, @NonNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read the checkpoint, if any.
+     *
+     * @return The checkpoint, or null if there is none or if it is unreadable.
+     */
+    private @Nullable JSONObject readCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        try {
+            final FileInputStream input = new FileInputStream(checkpointFile);
+            try {
+                return JSONStreamDecoder.readObject(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Atomically replace the checkpoint: the new checkpoint is written to a temporary file, synced, then renamed.
+     */
+    private void writeCheckpoint(@NonNull String cursor, long count, long length) throws IOException {
+        final byte[] data;
+        try {
+            data = new JSONObject()
+                    .put(JSON_KEY_QUERY, query.build())
+                    .put(JSON_KEY_CURSOR, cursor)
+                    .put(JSON_KEY_COUNT, count)
+                    .put(JSON_KEY_LENGTH, length)
+                    .toString().getBytes("UTF-8");
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+        final File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        final FileOutputStream output = new FileOutputStream(tmpFile);
+        try {
+            output.write(data);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmpFile.renameTo(checkpointFile)) {
+            throw new IOException("Could not save checkpoint " + checkpointFile);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+/**
+ * Synchronous iterator over all hits of a browse, for background workers.
+ * <p>
+ * Unlike {@link com.algolia.search.saas.helpers.BrowseIterator}, which is callback-based and fetches a page only once
+ * the previous one has been handled, this iterator reads ahead: while the caller consumes a page, the next ones are
+ * already being fetched in the background, up to a configurable number of pages. Network time and processing
+ * therefore overlap, while memory usage stays bounded.
+ * </p>
+ * <p>
+ * Prefetching starts as soon as the iterator is constructed. Iteration methods block until the next page arrives;
+ * they must not be called from the main thread. If a request fails, iteration throws a {@link BrowseFailedException}.
+ * Call {@link #close()} to stop prefetching before the end of the index.
+ * </p>
+ */
+public class BrowseHitIterator implements Iterator<JSONObject>, Closeable {
+    /**
+     * Thrown by the iteration methods when a browse request fails.
+     */
+    public static class BrowseFailedException extends RuntimeException {
+        BrowseFailedException(@NonNull AlgoliaException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public synchronized AlgoliaException getCause() {
+            return (AlgoliaException) super.getCause();
+        }
+    }
+
+    /** Default number of pages fetched ahead of the caller. */
+    public static final int DEFAULT_READ_AHEAD = 2;
+
+    /** The index being browsed. */
+    private final @NonNull Index index;
+
+    /** The query used to filter the results. */
+    private final @NonNull Query query;
+
+    /** Eventual request-specific options. */
+    private final @Nullable RequestOptions requestOptions;
+
+    /** Maximum number of pages fetched but not consumed yet. */
+    private final int readAhead;
+
+    // Producer state, guarded by `this`.
+
+    /** Pages fetched and not consumed yet, either a {@link JSONObject} or an {@link AlgoliaException}. */
+    private final LinkedList<Object> pages = new LinkedList<>();
+
+    /** Cursor of the next page to fetch, or null to start from the query. */
+    private @Nullable String cursor;
+
+    /** Whether a page is being fetched. */
+    private boolean fetching = false;
+
+    /** Whether the last page has been fetched (or an error occurred). */
+    private boolean exhausted = false;
+
+    /** Whether this iterator has been closed. */
+    private boolean closed = false;
+
+    // Consumer state.
+
+    /** Hits of the page being consumed. */
+    private @Nullable JSONArray hits;
+
+    /** Index of the next hit in {@link #hits}. */
+    private int hitIndex = 0;
+
+    /**
+     * Construct a new iterator and start prefetching, with the default read-ahead.
+     *
+     * @param index          The index to be browsed.
+     * @param query          The query used to filter the results.
+     * @param requestOptions Request-specific options.
+     */
+    public BrowseHitIterator(@NonNull Index index, @NonNull Query query, @Nullable RequestOptions requestOptions) {
+        this(index, query, requestOptions, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Construct a new iterator and start prefetching.
+     *
+     * @param index          The index to be browsed.
+     * @param query          The query used to filter the results.
+     * @param requestOptions Request-specific options.
+     * @param readAhead      Maximum number of pages fetched ahead of the caller. Must be strictly positive.
+     */
+    public BrowseHitIterator(@NonNull Index index, @NonNull Query query, @Nullable RequestOptions requestOptions, int readAhead) {
+        this(index, query, requestOptions, readAhead, /* cursor: */ null);
+    }
+
+    /**
+     * Construct a new iterator and start prefetching, optionally resuming from a cursor.
+     *
+     * @param index          The index to be browsed.
+     * @param query          The query used to filter the results.
+     * @param requestOptions Request-specific options.
+     * @param readAhead      Maximum number of pages fetched ahead of the caller. Must be strictly positive.
+     * @param cursor         Cursor of the first page to fetch, or null to start from the query.
+     */
+    BrowseHitIterator(@NonNull Index index, @NonNull Query query, @Nullable RequestOptions requestOptions, int readAhead, @Nullable String cursor) {
+        if (readAhead <= 0) {
+            throw new IllegalArgumentException("Read-ahead must be strictly positive");
+        }
+        this.index = index;
+        this.query = new Query(query);
+        this.requestOptions = requestOptions;
+        this.readAhead = readAhead;
+        this.cursor = cursor;
+        synchronized (this) {
+            fetchIfNeeded();
+        }
+    }
+
+    /**
+     * Get the maximum number of pages fetched ahead of the caller.
+     *
+     * @return The read-ahead depth.
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Test whether there are more hits. Blocks until the next page has been fetched if needed.
+     *
+     * @return true if there are more hits.
+     * @throws BrowseFailedException If a request fails, or if the calling thread is interrupted.
+     */
+    @Override
+    public boolean hasNext() {
+        while (hits == null || hitIndex >= hits.length()) {
+            final JSONObject page = nextPage();
+            if (page == null) {
+                return false;
+            }
+            hits = page.optJSONArray("hits");
+            hitIndex = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Get the next whole page. Blocks until it has been fetched if needed.
+     * NOTE: This bypasses the hits of the page being iterated, if any.
+     *
+     * @return The next page, as returned by the API, or null if there are no more pages.
+     * @throws BrowseFailedException If a request fails, or if the calling thread is interrupted.
+     */
+    @Nullable JSONObject nextPage() {
+        final Object page;
+        synchronized (this) {
+            while (pages.isEmpty()) {
+                if (closed || (exhausted && !fetching)) {
+                    return null;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BrowseFailedException(new AlgoliaException("Browse interrupted", e));
+                }
+            }
+            page = pages.removeFirst();
+            fetchIfNeeded();
+        }
+        if (page instanceof AlgoliaException) {
+            throw new BrowseFailedException((AlgoliaException) page);
+        }
+        return (JSONObject) page;
+    }
+
+    /**
+     * Get the next hit. Blocks until the next page has been fetched if needed.
+     *
+     * @return The next hit.
+     * @throws BrowseFailedException If a request fails, or if the calling thread is interrupted.
+     */
+    @Override
+    public JSONObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return hits.optJSONObject(hitIndex++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop prefetching and release buffered pages. A request in progress completes, but its result is discarded.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        pages.clear();
+        notifyAll();
+    }
+
+    /**
+     * Start fetching the next page, unless one is already being fetched or the buffer is full.
+     * Must be called with the lock held.
+     */
+    private void fetchIfNeeded() {
+        if (fetching || exhausted || closed || pages.size() >= readAhead) {
+            return;
+        }
+        fetching = true;
+        final String pageCursor = cursor;
+        index.getClient().requestScheduler.executor(RequestPriority.BACKGROUND_READ).execute(new Runnable() {
+            @Override
+            public void run() {
+                Object page;
+                String nextCursor = null;
+                try {
+                    final JSONObject content = pageCursor == null ? index.browse(query, requestOptions) : index.browseFrom(pageCursor, requestOptions);
+                    nextCursor = content.optString("cursor", null);
+                    page = content;
+                } catch (AlgoliaException e) {
+                    page = e;
+                } catch (RuntimeException e) {
+                    // NOTE: The consumer must be notified of any failure, otherwise it would wait forever.
+                    page = new AlgoliaException(e.getMessage(), e);
+                }
+                synchronized (BrowseHitIterator.this) {
+                    fetching = false;
+                    cursor = nextCursor;
+                    exhausted = nextCursor == null;
+                    if (!closed) {
+                        pages.add(page);
+                    }
+                    BrowseHitIterator.this.notifyAll();
+                    fetchIfNeeded();
+                }
+            }
+        });
+    }
+}
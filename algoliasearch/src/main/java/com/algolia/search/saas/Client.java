@@ -59,6 +59,27 @@ public class Client extends AbstractClient {
      */
     protected Map<String, WeakReference<Object>> indices = new HashMap<>();
 
+    /** Whether identical concurrent searches are coalesced. */
+    private boolean requestCoalescingEnabled = false;
+
+    /** Searches currently in flight, when coalescing is enabled. */
+    final RequestCoalescer searchCoalescer = new RequestCoalescer();
+
+    /** Default maximum number of searches merged into one request. */
+    public static final int DEFAULT_MAX_SEARCH_BATCH_SIZE = 50;
+
+    /** Time window during which concurrent searches are merged (ms), or 0 if disabled. */
+    private long searchBatchingWindow = 0;
+
+    /** Maximum number of searches merged into one request. */
+    private int maxSearchBatchSize = DEFAULT_MAX_SEARCH_BATCH_SIZE;
+
+    /** Pending batch of searches, when batching is enabled. */
+    final SearchBatcher searchBatcher = new SearchBatcher(this);
+
+    /** Waits for the publication of tasks. */
+    private final TaskWatcher taskWatcher = new TaskWatcher(this);
+
     // ----------------------------------------------------------------------
     // Initialization
     // ----------------------------------------------------------------------
@@ -122,6 +143,97 @@ public class Client extends AbstractClient {
         return super.getApplicationID();
     }
 
+    /**
+     * Test whether identical concurrent searches are coalesced.
+     *
+     * @return true if request coalescing is enabled, false otherwise.
+     */
+    public boolean isRequestCoalescingEnabled() {
+        return requestCoalescingEnabled;
+    }
+
+    /**
+     * Enable or disable coalescing of identical concurrent searches (disabled by default).
+     * <p>
+     * When enabled, a call to {@link Index#searchAsync(Query, RequestOptions, CompletionHandler)} identical (same
+     * index, query and request options) to another search still in flight does not fire a new request: it waits for
+     * the pending one, and all completion handlers are notified of the same result. Cancelling one of them only
+     * cancels the underlying request if no other handler is waiting for it.
+     * </p>
+     * <p>
+     * WARNING: Coalesced completion handlers receive the same <code>JSONObject</code> instance, which they must
+     * therefore not modify.
+     * </p>
+     *
+     * @param requestCoalescingEnabled true to enable request coalescing, false to disable it.
+     */
+    public void setRequestCoalescingEnabled(boolean requestCoalescingEnabled) {
+        this.requestCoalescingEnabled = requestCoalescingEnabled;
+    }
+
+    /**
+     * Get the service waiting for the publication of tasks on behalf of this client.
+     * It is used by {@link Index#waitTaskAsync(String, CompletionHandler)}.
+     *
+     * @return The task watcher.
+     */
+    public @NonNull TaskWatcher getTaskWatcher() {
+        return taskWatcher;
+    }
+
+    /**
+     * Get the time window during which concurrent searches are merged.
+     *
+     * @return The batching window (ms), or 0 if batching is disabled.
+     */
+    public long getSearchBatchingWindow() {
+        return searchBatchingWindow;
+    }
+
+    /**
+     * Enable or disable batching of concurrent searches (disabled by default).
+     * <p>
+     * When enabled, calls to {@link Index#searchAsync(Query, RequestOptions, CompletionHandler)} made within the
+     * batching window, possibly on different indices, are merged into a single multiple queries request (see
+     * {@link #multipleQueriesAsync(List, MultipleQueriesStrategy, CompletionHandler)}). Each completion handler is
+     * notified of its own result. A batch is sent as soon as the window expires or the maximum batch size is
+     * reached (see {@link #setMaxSearchBatchSize(int)}).
+     * </p>
+     * <p>
+     * NOTE: Searches with request options, or on an index with a search cache, are never batched.
+     * </p>
+     *
+     * @param searchBatchingWindow The batching window (ms), typically 5 to 10 ms. 0 disables batching.
+     */
+    public void setSearchBatchingWindow(long searchBatchingWindow) {
+        if (searchBatchingWindow < 0) {
+            throw new IllegalArgumentException("Batching window cannot be negative");
+        }
+        this.searchBatchingWindow = searchBatchingWindow;
+    }
+
+    /**
+     * Get the maximum number of searches merged into one request.
+     *
+     * @return The maximum batch size.
+     */
+    public int getMaxSearchBatchSize() {
+        return maxSearchBatchSize;
+    }
+
+    /**
+     * Set the maximum number of searches merged into one request. Only relevant when batching is enabled.
+     *
+     * @param maxSearchBatchSize The maximum batch size. Must be strictly positive.
+     * @see #setSearchBatchingWindow(long)
+     */
+    public void setMaxSearchBatchSize(int maxSearchBatchSize) {
+        if (maxSearchBatchSize <= 0) {
+            throw new IllegalArgumentException("Max batch size must be strictly positive");
+        }
+        this.maxSearchBatchSize = maxSearchBatchSize;
+    }
+
     // ----------------------------------------------------------------------
     // Index management
     // ----------------------------------------------------------------------
@@ -168,7 +280,7 @@ public class Client extends AbstractClient {
      * @return A cancellable request.
      */
     public Request listIndexesAsync(@Nullable final RequestOptions requestOptions, @NonNull CompletionHandler completionHandler) {
-        return new AsyncTaskRequest(completionHandler) {
+        return new AsyncTaskRequest(completionHandler, RequestPriority.BACKGROUND_READ) {
             @NonNull
             @Override
             protected JSONObject run() throws AlgoliaException {
@@ -196,7 +308,7 @@ public class Client extends AbstractClient {
      * @return A cancellable request.
      */
     public Request deleteIndexAsync(final @NonNull String indexName, @Nullable final RequestOptions requestOptions, CompletionHandler completionHandler) {
-        return new AsyncTaskRequest(completionHandler) {
+        return new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override
             protected JSONObject run() throws AlgoliaException {
@@ -228,7 +340,7 @@ public class Client extends AbstractClient {
      * @return A cancellable request.
      */
     public Request moveIndexAsync(final @NonNull String srcIndexName, final @NonNull String dstIndexName, @Nullable final RequestOptions requestOptions, CompletionHandler completionHandler) {
-        return new AsyncTaskRequest(completionHandler) {
+        return new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override
             protected JSONObject run() throws AlgoliaException {
@@ -263,7 +375,7 @@ public class Client extends AbstractClient {
      * @return A cancellable request.
      */
     public Request copyIndexAsync(final @NonNull String srcIndexName, final @NonNull String dstIndexName, @Nullable final RequestOptions requestOptions, CompletionHandler completionHandler) {
-        return new AsyncTaskRequest(completionHandler) {
+        return new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override
             protected JSONObject run() throws AlgoliaException {
@@ -346,7 +458,7 @@ public class Client extends AbstractClient {
      * @return A cancellable request.
      */
     public Request batchAsync(final @NonNull JSONArray operations, @Nullable final RequestOptions requestOptions, CompletionHandler completionHandler) {
-        return new AsyncTaskRequest(completionHandler) {
+        return new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override
             protected JSONObject run() throws AlgoliaException {
@@ -465,9 +577,10 @@ public class Client extends AbstractClient {
      */
     protected JSONObject batch(JSONArray actions, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
+            // NOTE: Batches may be large: stream them instead of building the whole body in memory.
             JSONObject content = new JSONObject();
             content.put("requests", actions);
-            return postRequest("/1/indexes/*/batch", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            return postRequest("/1/indexes/*/batch", /* urlParameters: */ null, RequestBody.streaming(content), false, requestOptions);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
         }
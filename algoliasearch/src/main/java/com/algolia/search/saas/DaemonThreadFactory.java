@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates daemon threads, for background executors that are never explicitly shut down: they must not keep the
+ * process alive.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+    private final @NonNull String name;
+
+    /**
+     * Construct a new factory.
+     *
+     * @param name Name given to the created threads.
+     */
+    DaemonThreadFactory(@NonNull String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+        final Thread thread = defaultFactory.newThread(runnable);
+        thread.setName(name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
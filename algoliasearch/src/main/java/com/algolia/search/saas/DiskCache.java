@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A persistent cache of raw responses, surviving process death.
+ * <p>
+ * Each entry is stored in its own file, named after a hash of its key, containing the entry's expiration date
+ * followed by the gzipped value. The cache is bounded in total size on disk, evicting the least recently used files
+ * first (by modification date, which is refreshed upon every read).
+ * </p>
+ * <p>
+ * Writes are performed asynchronously on a dedicated background thread. The cache directory is scanned lazily on
+ * that same thread: reads are possible right away, whereas writes and evictions are queued after the scan.
+ * </p>
+ */
+class DiskCache {
+    /** Suffix of cache entry files. */
+    private static final String FILE_SUFFIX = ".cache";
+
+    /** Suffix of files being written. */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final @NonNull File directory;
+    private final long expirationTimeout;
+    private final long maxBytes;
+
+    /** Background thread performing writes and evictions. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("AlgoliaDiskCache"));
+
+    /**
+     * Size of entry files by name, least recently used first. Only accessed from the background thread, except for
+     * access order updates on reads (hence synchronized).
+     */
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Total size of the entry files (bytes). */
+    private long totalBytes = 0;
+
+    /**
+     * Create a new disk cache. The cache directory is scanned in the background.
+     *
+     * @param directory        Directory where to store entries. Will be created if necessary. Should be dedicated to
+     *                         this cache.
+     * @param timeoutInSeconds Duration during which an entry is valid.
+     * @param maxBytes         Maximum total size of the entries on disk (bytes).
+     */
+    DiskCache(@NonNull File directory, int timeoutInSeconds, long maxBytes) {
+        this.directory = directory;
+        this.expirationTimeout = TimeUnit.SECONDS.toMillis(timeoutInSeconds);
+        this.maxBytes = maxBytes;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        });
+    }
+
+    /**
+     * Get an entry from the cache.
+     * This method performs disk I/O and should not be called from the main thread.
+     *
+     * @param key The entry's key.
+     * @return The entry's value, or null if absent or expired.
+     */
+    @Nullable byte[] get(@NonNull String key) {
+        final File file = fileForKey(key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+            final long expirationDate = input.readLong();
+            if (expirationDate <= System.currentTimeMillis()) {
+                return null; // will be evicted eventually
+            }
+            final byte[] value = readFully(new GZIPInputStream(input));
+            // Mark the entry as recently used.
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (entries) {
+                entries.get(file.getName());
+            }
+            return value;
+        } catch (IOException e) {
+            Log.w(this.getClass().getName(), "Could not read cache file " + file, e);
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Put an entry into the cache. The entry is written asynchronously.
+     * Does nothing once the cache is closed.
+     *
+     * @param key The entry's key.
+     * @param value The entry's value.
+     */
+    void put(@NonNull final String key, @NonNull final byte[] value) {
+        final long expirationDate = System.currentTimeMillis() + expirationTimeout;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                write(fileForKey(key), expirationDate, value);
+            }
+        });
+    }
+
+    /**
+     * Remove all entries from the cache. Entries are removed asynchronously.
+     * Does nothing once the cache is closed.
+     */
+    void clear() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (entries) {
+                    for (String name : entries.keySet()) {
+                        new File(directory, name).delete();
+                    }
+                    entries.clear();
+                    totalBytes = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the total size of the entries on disk, as far as currently known.
+     *
+     * @return The size of the entries (bytes).
+     */
+    long size() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Wait until all pending writes and removals have been performed.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void flush() throws InterruptedException {
+        final Object done = new Object();
+        final boolean[] isDone = { false };
+        final boolean queued = execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (done) {
+                    isDone[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+        if (!queued) {
+            // Closed: wait for the operations queued before closing.
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            return;
+        }
+        synchronized (done) {
+            while (!isDone[0]) {
+                done.wait();
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread, after pending operations have completed.
+     * The cache may still be in use by concurrent searches: subsequent writes are ignored.
+     */
+    void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Queue a background operation, unless the cache is closed.
+     *
+     * @param operation The operation to queue.
+     * @return true if the operation was queued, false if the cache is closed.
+     */
+    private boolean execute(@NonNull Runnable operation) {
+        try {
+            executor.execute(operation);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Background operations
+    // ----------------------------------------------------------------------
+
+    /** Index the existing entries, removing expired or partially written ones. */
+    private void scan() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(this.getClass().getName(), "Could not create cache directory " + directory);
+            return;
+        }
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Sort by last use, so that entries are indexed in LRU order.
+        final List<File> entryFiles = new ArrayList<>(Arrays.asList(files));
+        final Map<File, Long> lastModified = new LinkedHashMap<>();
+        for (Iterator<File> iterator = entryFiles.iterator(); iterator.hasNext(); ) {
+            final File file = iterator.next();
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX) || (file.getName().endsWith(FILE_SUFFIX) && isExpired(file))) {
+                file.delete();
+                iterator.remove();
+            } else if (!file.getName().endsWith(FILE_SUFFIX)) {
+                iterator.remove();
+            } else {
+                lastModified.put(file, file.lastModified());
+            }
+        }
+        Collections.sort(entryFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long lhsDate = lastModified.get(lhs);
+                final long rhsDate = lastModified.get(rhs);
+                return lhsDate < rhsDate ? -1 : (lhsDate == rhsDate ? 0 : 1);
+            }
+        });
+        synchronized (entries) {
+            for (File file : entryFiles) {
+                final long length = file.length();
+                entries.put(file.getName(), length);
+                totalBytes += length;
+            }
+        }
+        trim();
+    }
+
+    /** Write an entry, atomically replacing any previous version. */
+    private void write(@NonNull File file, long expirationDate, @NonNull byte[] value) {
+        final File tempFile = new File(directory, file.getName() + TEMP_FILE_SUFFIX);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new FileOutputStream(tempFile));
+            output.writeLong(expirationDate);
+            final GZIPOutputStream gzip = new GZIPOutputStream(output);
+            gzip.write(value);
+            gzip.finish();
+            output.close();
+            output = null;
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(this.getClass().getName(), "Could not write cache file " + file, e);
+            tempFile.delete();
+            return;
+        } finally {
+            closeQuietly(output);
+        }
+        synchronized (entries) {
+            final Long previousLength = entries.put(file.getName(), file.length());
+            totalBytes += file.length() - (previousLength != null ? previousLength : 0);
+        }
+        trim();
+    }
+
+    /** Evict the least recently used entries until the cache fits in its maximum size. */
+    private void trim() {
+        synchronized (entries) {
+            final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                final Map.Entry<String, Long> entry = iterator.next();
+                new File(directory, entry.getKey()).delete();
+                totalBytes -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Utils
+    // ----------------------------------------------------------------------
+
+    private static boolean isExpired(@NonNull File file) {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+            return input.readLong() <= System.currentTimeMillis();
+        } catch (IOException e) {
+            return true; // corrupted => discard
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private @NonNull File fileForKey(@NonNull String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(digest.length * 2 + FILE_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(directory, name.append(FILE_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+
+    private static @NonNull byte[] readFully(@NonNull InputStream stream) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = stream.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        return output.toByteArray();
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.algolia.search.saas;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.util.LruCache;
 import android.util.Pair;
 
@@ -16,8 +18,59 @@ class ExpiringCache<K, V> {
 
     private final LruCache<K, Pair<V, Long>> lruCache;
 
+    /** Number of entries in the cache. Tracked separately, as the LRU cache only knows their total weight. */
+    private int count;
+
+    /**
+     * Computes the weight of cache entries, for caches bounded by total weight rather than by number of entries.
+     */
+    interface Weigher<K, V> {
+        /**
+         * Compute the weight of an entry.
+         *
+         * @return the entry's weight (must be positive and constant over time).
+         */
+        int weigh(@NonNull K key, @NonNull V value);
+    }
+
+    /**
+     * Weighs string-keyed byte arrays by their approximate memory footprint.
+     */
+    static final Weigher<String, byte[]> BYTE_ARRAY_WEIGHER = new Weigher<String, byte[]>() {
+        @Override
+        public int weigh(@NonNull String key, @NonNull byte[] value) {
+            return value.length + key.length() * 2;
+        }
+    };
+
     public ExpiringCache(final int timeout, final int maxSize) {
-        lruCache = new LruCache<>(maxSize);
+        this(timeout, maxSize, null);
+    }
+
+    /**
+     * Create a cache bounded by total weight.
+     *
+     * @param timeout expiration timeout of entries
+     * @param maxSize maximum total weight of the entries, or maximum number of entries if `weigher` is null.
+     * @param weigher optional weigher for the entries.
+     */
+    public ExpiringCache(final int timeout, final int maxSize, @Nullable final Weigher<K, V> weigher) {
+        lruCache = new LruCache<K, Pair<V, Long>>(maxSize) {
+            @Override
+            protected int sizeOf(K key, Pair<V, Long> value) {
+                return weigher == null ? 1 : weigher.weigh(key, value.first);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, K key, Pair<V, Long> oldValue, Pair<V, Long> newValue) {
+                // NOTE: Replaced entries are not counted as removed, as they are counted only once when put.
+                if (newValue == null) {
+                    synchronized (ExpiringCache.this) {
+                        count--;
+                    }
+                }
+            }
+        };
         expirationTimeout = timeout;
     }
 
@@ -39,6 +92,8 @@ class ExpiringCache<K, V> {
             final Pair<V, Long> previousPair = lruCache.put(key, new Pair<>(value, timeout));
             if (previousPair != null) {
                 previous = previousPair.first;
+            } else {
+                count++;
             }
         }
         return previous;
@@ -61,17 +116,52 @@ class ExpiringCache<K, V> {
         return null;
     }
 
+    /**
+     * Get a value from the cache, even if it has expired (but not for too long).
+     *
+     * @param maxStaleness maximum time after its expiration during which an entry may still be returned (ms)
+     * @return the cached value and whether it has expired, or null if absent or expired for too long.
+     */
+    synchronized public Pair<V, Boolean> getAllowingStale(K key, long maxStaleness) {
+        final Pair<V, Long> cachePair = lruCache.get(key);
+        if (cachePair != null && cachePair.first != null) {
+            final long now = System.currentTimeMillis();
+            if (cachePair.second > now) {
+                return new Pair<>(cachePair.first, false);
+            } else if (cachePair.second + maxStaleness > now) {
+                return new Pair<>(cachePair.first, true);
+            } else {
+                lruCache.remove(key);
+            }
+        }
+        return null;
+    }
+
     /**
      * @return the number of entries in the cache.
      */
-    public int size() {
+    synchronized public int size() {
+        return count;
+    }
+
+    /**
+     * @return the total weight of the entries in the cache (equal to the number of entries if there is no weigher).
+     */
+    public int weight() {
         return lruCache.size();
     }
 
+    /**
+     * @return the maximum total weight of the entries in the cache.
+     */
+    public int maxWeight() {
+        return lruCache.maxSize();
+    }
+
     /**
      * Reset the cache, keeping the current settings.
      */
-    public void reset() {
+    synchronized public void reset() {
         lruCache.evictAll();
     }
 }
@@ -27,8 +27,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import org.json.JSONObject;
-
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
@@ -38,10 +36,29 @@ import java.util.concurrent.FutureTask;
 /**
  * Abstract {@link Request} implementation, using a {@link java.util.concurrent.Future Future} internally.
  * Derived classes just have to implement the {@link #run()} method.
+ *
+ * @param <T> Type of the request's result.
  */
-abstract class FutureRequest implements Request {
-    /** The completion handler notified of the result. May be null if the caller omitted it. */
-    private final @Nullable CompletionHandler completionHandler;
+abstract class FutureRequest<T> implements Request {
+    /**
+     * Handles the completion of a request with a result of a given type.
+     * This is the generic counterpart of {@link CompletionHandler}.
+     *
+     * @param <T> Type of the request's result.
+     */
+    interface ResultHandler<T> {
+        /**
+         * Called when the request has completed, either successfully or failing.
+         * One and only one of either <code>content</code> or <code>error</code> is guaranteed to be not null.
+         *
+         * @param content Result of the request (in case of success).
+         * @param error Error that was encountered (in case of failure).
+         */
+        void requestCompleted(@Nullable T content, @Nullable AlgoliaException error);
+    }
+
+    /** The handler notified of the result. May be null if the caller omitted it. */
+    private final @Nullable ResultHandler<T> completionHandler;
 
     /** The executor used to execute the request. */
     private final @NonNull Executor requestExecutor;
@@ -49,14 +66,23 @@ abstract class FutureRequest implements Request {
     /** The executor used to execute the completion handler. */
     private final @NonNull Executor completionExecutor;
 
+    /** The request being run by the current thread, if any. */
+    private static final ThreadLocal<FutureRequest<?>> currentRequest = new ThreadLocal<>();
+
+    /** The network call currently performed on behalf of this request, if any. */
+    private volatile Transport.Call currentCall;
+
     /** The callable running the request. */
-    private Callable<APIResult> callable = new Callable<APIResult>() {
+    private Callable<APIResult<T>> callable = new Callable<APIResult<T>>() {
         @Override
-        public APIResult call() throws Exception {
+        public APIResult<T> call() throws Exception {
+            currentRequest.set(FutureRequest.this);
             try {
-                return new APIResult(run());
+                return new APIResult<>(run());
             } catch (AlgoliaException e) {
-                return new APIResult(e);
+                return new APIResult<>(e);
+            } finally {
+                currentRequest.remove();
             }
         }
     };
@@ -66,14 +92,14 @@ abstract class FutureRequest implements Request {
      * Compared to the raw `Callable`, the future gives us cancellation (built-in) and completion (the overridden
      * `done()` method).
      */
-    private FutureTask<APIResult> task = new FutureTask<APIResult>(callable) {
+    private FutureTask<APIResult<T>> task = new FutureTask<APIResult<T>>(callable) {
         @Override
         protected void done() {
             if (completionHandler == null) {
                 return;
             }
             try {
-                final APIResult result = get();
+                final APIResult<T> result = get();
                 completionExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
@@ -105,7 +131,7 @@ abstract class FutureRequest implements Request {
      * @param requestExecutor Executor on which to execute the request.
      * @param completionExecutor Executor on which to call the completion handler.
      */
-    FutureRequest(@Nullable CompletionHandler completionHandler, @NonNull Executor requestExecutor, @NonNull Executor completionExecutor) {
+    FutureRequest(@Nullable ResultHandler<T> completionHandler, @NonNull Executor requestExecutor, @NonNull Executor completionExecutor) {
         this.completionHandler = completionHandler;
         this.requestExecutor = requestExecutor;
         this.completionExecutor = completionExecutor;
@@ -122,14 +148,14 @@ abstract class FutureRequest implements Request {
      * @throws AlgoliaException If an error was encountered.
      */
     @NonNull
-    abstract protected JSONObject run() throws AlgoliaException;
+    abstract protected T run() throws AlgoliaException;
 
     /**
      * Run this request asynchronously.
      *
      * @return This instance.
      */
-    public FutureRequest start() {
+    public FutureRequest<T> start() {
         requestExecutor.execute(task);
         return this;
     }
@@ -147,6 +173,29 @@ abstract class FutureRequest implements Request {
     public void cancel() {
         // NOTE: We interrupt the task's thread to better cope with timeouts.
         task.cancel(true /* mayInterruptIfRunning */);
+        // Interrupting a thread does not unblock socket I/O, so abort the network call explicitly.
+        final Transport.Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * Register the network call performed by the current thread, so that cancelling the request running on this
+     * thread (if any) aborts the call.
+     *
+     * @param call The call about to be executed, or null once it has completed.
+     */
+    static void setCurrentCall(@Nullable Transport.Call call) {
+        final FutureRequest<?> request = currentRequest.get();
+        if (request == null) {
+            return;
+        }
+        request.currentCall = call;
+        // NOTE: The request may have been cancelled before the call was registered.
+        if (call != null && request.isCancelled()) {
+            call.cancel();
+        }
     }
 
     /**
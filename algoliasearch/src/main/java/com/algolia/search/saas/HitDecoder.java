@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Decodes search hits into user-defined objects.
+ * <p>
+ * Hits are decoded directly from the response stream, without building an intermediate JSON tree. Attributes that
+ * the decoder does not need (like <code>_highlightResult</code> or <code>_snippetResult</code>) should be skipped with
+ * {@link JsonReader#skipValue()}, and will then never be materialized in memory.
+ * </p>
+ * <p>
+ * Example:
+ * </p>
+ * <pre>
+ * HitDecoder&lt;Movie&gt; decoder = new HitDecoder&lt;Movie&gt;() {
+ *     public Movie decode(JsonReader reader) throws IOException {
+ *         Movie movie = new Movie();
+ *         reader.beginObject();
+ *         while (reader.hasNext()) {
+ *             switch (reader.nextName()) {
+ *                 case "title": movie.title = reader.nextString(); break;
+ *                 case "year": movie.year = reader.nextInt(); break;
+ *                 default: reader.skipValue(); break;
+ *             }
+ *         }
+ *         reader.endObject();
+ *         return movie;
+ *     }
+ * };
+ * </pre>
+ *
+ * @param <T> Type of the decoded hits.
+ */
+public interface HitDecoder<T> {
+    /**
+     * Decode one hit.
+     * <p>
+     * The reader is positioned right before the hit's JSON object. The implementation must consume the whole object
+     * (including its closing brace), and nothing more.
+     * </p>
+     * <p>
+     * NOTE: This method is called on a background thread.
+     * </p>
+     *
+     * @param reader The reader to decode the hit from.
+     * @return The decoded hit, or null to ignore this hit.
+     * @throws IOException If the hit cannot be read or does not have the expected format.
+     */
+    @Nullable T decode(@NonNull JsonReader reader) throws IOException;
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Snapshot of the statistics gathered by a client about one of its hosts.
+ *
+ * @see AbstractClient#getHostStatistics()
+ */
+public class HostStatistics {
+    /** The host's name. */
+    public final @NonNull String host;
+
+    /** Whether the host is currently considered up. */
+    public final boolean isUp;
+
+    /**
+     * Decaying average of the host's latency (ms), i.e. the time until the response's headers are received.
+     * <code>NaN</code> if no response has been received from this host yet.
+     */
+    public final double latency;
+
+    /**
+     * Decaying standard deviation of the host's latency (ms).
+     * <code>NaN</code> if no response has been received from this host yet.
+     */
+    public final double latencyStandardDeviation;
+
+    /** Decaying average of the host's error rate, between 0 (no recent errors) and 1 (only recent errors). */
+    public final double errorRate;
+
+    /** Total number of requests sent to this host. */
+    public final long requestCount;
+
+    /** Total number of requests that failed on this host (network errors or server errors). */
+    public final long errorCount;
+
+    /** Time of the last request to this host (ms since the epoch), or 0 if the host has never been tried. */
+    public final long lastTryTimestamp;
+
+    HostStatistics(@NonNull String host, boolean isUp, double latency, double latencyStandardDeviation, double errorRate, long requestCount, long errorCount, long lastTryTimestamp) {
+        this.host = host;
+        this.isUp = isUp;
+        this.latency = latency;
+        this.latencyStandardDeviation = latencyStandardDeviation;
+        this.errorRate = errorRate;
+        this.requestCount = requestCount;
+        this.errorCount = errorCount;
+        this.lastTryTimestamp = lastTryTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HostStatistics{host='%s', isUp=%b, latency=%.1f, latencyStandardDeviation=%.1f, errorRate=%.3f, requestCount=%d, errorCount=%d, lastTryTimestamp=%d}", host, isUp, latency, latencyStandardDeviation, errorRate, requestCount, errorCount, lastTryTimestamp);
+    }
+}
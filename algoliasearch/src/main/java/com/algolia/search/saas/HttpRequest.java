@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * An HTTP request, as sent by a {@link Transport}.
+ */
+public class HttpRequest {
+    /**
+     * Writes a request body on demand, straight to the connection.
+     */
+    public interface BodyWriter {
+        /**
+         * Write the body to a stream. The stream must not be closed.
+         * <p>
+         * NOTE: A request may be sent several times (e.g. once per host), so this method may be called several times,
+         * and must write the same content every time.
+         * </p>
+         *
+         * @param stream The stream to write to.
+         * @throws IOException If the stream cannot be written.
+         */
+        void writeTo(@NonNull OutputStream stream) throws IOException;
+    }
+
+    /** The full URL, including the query string. */
+    public final @NonNull URL url;
+
+    /** The HTTP method (<code>GET</code>, <code>POST</code>...). */
+    public final @NonNull String method;
+
+    /** HTTP headers, in the order they should be applied. */
+    public final @NonNull Map<String, String> headers;
+
+    /** The body, or null if the request does not enclose an entity. */
+    public final @Nullable byte[] body;
+
+    /**
+     * A body of unknown length, to be streamed with chunked transfer encoding, or null.
+     * At most one of {@link #body} and {@link #streamingBody} is set.
+     */
+    public final @Nullable BodyWriter streamingBody;
+
+    /** Connect timeout (ms). */
+    public final int connectTimeout;
+
+    /** Read timeout (ms). */
+    public final int readTimeout;
+
+    public HttpRequest(@NonNull URL url, @NonNull String method, @NonNull Map<String, String> headers, @Nullable byte[] body, int connectTimeout, int readTimeout) {
+        this(url, method, headers, body, /* streamingBody: */ null, connectTimeout, readTimeout);
+    }
+
+    public HttpRequest(@NonNull URL url, @NonNull String method, @NonNull Map<String, String> headers, @Nullable byte[] body, @Nullable BodyWriter streamingBody, int connectTimeout, int readTimeout) {
+        if (body != null && streamingBody != null) {
+            throw new IllegalArgumentException("A request cannot have both a body and a streaming body");
+        }
+        this.url = url;
+        this.method = method;
+        this.headers = headers;
+        this.body = body;
+        this.streamingBody = streamingBody;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{%s %s}", this.getClass().getSimpleName(), method, url);
+    }
+}
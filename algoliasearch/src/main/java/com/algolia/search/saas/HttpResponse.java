@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An HTTP response, as returned by a {@link Transport}.
+ * <p>
+ * The body must be consumed (or the response closed) before the underlying connection can be reused. Closing the
+ * response drains what little remains of the body, so that the connection goes back to the pool instead of being
+ * discarded. Responses that failed or were abandoned should be {@link #abort() aborted} instead.
+ * </p>
+ */
+public class HttpResponse implements Closeable {
+    /** Maximum amount of unread content drained when closing a response (bytes). */
+    private static final int MAX_DRAIN_BYTES = 8192;
+
+    /** The HTTP status code. */
+    public final int statusCode;
+
+    /** The value of the <code>Content-Encoding</code> header, if any. */
+    public final @Nullable String contentEncoding;
+
+    /** The raw (possibly compressed) body stream. */
+    private final @NonNull InputStream rawBody;
+
+    /** The decoded body stream. Lazily created. */
+    private InputStream body;
+
+    /**
+     * Construct a new response.
+     *
+     * @param statusCode      The HTTP status code.
+     * @param contentEncoding The value of the <code>Content-Encoding</code> header, if any.
+     * @param rawBody         The raw body stream, as sent by the server.
+     */
+    public HttpResponse(int statusCode, @Nullable String contentEncoding, @NonNull InputStream rawBody) {
+        this.statusCode = statusCode;
+        this.contentEncoding = contentEncoding;
+        this.rawBody = rawBody;
+    }
+
+    /**
+     * Get the body of this response, decoding it if it was compressed.
+     *
+     * @return A stream on the decoded body.
+     * @throws IOException If the body cannot be decoded.
+     */
+    public @NonNull InputStream getBody() throws IOException {
+        if (body == null) {
+            if ("gzip".equals(contentEncoding)) {
+                body = new GZIPInputStream(rawBody);
+            } else {
+                body = rawBody;
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Release this response, draining a bounded amount of unread content so that the connection can be kept alive.
+     * If more content remains, the connection is not reused.
+     */
+    @Override
+    public void close() {
+        try {
+            final byte[] buffer = new byte[1024];
+            int drained = 0;
+            int count;
+            while (drained < MAX_DRAIN_BYTES && (count = rawBody.read(buffer)) != -1) {
+                drained += count;
+            }
+        } catch (IOException e) {
+            // The connection is broken anyway; it will not be reused.
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Release this response without reading any unread content. Use this when the response failed or was abandoned
+     * (e.g. after a timeout), as draining it could block for a long time.
+     */
+    public void abort() {
+        try {
+            rawBody.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default {@link Transport}, based on the platform's {@link HttpURLConnection}.
+ * <p>
+ * Connections are pooled by the platform and kept alive between requests, so that consecutive requests to the same
+ * host do not pay for a new TCP connection and TLS handshake. To preserve that, this transport never disconnects a
+ * healthy connection: responses are drained when closed, and only broken or cancelled connections are torn down.
+ * </p>
+ * <p>
+ * The pool is shared by the whole process, and this transport never alters its process-wide settings. Instead,
+ * {@link #HttpURLConnectionTransport(int, long)} limits on a best-effort basis how many connections this transport
+ * keeps alive, and for how long.
+ * </p>
+ */
+public class HttpURLConnectionTransport implements Transport {
+    /** Default maximum number of idle connections kept in the pool. */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+
+    /** Default delay after which an idle connection is evicted from the pool (ms). */
+    public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+    /** Maximum number of connections kept alive by this transport, or 0 for the platform's default. */
+    private final int maxIdleConnections;
+
+    /** Delay after which an idle connection should be evicted (ms), or 0 for the platform's default. */
+    private final long keepAliveDuration;
+
+    /** Number of calls currently executing. */
+    private final AtomicInteger activeCallCount = new AtomicInteger();
+
+    /**
+     * Construct a new transport using the platform's connection pool settings.
+     */
+    public HttpURLConnectionTransport() {
+        this.maxIdleConnections = 0;
+        this.keepAliveDuration = 0;
+    }
+
+    /**
+     * Construct a new transport, limiting the connections it keeps alive.
+     * <p>
+     * NOTE: These limits are best-effort, as the platform's pool cannot be configured per transport. Calls executed
+     * while <code>maxIdleConnections</code> others are already executing ask for their connection to be closed once
+     * done, so that this transport never leaves more idle connections in the pool. The keep alive duration is sent to
+     * the server, which may then close idle connections earlier than the platform would.
+     * </p>
+     *
+     * @param maxIdleConnections Maximum number of idle connections to keep in the pool.
+     * @param keepAliveDuration  Delay after which an idle connection should be evicted from the pool (ms).
+     */
+    public HttpURLConnectionTransport(int maxIdleConnections, long keepAliveDuration) {
+        if (maxIdleConnections <= 0 || keepAliveDuration <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveDuration = keepAliveDuration;
+    }
+
+    @Override
+    public @NonNull Call newCall(@NonNull HttpRequest request) {
+        return new ConnectionCall(request);
+    }
+
+    /**
+     * A call backed by an {@link HttpURLConnection}.
+     */
+    private class ConnectionCall implements Call {
+        private final @NonNull HttpRequest request;
+
+        /** The connection, once opened. */
+        private volatile HttpURLConnection connection;
+
+        /** Whether this call has been cancelled. */
+        private volatile boolean cancelled = false;
+
+        ConnectionCall(@NonNull HttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public @NonNull HttpResponse execute() throws IOException {
+            if (cancelled) {
+                throw new IOException("Call cancelled");
+            }
+            final HttpURLConnection hostConnection = (HttpURLConnection) request.url.openConnection();
+            connection = hostConnection;
+            final boolean keepAlive = activeCallCount.incrementAndGet() <= maxIdleConnections || maxIdleConnections == 0;
+            try {
+                hostConnection.setRequestMethod(request.method);
+                hostConnection.setConnectTimeout(request.connectTimeout);
+                hostConnection.setReadTimeout(request.readTimeout);
+                for (Map.Entry<String, String> entry : request.headers.entrySet()) {
+                    hostConnection.setRequestProperty(entry.getKey(), entry.getValue());
+                }
+                if (!keepAlive) {
+                    hostConnection.setRequestProperty("Connection", "close");
+                } else if (keepAliveDuration != 0) {
+                    hostConnection.setRequestProperty("Keep-Alive", "timeout=" + Math.max(1, keepAliveDuration / 1000));
+                }
+
+                // Write the body, if any.
+                if (request.body != null) {
+                    hostConnection.setDoOutput(true);
+                    hostConnection.setFixedLengthStreamingMode(request.body.length);
+                    OutputStream output = hostConnection.getOutputStream();
+                    output.write(request.body);
+                    output.close();
+                } else if (request.streamingBody != null) {
+                    // The length is unknown until the body has been written: use chunked transfer encoding.
+                    hostConnection.setDoOutput(true);
+                    hostConnection.setChunkedStreamingMode(0);
+                    OutputStream output = hostConnection.getOutputStream();
+                    request.streamingBody.writeTo(output);
+                    output.close();
+                }
+
+                // Read the response.
+                int code = hostConnection.getResponseCode();
+                final boolean codeIsError = code / 100 != 2;
+                InputStream stream = codeIsError ? hostConnection.getErrorStream() : hostConnection.getInputStream();
+                // As per the official Java docs (not the Android docs):
+                // - `getErrorStream()` may return null => we have to handle this case.
+                //   See <https://docs.oracle.com/javase/7/docs/api/java/net/HttpURLConnection.html#getErrorStream()>.
+                // - `getInputStream()` should never return null... but let's err on the side of caution.
+                //   See <https://docs.oracle.com/javase/7/docs/api/java/net/URLConnection.html#getInputStream()>.
+                if (stream == null) {
+                    throw new IOException(String.format("Null stream when reading connection (status %d)", code));
+                }
+                return new HttpResponse(code, hostConnection.getContentEncoding(), stream);
+            } catch (IOException e) {
+                // The connection is in an unknown state: make sure it is not reused.
+                hostConnection.disconnect();
+                throw e;
+            } finally {
+                activeCallCount.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            final HttpURLConnection hostConnection = connection;
+            if (hostConnection != null) {
+                hostConnection.disconnect();
+            }
+        }
+    }
+}
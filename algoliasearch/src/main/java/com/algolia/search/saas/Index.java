@@ -25,6 +25,8 @@ package com.algolia.search.saas;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Pair;
 
 import com.algolia.search.saas.helpers.DisjunctiveFaceting;
 
@@ -32,13 +34,28 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 /**
  * A proxy to an Algolia index.
@@ -63,12 +80,52 @@ public class Index extends Searchable {
     private ExpiringCache<String, byte[]> searchCache;
     private boolean isCacheEnabled = false;
 
+    /** Persistent search cache. Null when disabled. Read by searches on background threads. */
+    private volatile DiskCache searchDiskCache;
+
+    /** Maximum time during which expired cache entries may still be served (ms), or 0 if disabled. */
+    private long maxStaleness = 0;
+
+    /** Cache keys of the searches currently being revalidated. */
+    private final Set<String> revalidatingKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Whether asynchronous searches may deliver provisional results derived from a cached prefix query. */
+    private boolean provisionalResultsEnabled = false;
+
+    /** Time window during which single-object writes are buffered (ms), or 0 if disabled. */
+    private long writeBufferingWindow = 0;
+
+    /** Maximum number of actions in a buffered write batch. */
+    private int maxWriteBatchSize = DEFAULT_MAX_WRITE_BATCH_SIZE;
+
+    /** Buffers single-object writes into batches. */
+    private final WriteBuffer writeBuffer = new WriteBuffer(this);
+
     // ----------------------------------------------------------------------
     // Constants
     // ----------------------------------------------------------------------
 
     private static final long MAX_TIME_MS_TO_WAIT = 10000L;
 
+    /** Default maximum number of actions in a buffered write batch. */
+    public static final int DEFAULT_MAX_WRITE_BATCH_SIZE = 1000;
+
+    /**
+     * Key used to indicate, in search results, whether they were served from an expired cache entry.
+     * Only present when stale-while-revalidate is enabled (see {@link #enableStaleWhileRevalidate(int)}) and the
+     * search went through the cache.
+     */
+    public static final String JSON_KEY_STALE = "stale";
+
+    /**
+     * Key used to flag, in search results, provisional results computed locally from a cached response.
+     * Only present (and true) in provisional results (see {@link #setProvisionalResultsEnabled(boolean)}).
+     */
+    public static final String JSON_KEY_PROVISIONAL = "provisional";
+
+    /** Matches a run of combining marks, to fold accents. */
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
     // ----------------------------------------------------------------------
     // Initialization
     // ----------------------------------------------------------------------
@@ -119,15 +176,241 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request searchAsync(@Nullable Query query, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
+        return searchAsync(query, requestOptions, RequestPriority.INTERACTIVE, completionHandler);
+    }
+
+    /**
+     * Search inside the index (asynchronously), with a given priority.
+     * Provisional results and search batching only apply to {@link RequestPriority#INTERACTIVE} searches.
+     *
+     * @param query             Search parameters. May be null to use an empty query.
+     * @param requestOptions    Request-specific options.
+     * @param priority          Priority of the request.
+     * @param completionHandler The listener that will be notified of the request's outcome.
+     * @return A cancellable request.
+     */
+    @Override
+    public Request searchAsync(@Nullable Query query, @Nullable final RequestOptions requestOptions, @NonNull RequestPriority priority, @Nullable CompletionHandler completionHandler) {
         final Query queryCopy = query != null ? new Query(query) : new Query();
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        if (priority == RequestPriority.INTERACTIVE && provisionalResultsEnabled && isCacheEnabled && completionHandler != null) {
+            return searchWithProvisionalResults(queryCopy, requestOptions, completionHandler);
+        }
+        return searchCoalesced(queryCopy, requestOptions, priority, completionHandler);
+    }
+
+    private Request searchCoalesced(@NonNull final Query queryCopy, @Nullable final RequestOptions requestOptions, @NonNull final RequestPriority priority, @Nullable CompletionHandler completionHandler) {
+        if (!client.isRequestCoalescingEnabled()) {
+            return startSearch(queryCopy, requestOptions, priority, completionHandler);
+        }
+        return client.searchCoalescer.execute(searchKey(queryCopy, requestOptions), completionHandler, new RequestCoalescer.RequestFactory() {
+            @NonNull
+            @Override
+            public Request start(@NonNull CompletionHandler completionHandler) {
+                return startSearch(queryCopy, requestOptions, priority, completionHandler);
+            }
+        });
+    }
+
+    private Request startSearch(@NonNull final Query query, @Nullable final RequestOptions requestOptions, @NonNull RequestPriority priority, @Nullable CompletionHandler completionHandler) {
+        // NOTE: Batched searches bypass the caches, so only batch searches that would not use them anyway.
+        if (priority == RequestPriority.INTERACTIVE && client.getSearchBatchingWindow() > 0 && requestOptions == null && !isCacheEnabled && searchDiskCache == null) {
+            return client.searchBatcher.search(new IndexQuery(this, query), completionHandler, client.getSearchBatchingWindow(), client.getMaxSearchBatchSize());
+        }
+        return getClient().new AsyncTaskRequest(completionHandler, priority) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
-                return search(queryCopy, requestOptions);
+                return search(query, requestOptions);
             }
         }.start();
     }
 
+    /**
+     * Search, delivering provisional results first if they can be derived from the cache.
+     *
+     * @param query             Search parameters.
+     * @param requestOptions    Request-specific options.
+     * @param completionHandler The listener that will be notified of the provisional then actual results.
+     * @return A cancellable request.
+     */
+    private Request searchWithProvisionalResults(@NonNull final Query query, @Nullable final RequestOptions requestOptions, @NonNull final CompletionHandler completionHandler) {
+        final AtomicBoolean completed = new AtomicBoolean(false);
+        final AtomicReference<Request> request = new AtomicReference<>();
+        client.requestScheduler.executor(RequestPriority.INTERACTIVE).execute(new Runnable() {
+            @Override
+            public void run() {
+                final JSONObject provisionalContent = provisionalResults(query);
+                if (provisionalContent == null) {
+                    return;
+                }
+                client.completionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // NOTE: Provisional results are useless once the actual results have been delivered.
+                        final Request actualRequest = request.get();
+                        if (completed.get() || (actualRequest != null && actualRequest.isCancelled())) {
+                            return;
+                        }
+                        completionHandler.requestCompleted(provisionalContent, null);
+                    }
+                });
+            }
+        });
+        request.set(searchCoalesced(query, requestOptions, RequestPriority.INTERACTIVE, new CompletionHandler() {
+            @Override
+            public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+                completed.set(true);
+                completionHandler.requestCompleted(content, error);
+            }
+        }));
+        return request.get();
+    }
+
+    /**
+     * Compute provisional results for a query, by filtering the cached results of a prefix of the query.
+     * This is only possible when the cached results are exhaustive, i.e. they fit on the first page.
+     *
+     * @param query Search parameters.
+     * @return Provisional results, or null if none can be derived from the cache.
+     */
+    private @Nullable JSONObject provisionalResults(@NonNull Query query) {
+        final String text = query.getQuery();
+        final Integer page = query.getPage();
+        if (text == null || text.isEmpty() || (page != null && page != 0)) {
+            return null;
+        }
+        final Query prefixQuery = new Query(query);
+        for (int length = text.length() - 1; length > 0; --length) {
+            final String cacheKey = prefixQuery.setQuery(text.substring(0, length)).build();
+            // NOTE: Looking up an expired entry removes it. Stale entries must be kept, as they can still be served
+            // (and revalidated) should the user come back to that prefix; they are good enough for provisional results.
+            final byte[] rawResponse;
+            if (maxStaleness > 0) {
+                final Pair<byte[], Boolean> entry = searchCache.getAllowingStale(cacheKey, maxStaleness);
+                rawResponse = entry != null ? entry.first : null;
+            } else {
+                rawResponse = searchCache.get(cacheKey);
+            }
+            if (rawResponse == null) {
+                continue;
+            }
+            try {
+                final JSONObject content = Client._getJSONObject(rawResponse);
+                final JSONArray hits = content.getJSONArray("hits");
+                // Results of a shorter prefix can only be more numerous, so there is no point in looking further.
+                if (content.optInt("nbHits", Integer.MAX_VALUE) > content.optInt("hitsPerPage", hits.length())) {
+                    return null;
+                }
+                final List<String> words = normalizedWords(text);
+                final JSONArray matchingHits = new JSONArray();
+                for (int i = 0; i < hits.length(); ++i) {
+                    final JSONObject hit = hits.getJSONObject(i);
+                    if (hitMatches(hit, words)) {
+                        matchingHits.put(hit);
+                    }
+                }
+                content.put("hits", matchingHits);
+                content.put("nbHits", matchingHits.length());
+                content.put("nbPages", matchingHits.length() > 0 ? 1 : 0);
+                content.put("query", text);
+                content.put(JSON_KEY_PROVISIONAL, true);
+                return content;
+            } catch (UnsupportedEncodingException | JSONException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Test whether a hit matches all the words of a query, each word being a prefix of a word in the hit's
+     * attributes.
+     * <p>
+     * NOTE: This is only an approximation of the engine's matching (no typo tolerance, all attributes are
+     * considered), which is acceptable for provisional results.
+     * </p>
+     *
+     * @param hit   The hit to test.
+     * @param words The normalized words of the query.
+     * @return true if the hit matches all words.
+     */
+    private static boolean hitMatches(@NonNull JSONObject hit, @NonNull List<String> words) {
+        final List<String> hitWords = new ArrayList<>();
+        collectWords(hit, hitWords);
+        for (String word : words) {
+            boolean found = false;
+            for (String hitWord : hitWords) {
+                if (hitWord.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collect the normalized words of all string values in a JSON value, excluding metadata added by the engine
+     * (attributes starting with an underscore).
+     */
+    private static void collectWords(@NonNull Object value, @NonNull List<String> words) {
+        if (value instanceof String) {
+            words.addAll(normalizedWords((String) value));
+        } else if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            final Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                if (!key.startsWith("_")) {
+                    collectWords(object.opt(key), words);
+                }
+            }
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); ++i) {
+                collectWords(array.opt(i), words);
+            }
+        }
+    }
+
+    /**
+     * Split a text into lower case words, without accents.
+     */
+    private static @NonNull List<String> normalizedWords(@NonNull String text) {
+        final String folded = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        final List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); ++i) {
+            final boolean isWordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (isWordChar && start < 0) {
+                start = i;
+            } else if (!isWordChar && start >= 0) {
+                words.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Compute a key identifying a search, for deduplication purposes.
+     *
+     * @param query          Search parameters.
+     * @param requestOptions Request-specific options.
+     * @return A key equal for all interchangeable searches.
+     */
+    private @NonNull String searchKey(@NonNull Query query, @Nullable RequestOptions requestOptions) {
+        final StringBuilder key = new StringBuilder(rawIndexName).append('\n').append(query.build());
+        if (requestOptions != null) {
+            // NOTE: Sort headers and parameters, so that equal options yield equal keys.
+            key.append('\n').append(new TreeMap<>(requestOptions.headers));
+            key.append('\n').append(new TreeMap<>(requestOptions.urlParameters));
+        }
+        return key.toString();
+    }
+
     /**
      * Searches inside this index (synchronously).
      *
@@ -139,6 +422,47 @@ public class Index extends Searchable {
         return search(query, requestOptions);
     }
 
+    /**
+     * Searches inside this index (asynchronously), decoding hits into user-defined objects.
+     * <p>
+     * Hits are decoded straight from the response, so that attributes ignored by the decoder are never materialized.
+     * This is more efficient than walking the JSON tree returned by {@link #searchAsync(Query, RequestOptions, CompletionHandler)}.
+     * </p>
+     *
+     * @param query          Search parameters. May be null to use an empty query.
+     * @param hitDecoder     Decoder for the hits.
+     * @param requestOptions Request-specific options.
+     * @param resultsHandler The listener that will be notified of the request's outcome.
+     * @return A cancellable request.
+     */
+    public <T> Request searchAsync(@Nullable Query query, @NonNull final HitDecoder<T> hitDecoder, @Nullable final RequestOptions requestOptions, @Nullable final SearchResultsHandler<T> resultsHandler) {
+        final Query queryCopy = query != null ? new Query(query) : new Query();
+        final FutureRequest.ResultHandler<SearchResults<T>> handler = resultsHandler == null ? null : new FutureRequest.ResultHandler<SearchResults<T>>() {
+            @Override
+            public void requestCompleted(@Nullable SearchResults<T> content, @Nullable AlgoliaException error) {
+                resultsHandler.requestCompleted(content, error);
+            }
+        };
+        return new FutureRequest<SearchResults<T>>(handler, client.requestScheduler.executor(RequestPriority.INTERACTIVE), client.completionExecutor) {
+            @NonNull
+            @Override protected SearchResults<T> run() throws AlgoliaException {
+                return search(queryCopy, hitDecoder, requestOptions);
+            }
+        }.start();
+    }
+
+    /**
+     * Searches inside this index (synchronously), decoding hits into user-defined objects.
+     *
+     * @param query          Search parameters. May be null to use an empty query.
+     * @param hitDecoder     Decoder for the hits.
+     * @param requestOptions Request-specific options.
+     * @return Search results.
+     */
+    public <T> SearchResults<T> searchSync(@Nullable Query query, @NonNull HitDecoder<T> hitDecoder, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        return search(query, hitDecoder, requestOptions);
+    }
+
     /**
      * Searches inside this index (synchronously).
      *
@@ -328,7 +652,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request addObjectAsync(final @NonNull JSONObject object, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return addObject(object, /* requestOptions: */ null);
@@ -368,7 +692,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request addObjectAsync(final @NonNull JSONObject object, final @NonNull String objectID, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return addObject(object, objectID, requestOptions);
@@ -385,7 +709,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request addObjectsAsync(final @NonNull JSONArray objects, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return addObjects(objects, requestOptions);
@@ -426,7 +750,10 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request saveObjectAsync(final @NonNull JSONObject object, final @NonNull String objectID, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        if (writeBufferingWindow > 0 && requestOptions == null) {
+            return writeBuffer.saveObject(object, objectID, completionHandler, writeBufferingWindow, maxWriteBatchSize);
+        }
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return saveObject(object, objectID, requestOptions);
@@ -454,7 +781,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request saveObjectsAsync(final @NonNull JSONArray objects, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return saveObjects(objects, requestOptions);
@@ -502,7 +829,10 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request partialUpdateObjectAsync(final @NonNull JSONObject partialObject, final @NonNull String objectID, final boolean createIfNotExists, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        if (writeBufferingWindow > 0 && requestOptions == null) {
+            return writeBuffer.partialUpdateObject(partialObject, objectID, createIfNotExists, completionHandler, writeBufferingWindow, maxWriteBatchSize);
+        }
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return partialUpdateObject(partialObject, objectID, createIfNotExists, requestOptions);
@@ -550,7 +880,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request partialUpdateObjectsAsync(final @NonNull JSONArray partialObjects, final boolean createIfNotExists, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return partialUpdateObjects(partialObjects, createIfNotExists, requestOptions);
@@ -666,12 +996,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request waitTaskAsync(final @NonNull String taskID, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
-            @NonNull
-            @Override protected JSONObject run() throws AlgoliaException {
-                return waitTask(taskID);
-            }
-        }.start();
+        return getClient().getTaskWatcher().watch(this, taskID, completionHandler);
     }
 
     /**
@@ -683,12 +1008,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request waitTaskAsync(final long taskID, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
-            @NonNull
-            @Override protected JSONObject run() throws AlgoliaException {
-                return waitTask(Long.toString(taskID));
-            }
-        }.start();
+        return waitTaskAsync(Long.toString(taskID), completionHandler);
     }
 
     /**
@@ -711,7 +1031,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request deleteObjectAsync(final @NonNull String objectID, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return deleteObject(objectID, requestOptions);
@@ -739,7 +1059,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request deleteObjectsAsync(final @NonNull Collection<String> objectIDs, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return deleteObjects(objectIDs, requestOptions);
@@ -770,7 +1090,7 @@ public class Index extends Searchable {
      */
     public Request deleteByQueryAsync(@NonNull Query query, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
         final Query queryCopy = new Query(query);
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 deleteByQuery(queryCopy, requestOptions);
@@ -788,7 +1108,7 @@ public class Index extends Searchable {
      */
     public Request deleteByAsync(@NonNull Query query, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
         final Query queryCopy = new Query(query);
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return deleteBy(queryCopy, requestOptions);
@@ -825,7 +1145,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request getSettingsAsync(@Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.BACKGROUND_READ) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return getSettings(2, requestOptions);
@@ -859,7 +1179,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request setSettingsAsync(final @NonNull JSONObject settings, final boolean forwardToReplicas, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return setSettings(settings, forwardToReplicas, requestOptions);
@@ -894,7 +1214,7 @@ public class Index extends Searchable {
      */
     public Request browseAsync(@NonNull Query query, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
         final Query queryCopy = new Query(query);
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.BACKGROUND_READ) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return browse(queryCopy, requestOptions);
@@ -926,7 +1246,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request browseFromAsync(final @NonNull String cursor, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.BACKGROUND_READ) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return browseFrom(cursor, requestOptions);
@@ -952,7 +1272,7 @@ public class Index extends Searchable {
      * @return A cancellable request.
      */
     public Request clearIndexAsync(@Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler) {
-        return getClient().new AsyncTaskRequest(completionHandler) {
+        return getClient().new AsyncTaskRequest(completionHandler, RequestPriority.WRITE) {
             @NonNull
             @Override protected JSONObject run() throws AlgoliaException {
                 return clearIndex(requestOptions);
@@ -982,6 +1302,36 @@ public class Index extends Searchable {
         searchCache = new ExpiringCache<>(timeoutInSeconds, maxRequests);
     }
 
+    /**
+     * Enable search cache, bounded by the memory used rather than by the number of requests.
+     * <p>
+     * This is the preferred option when the size of responses varies a lot. For example, to dedicate one eighth of
+     * the application's memory class to the cache:
+     * </p>
+     * <pre>
+     * int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+     * index.enableSearchCacheWithMaxBytes(timeoutInSeconds, memoryClass * 1024 * 1024 / 8);
+     * </pre>
+     *
+     * @param timeoutInSeconds duration during which an request is kept in cache
+     * @param maxBytes         maximum size of the cached responses (in bytes) before removing the least recently used
+     */
+    public void enableSearchCacheWithMaxBytes(int timeoutInSeconds, int maxBytes) {
+        isCacheEnabled = true;
+        searchCache = new ExpiringCache<>(timeoutInSeconds, maxBytes, ExpiringCache.BYTE_ARRAY_WEIGHER);
+    }
+
+    /**
+     * Get the current weight of the search cache.
+     *
+     * @return the size of the cached responses in bytes if the cache is bounded by memory (see
+     *         {@link #enableSearchCacheWithMaxBytes(int, int)}), the number of cached responses otherwise, or 0 if
+     *         the cache has never been enabled.
+     */
+    public int getSearchCacheWeight() {
+        return searchCache != null ? searchCache.weight() : 0;
+    }
+
     /**
      * Disable and reset cache
      */
@@ -993,12 +1343,167 @@ public class Index extends Searchable {
     }
 
     /**
-     * Remove all entries from cache
+     * Enable the stale-while-revalidate policy for the search cache.
+     * <p>
+     * When a search hits an expired entry of the in-memory cache (see {@link #enableSearchCache()}), the expired
+     * response is returned immediately, and the search is performed again in the background to refresh the cache.
+     * Results are flagged with the {@link #JSON_KEY_STALE} boolean, so that the caller can tell whether they are up
+     * to date.
+     * </p>
+     *
+     * @param maxStalenessInSeconds duration after expiration during which a cached response may still be served
+     */
+    public void enableStaleWhileRevalidate(int maxStalenessInSeconds) {
+        if (maxStalenessInSeconds <= 0) {
+            throw new IllegalArgumentException("Max staleness must be positive");
+        }
+        maxStaleness = TimeUnit.SECONDS.toMillis(maxStalenessInSeconds);
+    }
+
+    /**
+     * Disable the stale-while-revalidate policy: expired cache entries are never served.
+     */
+    public void disableStaleWhileRevalidate() {
+        maxStaleness = 0;
+    }
+
+    /**
+     * Enable or disable provisional results for asynchronous searches.
+     * <p>
+     * When enabled, and the in-memory search cache is enabled too (see {@link #enableSearchCache()}), a search whose
+     * query text extends a cached query (e.g. "shoes" after "shoe") is answered immediately with the cached results
+     * filtered locally, provided those cached results are exhaustive (i.e. all hits fit on the first page). The
+     * actual results from the network follow.
+     * </p>
+     * <p>
+     * WARNING: In this mode, the completion handler of {@link #searchAsync(Query, RequestOptions, CompletionHandler)}
+     * may be called twice: first with provisional results, flagged with the {@link #JSON_KEY_PROVISIONAL} boolean,
+     * then with the actual results, which should replace them.
+     * </p>
+     *
+     * @param enabled true to enable provisional results, false to disable them.
+     */
+    public void setProvisionalResultsEnabled(boolean enabled) {
+        provisionalResultsEnabled = enabled;
+    }
+
+    /**
+     * Test whether provisional results are enabled.
+     *
+     * @return true if enabled, false otherwise.
+     * @see #setProvisionalResultsEnabled(boolean)
+     */
+    public boolean isProvisionalResultsEnabled() {
+        return provisionalResultsEnabled;
+    }
+
+    /**
+     * Set the write buffering window.
+     * <p>
+     * When strictly positive, single-object writes issued without request options through
+     * {@link #saveObjectAsync(JSONObject, String, RequestOptions, CompletionHandler)} or
+     * {@link #partialUpdateObjectAsync(JSONObject, String, boolean, RequestOptions, CompletionHandler)} are buffered
+     * for up to this duration (or until {@link #getMaxWriteBatchSize()} writes are pending) and sent as a single
+     * batch. Repeated writes to the same object are merged: a save replaces the pending write, and partial updates
+     * are merged into the pending write, unless they apply an operation to an attribute that is already pending.
+     * </p>
+     * <p>
+     * Each write is notified with the batch's <code>taskID</code> and its own <code>objectID</code>. Cancelling a
+     * buffered write only prevents its notification: the write may still be performed.
+     * </p>
+     *
+     * @param writeBufferingWindow The buffering window (ms), or 0 to disable buffering (default).
+     */
+    public void setWriteBufferingWindow(long writeBufferingWindow) {
+        if (writeBufferingWindow < 0) {
+            throw new IllegalArgumentException("Write buffering window must be non-negative");
+        }
+        this.writeBufferingWindow = writeBufferingWindow;
+    }
+
+    /**
+     * Get the write buffering window.
+     *
+     * @return The buffering window (ms), or 0 if buffering is disabled.
+     * @see #setWriteBufferingWindow(long)
+     */
+    public long getWriteBufferingWindow() {
+        return writeBufferingWindow;
+    }
+
+    /**
+     * Set the maximum number of actions in a buffered write batch. When reached, the batch is sent immediately.
+     *
+     * @param maxWriteBatchSize The maximum batch size. Must be strictly positive.
+     */
+    public void setMaxWriteBatchSize(int maxWriteBatchSize) {
+        if (maxWriteBatchSize <= 0) {
+            throw new IllegalArgumentException("Max write batch size must be strictly positive");
+        }
+        this.maxWriteBatchSize = maxWriteBatchSize;
+    }
+
+    /**
+     * Get the maximum number of actions in a buffered write batch.
+     *
+     * @return The maximum batch size.
+     */
+    public int getMaxWriteBatchSize() {
+        return maxWriteBatchSize;
+    }
+
+    /**
+     * Send buffered writes immediately, without waiting for the buffering window to expire.
+     */
+    public void flushWrites() {
+        writeBuffer.flush();
+    }
+
+    /**
+     * Enable the persistent search cache.
+     * <p>
+     * Raw search responses are stored (compressed) on disk, so that they survive process death. The disk cache acts
+     * as a second tier behind the in-memory cache (see {@link #enableSearchCache()}): it is only queried when the
+     * in-memory cache misses, and responses read from disk are promoted to the in-memory cache.
+     * </p>
+     * <p>
+     * The cache directory is loaded lazily in the background, and writes are asynchronous, so enabling the disk
+     * cache never blocks the calling thread.
+     * </p>
+     *
+     * @param directory        directory where to store cached responses. It should be dedicated to this index, e.g.
+     *                         a sub-directory of {@link android.content.Context#getCacheDir()} named after the index.
+     * @param timeoutInSeconds duration during which a response is kept on disk
+     * @param maxBytes         maximum size of the cached responses on disk (in bytes) before removing the least
+     *                         recently used
+     */
+    public void enableSearchDiskCache(@NonNull File directory, int timeoutInSeconds, long maxBytes) {
+        disableSearchDiskCache();
+        searchDiskCache = new DiskCache(directory, timeoutInSeconds, maxBytes);
+    }
+
+    /**
+     * Disable the persistent search cache. Cached responses are kept on disk.
+     */
+    public void disableSearchDiskCache() {
+        final DiskCache diskCache = searchDiskCache;
+        if (diskCache != null) {
+            searchDiskCache = null;
+            diskCache.close();
+        }
+    }
+
+    /**
+     * Remove all entries from cache (both in-memory and on disk)
      */
     public void clearSearchCache() {
         if (searchCache != null) {
             searchCache.reset();
         }
+        final DiskCache diskCache = searchDiskCache;
+        if (diskCache != null) {
+            diskCache.clear();
+        }
     }
 
     // ----------------------------------------------------------------------
@@ -1042,9 +1547,10 @@ public class Index extends Searchable {
      */
     protected JSONObject batch(JSONArray actions, @Nullable RequestOptions requestOptions) throws AlgoliaException {
         try {
+            // NOTE: Batches may be large: stream them instead of building the whole body in memory.
             JSONObject content = new JSONObject();
             content.put("requests", actions);
-            return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", /* urlParameters: */ null, content.toString(), false, requestOptions);
+            return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", /* urlParameters: */ null, RequestBody.streaming(content), false, requestOptions);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
         }
@@ -1344,25 +1850,195 @@ public class Index extends Searchable {
             query = new Query();
         }
 
-        String cacheKey = null;
+        // Without a cache, there is no need to keep the raw response: decode it as it is received.
+        if (!isCacheEnabled && searchDiskCache == null) {
+            return searchDecoded(query, requestOptions);
+        }
+
+        try {
+            final Pair<byte[], Boolean> response = searchRawCached(query, requestOptions);
+            final JSONObject content = Client._getJSONObject(response.first);
+            if (maxStaleness > 0) {
+                content.put(JSON_KEY_STALE, response.second);
+            }
+            return content;
+        } catch (UnsupportedEncodingException | JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Searches inside the index, going through the search caches.
+     *
+     * @param requestOptions Request-specific options.
+     * @return a byte array containing search results, and whether they are stale
+     * @throws AlgoliaException
+     */
+    private Pair<byte[], Boolean> searchRawCached(@NonNull Query query, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        // NOTE: Keep a reference to the disk cache, as it may be concurrently disabled.
+        final DiskCache diskCache = searchDiskCache;
+        final String cacheKey = query.build();
         byte[] rawResponse = null;
         if (isCacheEnabled) {
-            cacheKey = query.build();
-            rawResponse = searchCache.get(cacheKey);
+            if (maxStaleness > 0) {
+                final Pair<byte[], Boolean> entry = searchCache.getAllowingStale(cacheKey, maxStaleness);
+                if (entry != null) {
+                    if (entry.second) {
+                        revalidate(new Query(query), requestOptions);
+                    }
+                    return entry;
+                }
+            } else {
+                rawResponse = searchCache.get(cacheKey);
+            }
         }
-        try {
-            if (rawResponse == null) {
-                rawResponse = searchRaw(query, requestOptions);
-                if (isCacheEnabled) {
-                    searchCache.put(cacheKey, rawResponse);
+        if (rawResponse == null && diskCache != null) {
+            rawResponse = diskCache.get(diskCacheKey(cacheKey, requestOptions));
+            if (rawResponse != null && isCacheEnabled) {
+                searchCache.put(cacheKey, rawResponse);
+            }
+        }
+        if (rawResponse == null) {
+            rawResponse = searchRaw(query, requestOptions);
+            if (isCacheEnabled) {
+                searchCache.put(cacheKey, rawResponse);
+            }
+            if (diskCache != null) {
+                diskCache.put(diskCacheKey(cacheKey, requestOptions), rawResponse);
+            }
+        }
+        return new Pair<>(rawResponse, false);
+    }
+
+    /**
+     * Refresh the cached response of a search in the background.
+     * At most one refresh is running for a given search at any time.
+     *
+     * @param query          Search parameters.
+     * @param requestOptions Request-specific options.
+     */
+    private void revalidate(@NonNull final Query query, @Nullable final RequestOptions requestOptions) {
+        final String cacheKey = query.build();
+        if (!revalidatingKeys.add(cacheKey)) {
+            return; // already being refreshed
+        }
+        client.requestScheduler.executor(RequestPriority.BACKGROUND_READ).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final byte[] rawResponse = searchRaw(query, requestOptions);
+                    if (isCacheEnabled) {
+                        searchCache.put(cacheKey, rawResponse);
+                    }
+                    final DiskCache diskCache = searchDiskCache;
+                    if (diskCache != null) {
+                        diskCache.put(diskCacheKey(cacheKey, requestOptions), rawResponse);
+                    }
+                } catch (AlgoliaException e) {
+                    // The stale entry will be served until it is too old; nothing else to do.
+                    Log.w(Index.this.getClass().getName(), "Could not revalidate search: " + e.getMessage());
+                } finally {
+                    revalidatingKeys.remove(cacheKey);
                 }
             }
-            return Client._getJSONObject(rawResponse);
-        } catch (UnsupportedEncodingException | JSONException e) {
+        });
+    }
+
+    /**
+     * Compute the key of a search in the disk cache.
+     * Unlike the in-memory cache, the disk cache outlives this object, hence must identify the index explicitly. It
+     * must also identify the API key and request options, as they may restrict what the search returns (e.g. secured
+     * API keys with per-user filters), and they may change between sessions.
+     * <p>
+     * NOTE: The disk cache only stores a hash of the key, so the API key is never written to disk.
+     * </p>
+     *
+     * @param cacheKey       The search's key in the in-memory cache.
+     * @param requestOptions Request-specific options.
+     * @return The key in the disk cache.
+     */
+    private @NonNull String diskCacheKey(@NonNull String cacheKey, @Nullable RequestOptions requestOptions) {
+        final StringBuilder key = new StringBuilder(client.getApplicationID()).append('/').append(rawIndexName)
+                .append('\n').append(client.getApiKey())
+                .append('\n').append(cacheKey);
+        if (requestOptions != null) {
+            // NOTE: Sort the options, so that the key does not depend on the order in which they were set.
+            key.append('\n').append(new TreeMap<>(requestOptions.headers))
+                    .append('\n').append(new TreeMap<>(requestOptions.urlParameters));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Searches inside the index, decoding hits into user-defined objects.
+     *
+     * @param hitDecoder     Decoder for the hits.
+     * @param requestOptions Request-specific options.
+     * @return the search results
+     * @throws AlgoliaException
+     */
+    protected <T> SearchResults<T> search(@Nullable Query query, @NonNull final HitDecoder<T> hitDecoder, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        if (query == null) {
+            query = new Query();
+        }
+        final AbstractClient.ResponseDecoder<SearchResults<T>> decoder = new AbstractClient.ResponseDecoder<SearchResults<T>>() {
+            @Override
+            public SearchResults<T> decode(@NonNull InputStream stream) throws IOException, JSONException {
+                return SearchResults.decode(stream, hitDecoder);
+            }
+        };
+
+        // Without a cache, decode the response as it is received.
+        if (!isCacheEnabled && searchDiskCache == null) {
+            try {
+                String paramsString = query.build();
+                if (paramsString.length() > 0) {
+                    JSONObject body = new JSONObject();
+                    body.put("params", paramsString);
+                    return client.postRequest("/1/indexes/" + encodedIndexName + "/query", /* urlParameters: */ null, body.toString(), true, requestOptions, decoder);
+                } else {
+                    return client.getRequest("/1/indexes/" + encodedIndexName, /* urlParameters: */ null, true, requestOptions, decoder);
+                }
+            } catch (JSONException e) {
+                throw new RuntimeException(e); // should never happen
+            }
+        }
+
+        // With a cache, the raw response is shared with untyped searches.
+        final Pair<byte[], Boolean> response = searchRawCached(query, requestOptions);
+        try {
+            final SearchResults<T> results = decoder.decode(new ByteArrayInputStream(response.first));
+            if (maxStaleness > 0) {
+                results.metadata.put(JSON_KEY_STALE, response.second);
+            }
+            return results;
+        } catch (IOException | JSONException e) {
             throw new AlgoliaException(e.getMessage());
         }
     }
 
+    /**
+     * Searches inside the index, decoding the response on the fly.
+     *
+     * @param requestOptions Request-specific options.
+     * @return a JSONObject containing search results
+     * @throws AlgoliaException
+     */
+    private JSONObject searchDecoded(@NonNull Query query, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+        try {
+            String paramsString = query.build();
+            if (paramsString.length() > 0) {
+                JSONObject body = new JSONObject();
+                body.put("params", paramsString);
+                return client.postRequest("/1/indexes/" + encodedIndexName + "/query", /* urlParameters: */ null, body.toString(), true, requestOptions);
+            } else {
+                return client.getRequest("/1/indexes/" + encodedIndexName, /* urlParameters: */ null, true, requestOptions);
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+
     /**
      * Searches inside the index.
      *
@@ -1400,7 +2076,7 @@ public class Index extends Searchable {
     public JSONObject waitTask(String taskID, long timeToWait) throws AlgoliaException {
         try {
             while (true) {
-                JSONObject obj = client.getRequest("/1/indexes/" + encodedIndexName + "/task/" + URLEncoder.encode(taskID, "UTF-8"), /* urlParameters: */ null, false, /* requestOptions: */ null);
+                JSONObject obj = getTaskStatus(taskID);
                 if (obj.getString("status").equals("published")) {
                     return obj;
                 }
@@ -1415,8 +2091,21 @@ public class Index extends Searchable {
             }
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the status of a task on the server.
+     *
+     * @param taskID the id of the task returned by server
+     * @return the task's status
+     * @throws AlgoliaException
+     */
+    JSONObject getTaskStatus(@NonNull String taskID) throws AlgoliaException {
+        try {
+            return client.getRequest("/1/indexes/" + encodedIndexName + "/task/" + URLEncoder.encode(taskID, "UTF-8"), /* urlParameters: */ null, false, /* requestOptions: */ null);
         } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+            throw new RuntimeException(e); // should never happen
         }
     }
 
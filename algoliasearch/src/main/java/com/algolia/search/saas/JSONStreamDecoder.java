@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Decodes JSON content straight from a stream into <code>org.json</code> objects.
+ * <p>
+ * Compared to reading the whole stream into a byte array, converting it into a string and then parsing the string,
+ * this avoids holding several copies of a potentially large payload in memory at the same time.
+ * </p>
+ */
+class JSONStreamDecoder {
+    /**
+     * Decode a JSON object from a UTF-8 encoded stream.
+     * The stream is read until the end of the object, but not closed.
+     *
+     * @param stream The stream to read.
+     * @return The decoded JSON object.
+     * @throws IOException   If the stream cannot be read.
+     * @throws JSONException If the content is not a valid JSON object.
+     */
+    static @NonNull JSONObject readObject(@NonNull InputStream stream) throws IOException, JSONException {
+        try {
+            return readObject(newReader(stream));
+        } catch (MalformedJsonException | IllegalStateException e) {
+            // NOTE: `JsonReader` throws an `IllegalStateException` when the next token is not of the expected type.
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    /**
+     * Create a reader on a UTF-8 encoded stream.
+     * The reader is lenient, to accept the same inputs as {@link org.json.JSONTokener}.
+     *
+     * @param stream The stream to read.
+     * @return A new reader.
+     * @throws IOException If UTF-8 is not supported (should never happen).
+     */
+    static @NonNull JsonReader newReader(@NonNull InputStream stream) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    /**
+     * Decode a JSON object from a reader positioned at the beginning of an object.
+     *
+     * @param reader The reader to read from.
+     * @return The decoded JSON object.
+     */
+    static @NonNull JSONObject readObject(@NonNull JsonReader reader) throws IOException, JSONException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new JSONException("Expected a JSON object but found " + reader.peek());
+        }
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    /**
+     * Decode a JSON array from a reader positioned at the beginning of an array.
+     *
+     * @param reader The reader to read from.
+     * @return The decoded JSON array.
+     */
+    static @NonNull JSONArray readArray(@NonNull JsonReader reader) throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    /**
+     * Decode any JSON value.
+     *
+     * @param reader The reader to read from.
+     * @return The decoded value, using the same types as <code>org.json</code>: {@link JSONObject}, {@link JSONArray},
+     *         {@link String}, {@link Boolean}, {@link Integer}, {@link Long}, {@link Double} or {@link JSONObject#NULL}.
+     */
+    static @NonNull Object readValue(@NonNull JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected token " + reader.peek());
+        }
+    }
+
+    /**
+     * Convert a number literal into the narrowest type used by {@link org.json.JSONTokener}.
+     *
+     * @param literal The literal to convert.
+     * @return An {@link Integer}, a {@link Long} or a {@link Double}, or the literal itself if it is not a number.
+     */
+    static @NonNull Object parseNumber(@NonNull String literal) {
+        if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
+            try {
+                long longValue = Long.parseLong(literal);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+            } catch (NumberFormatException e) {
+                // Fall through to double parsing.
+            }
+        }
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            return literal;
+        }
+    }
+}
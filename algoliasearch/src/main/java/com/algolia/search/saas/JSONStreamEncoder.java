@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Iterator;
+
+/**
+ * Encodes <code>org.json</code> objects straight into a stream.
+ * <p>
+ * Compared to converting an object to a string and then encoding the string, this avoids holding several copies of
+ * a potentially large payload in memory at the same time. This is the counterpart of {@link JSONStreamDecoder}.
+ * </p>
+ */
+class JSONStreamEncoder {
+    /**
+     * Create a writer on a stream, encoding as UTF-8.
+     * The writer is buffered: it must be flushed once done. Closing it closes the stream.
+     *
+     * @param stream The stream to write to.
+     * @return A new writer.
+     * @throws IOException If UTF-8 is not supported (should never happen).
+     */
+    static @NonNull JsonWriter newWriter(@NonNull OutputStream stream) throws IOException {
+        return new JsonWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")));
+    }
+
+    /**
+     * Encode a JSON object.
+     *
+     * @param writer The writer to write to.
+     * @param object The object to encode.
+     */
+    static void writeObject(@NonNull JsonWriter writer, @NonNull JSONObject object) throws IOException {
+        writer.beginObject();
+        writeMembers(writer, object);
+        writer.endObject();
+    }
+
+    /**
+     * Encode the members of a JSON object, without the enclosing braces. This allows adding extra members.
+     *
+     * @param writer The writer to write to, positioned inside an object.
+     * @param object The object whose members to encode.
+     */
+    static void writeMembers(@NonNull JsonWriter writer, @NonNull JSONObject object) throws IOException {
+        final Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            writer.name(key);
+            writeValue(writer, object.opt(key));
+        }
+    }
+
+    /**
+     * Encode a JSON array.
+     *
+     * @param writer The writer to write to.
+     * @param array  The array to encode.
+     */
+    static void writeArray(@NonNull JsonWriter writer, @NonNull JSONArray array) throws IOException {
+        writer.beginArray();
+        for (int i = 0; i < array.length(); ++i) {
+            writeValue(writer, array.opt(i));
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Encode any JSON value.
+     *
+     * @param writer The writer to write to.
+     * @param value  The value to encode, using the same types as <code>org.json</code>. Values of other types are
+     *               encoded as strings, like {@link JSONObject#toString()} does.
+     */
+    static void writeValue(@NonNull JsonWriter writer, @Nullable Object value) throws IOException {
+        if (value instanceof JSONObject) {
+            writeObject(writer, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray(writer, (JSONArray) value);
+        } else if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else {
+            writer.value(value.toString());
+        }
+    }
+}
@@ -0,0 +1,1078 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable queue of write operations on an index, replayed when the network is available.
+ * <p>
+ * Operations are appended to a write-ahead log on disk: a sequence of append-only segment files, each containing
+ * one JSON record per line. Appends are performed on a dedicated background thread, which syncs the log once for
+ * all the operations queued since its previous sync; the write methods therefore never block on disk I/O. Use
+ * {@link #flush()} to wait until all queued operations are durable.
+ * </p>
+ * <p>
+ * Once {@link #start() started}, the queue replays operations in order through batches, and atomically records the
+ * position of the last replayed operation, so that operations survive process death and are replayed exactly
+ * once (or, if the process dies while a batch is in flight, at least once).
+ * </p>
+ * <p>
+ * Errors never cause valid operations to be lost:
+ * </p>
+ * <ul>
+ *     <li>transient errors (e.g. no network), rate limiting (429) and authentication errors (401, 403, e.g. an
+ *         expired API key) are retried with an exponential backoff; call {@link #retryNow()} (e.g. when connectivity
+ *         returns, or after updating the API key) to retry immediately;</li>
+ *     <li>when a batch is rejected otherwise (e.g. 400), it is split in halves until the faulty operations are
+ *         isolated; only those are dropped, and reported to
+ *         {@link ReplayListener#operationDropped(PersistentWriteQueue, JSONObject, AlgoliaException)}.</li>
+ * </ul>
+ * <p>
+ * Pending operations superseded by a later operation on the same object (i.e. saving or deleting it) are discarded,
+ * and the log is compacted when needed to stay within {@link #getMaxDiskBytes() a bounded size}. Pending operations
+ * may only use three quarters of that bound, the rest being left to discarded operations until a compaction is worth
+ * it; beyond that, new operations are rejected.
+ * </p>
+ * <p>
+ * NOTE: Pending operations are also held in memory, so the disk bound also bounds memory usage.
+ * </p>
+ */
+public class PersistentWriteQueue {
+    /**
+     * Listener for {@link PersistentWriteQueue}.
+     */
+    public interface ReplayListener {
+        /**
+         * Called when a batch has been replayed, either successfully or failing.
+         * WARNING: This is called on a background thread.
+         *
+         * @param queue          The queue where the batch originates from.
+         * @param operationCount Number of operations in the batch.
+         * @param content        The server's response (in case of success), containing the batch's task ID.
+         * @param error          The error (in case of failure). The batch's operations stay queued: they are either
+         *                       retried later, or split into smaller batches.
+         */
+        void batchReplayed(@NonNull PersistentWriteQueue queue, int operationCount, @Nullable JSONObject content, @Nullable AlgoliaException error);
+
+        /**
+         * Called when an operation has been rejected by the server on its own, and is therefore dropped.
+         * WARNING: This is called on a background thread.
+         *
+         * @param queue     The queue where the operation originates from.
+         * @param operation The dropped batch operation.
+         * @param error     The error returned by the server.
+         */
+        void operationDropped(@NonNull PersistentWriteQueue queue, @NonNull JSONObject operation, @NonNull AlgoliaException error);
+    }
+
+    /** Default maximum size of the log on disk (bytes). */
+    public static final long DEFAULT_MAX_DISK_BYTES = 10 * 1024 * 1024;
+
+    /** Default size above which a new segment is started (bytes). */
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 1024 * 1024;
+
+    /** Default maximum number of operations in a replayed batch. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    /** Default delay before the first retry of a failed batch (ms). */
+    public static final long DEFAULT_MIN_RETRY_DELAY = 1000;
+
+    /** Default maximum delay between retries of a failed batch (ms). */
+    public static final long DEFAULT_MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String COMMIT_FILE_NAME = "commit";
+
+    private static final String JSON_KEY_SEQ = "seq";
+    private static final String JSON_KEY_OBJECT_ID = "objectID";
+    private static final String JSON_KEY_OPERATION = "operation";
+
+    /** Approximate size of a record on disk, in addition to its operation (bytes). */
+    private static final int RECORD_OVERHEAD = 64;
+
+    /** Fraction of the log that must be reclaimable for a compaction to take place. */
+    private static final double MIN_RECLAIMABLE_FRACTION = 0.25;
+
+    /** The index where operations are replayed. */
+    private final @NonNull Index index;
+
+    /** Directory holding the log. */
+    private final @NonNull File directory;
+
+    /**
+     * Performs all disk I/O: loading, appending, committing and compacting.
+     * NOTE: A daemon thread is safe here, as the log tolerates the process dying in the middle of any operation.
+     */
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("AlgoliaWriteQueueIO"));
+
+    /** Replays batches, and schedules retries. */
+    private final ScheduledExecutorService replayExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("AlgoliaWriteQueueReplay"));
+
+    private volatile long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+    private volatile long maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long minRetryDelay = DEFAULT_MIN_RETRY_DELAY;
+    private volatile long maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+    private volatile ReplayListener listener;
+
+    // State shared across threads. Guarded by `this`.
+    // ----------------------------------------------
+
+    /** Durable operations not yet replayed, by sequence number. */
+    private final TreeMap<Long, Record> pending = new TreeMap<>();
+
+    /** Pending operations on each object, in order. */
+    private final Map<String, List<Record>> recordsByObjectID = new HashMap<>();
+
+    /** Operations queued but not yet appended to the log. */
+    private List<Record> unflushed = new ArrayList<>();
+
+    /** Operations of the batch being replayed. */
+    private final Set<Record> inFlight = new HashSet<>();
+
+    /** Approximate size of the pending and unflushed operations (bytes). */
+    private long liveBytes;
+
+    /** Approximate size of the pending operations (bytes). */
+    private long pendingBytes;
+
+    /** Number of compactions so far. For testing purposes. */
+    private volatile int compactionCount;
+
+    private boolean loaded;
+    private boolean started;
+    private boolean closed;
+    private boolean flushScheduled;
+    private boolean replayScheduled;
+    private int failedAttempts;
+    private ScheduledFuture<?> retryFuture;
+
+    /** Sequence number of the last operation of a rejected batch being split, or 0 if none. */
+    private long splitUntilSeq;
+
+    /** Size of the batches while splitting a rejected batch. Halved upon rejection, doubled upon success. */
+    private int splitBatchSize;
+
+    /** Error that made the log unusable, if any. */
+    private IOException failure;
+
+    // State confined to the I/O thread.
+    // ---------------------------------
+
+    /** Segments of the log, in order. The last one is the active segment, if open. */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /** Output of the active segment. Null when no segment is open for appending. */
+    private OutputStream activeOutput;
+    private FileOutputStream activeFileOutput;
+
+    private long nextSeq = 1;
+    private long nextGeneration = 1;
+
+    /** Total size of the log on disk (bytes). Written on the I/O thread only. */
+    private volatile long totalBytes;
+
+    /**
+     * Construct a new queue. The log is loaded in the background.
+     *
+     * @param index     The index where operations will be replayed.
+     * @param directory Directory holding the log. It should be dedicated to this queue, and will be created if
+     *                  necessary.
+     */
+    public PersistentWriteQueue(@NonNull Index index, @NonNull File directory) {
+        this.index = index;
+        this.directory = directory;
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------
+    // Settings
+    // ----------------------------------------------------------------------
+
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    /**
+     * Set the maximum size of the log on disk. Once pending operations reach three quarters of this size, new
+     * operations are rejected.
+     *
+     * @param maxDiskBytes The maximum size (bytes). Must be strictly positive.
+     */
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        if (maxDiskBytes <= 0) {
+            throw new IllegalArgumentException("Max disk bytes must be strictly positive");
+        }
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    public long getMaxSegmentBytes() {
+        return maxSegmentBytes;
+    }
+
+    /**
+     * Set the size above which a new segment is started. Smaller segments are reclaimed sooner once replayed.
+     *
+     * @param maxSegmentBytes The maximum size (bytes). Must be strictly positive.
+     */
+    public void setMaxSegmentBytes(long maxSegmentBytes) {
+        if (maxSegmentBytes <= 0) {
+            throw new IllegalArgumentException("Max segment bytes must be strictly positive");
+        }
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the maximum number of operations in a replayed batch.
+     *
+     * @param maxBatchSize The maximum batch size. Must be strictly positive.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Max batch size must be strictly positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getMinRetryDelay() {
+        return minRetryDelay;
+    }
+
+    /**
+     * Set the delay before the first retry of a failed batch. The delay doubles after each consecutive failure.
+     *
+     * @param minRetryDelay The delay (ms). Must be strictly positive.
+     */
+    public void setMinRetryDelay(long minRetryDelay) {
+        if (minRetryDelay <= 0) {
+            throw new IllegalArgumentException("Min retry delay must be strictly positive");
+        }
+        this.minRetryDelay = minRetryDelay;
+    }
+
+    public long getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+
+    /**
+     * Set the maximum delay between retries of a failed batch.
+     *
+     * @param maxRetryDelay The delay (ms). Must be strictly positive.
+     */
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        if (maxRetryDelay <= 0) {
+            throw new IllegalArgumentException("Max retry delay must be strictly positive");
+        }
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    public ReplayListener getReplayListener() {
+        return listener;
+    }
+
+    public void setReplayListener(@Nullable ReplayListener listener) {
+        this.listener = listener;
+    }
+
+    // ----------------------------------------------------------------------
+    // Operations
+    // ----------------------------------------------------------------------
+
+    /**
+     * Queue the addition of an object. Its object ID will be assigned by the server.
+     *
+     * @param object The object to add.
+     * @throws AlgoliaException If the queue is full or unusable.
+     */
+    public void addObject(@NonNull JSONObject object) throws AlgoliaException {
+        try {
+            enqueue(new JSONObject().put("action", "addObject").put("body", object), null);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Queue the saving of an object. This supersedes any pending operation on the same object.
+     *
+     * @param object   New version of the object.
+     * @param objectID Identifier of the object.
+     * @throws AlgoliaException If the queue is full or unusable.
+     */
+    public void saveObject(@NonNull JSONObject object, @NonNull String objectID) throws AlgoliaException {
+        try {
+            enqueue(new JSONObject().put("action", "updateObject").put("objectID", objectID).put("body", object), objectID);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Queue the partial update of an object.
+     *
+     * @param partialObject     New values/operations for the object.
+     * @param objectID          Identifier of the object.
+     * @param createIfNotExists Whether the object should be created if it does not exist already.
+     * @throws AlgoliaException If the queue is full or unusable.
+     */
+    public void partialUpdateObject(@NonNull JSONObject partialObject, @NonNull String objectID, boolean createIfNotExists) throws AlgoliaException {
+        try {
+            enqueue(new JSONObject()
+                    .put("action", createIfNotExists ? "partialUpdateObject" : "partialUpdateObjectNoCreate")
+                    .put("objectID", objectID)
+                    .put("body", partialObject), objectID);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Queue the deletion of an object. This supersedes any pending operation on the same object.
+     *
+     * @param objectID Identifier of the object.
+     * @throws AlgoliaException If the queue is full or unusable.
+     */
+    public void deleteObject(@NonNull String objectID) throws AlgoliaException {
+        try {
+            enqueue(new JSONObject().put("action", "deleteObject").put("body", new JSONObject().put("objectID", objectID)), objectID);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Wait until all the operations queued so far are durable.
+     *
+     * @throws AlgoliaException If the log could not be written.
+     */
+    public void flush() throws AlgoliaException, InterruptedException {
+        try {
+            ioExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw new AlgoliaException("Write queue is unusable", failure);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Replay
+    // ----------------------------------------------------------------------
+
+    /**
+     * Start replaying operations, including those left over by a previous session.
+     */
+    public void start() {
+        synchronized (this) {
+            started = true;
+        }
+        scheduleReplay();
+    }
+
+    /**
+     * Retry a failed batch immediately, instead of waiting for the backoff delay to expire. This is typically called
+     * when connectivity returns.
+     */
+    public synchronized void retryNow() {
+        if (retryFuture != null && retryFuture.cancel(false)) {
+            retryFuture = null;
+            failedAttempts = 0;
+            replayExecutor.execute(replayTask);
+        }
+    }
+
+    /**
+     * Stop replaying operations and release resources. Waits for the batch being replayed, if any, and for queued
+     * operations to be appended to the log.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            if (retryFuture != null) {
+                retryFuture.cancel(false);
+                retryFuture = null;
+            }
+        }
+        replayExecutor.shutdown();
+        replayExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeActiveSegment();
+            }
+        });
+        ioExecutor.shutdown();
+        ioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the number of operations waiting to be replayed.
+     *
+     * @return The number of pending operations.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size() + unflushed.size();
+    }
+
+    /**
+     * Get the current size of the log on disk.
+     *
+     * @return The size (bytes).
+     */
+    public long getDiskUsage() {
+        return totalBytes;
+    }
+
+    /**
+     * Get the number of times the log has been compacted.
+     *
+     * @return The number of compactions.
+     */
+    int getCompactionCount() {
+        return compactionCount;
+    }
+
+    // ----------------------------------------------------------------------
+    // Implementation
+    // ----------------------------------------------------------------------
+
+    /** A queued operation. */
+    private static class Record {
+        /** Sequence number. Assigned when the record is appended to the log. */
+        long seq;
+
+        /** Identifier of the object affected by the operation, or null if not known in advance. */
+        final @Nullable String objectID;
+
+        /** Whether this operation makes previous operations on the same object pointless. */
+        final boolean supersedes;
+
+        /** Serialized batch operation. */
+        final @NonNull String operation;
+
+        /** Approximate size of the record on disk (bytes). */
+        final int size;
+
+        Record(long seq, @Nullable String objectID, @NonNull JSONObject operation) {
+            final String action = operation.optString("action");
+            this.seq = seq;
+            this.objectID = objectID;
+            this.supersedes = objectID != null && (action.equals("updateObject") || action.equals("deleteObject"));
+            this.operation = operation.toString();
+            this.size = utf8Length(this.operation) + (objectID != null ? utf8Length(objectID) : 0) + RECORD_OVERHEAD;
+        }
+
+        @NonNull String toLine() {
+            return "{\"" + JSON_KEY_SEQ + "\":" + seq
+                    + (objectID != null ? ",\"" + JSON_KEY_OBJECT_ID + "\":" + JSONObject.quote(objectID) : "")
+                    + ",\"" + JSON_KEY_OPERATION + "\":" + operation + "}\n";
+        }
+    }
+
+    /** A segment of the log. */
+    private static class Segment {
+        final long generation;
+        final @NonNull File file;
+
+        /** Greatest sequence number in the segment. */
+        long lastSeq;
+
+        /** Size of the segment (bytes). */
+        long bytes;
+
+        Segment(long generation, @NonNull File file) {
+            this.generation = generation;
+            this.file = file;
+        }
+    }
+
+    private void enqueue(@NonNull JSONObject operation, @Nullable String objectID) throws AlgoliaException {
+        final Record record = new Record(0, objectID, operation);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Write queue is closed");
+            }
+            if (failure != null) {
+                throw new AlgoliaException("Write queue is unusable", failure);
+            }
+            if (liveBytes + record.size > maxDiskBytes * (1 - MIN_RECLAIMABLE_FRACTION)) {
+                throw new AlgoliaException("Write queue is full");
+            }
+            unflushed.add(record);
+            liveBytes += record.size;
+            if (!flushScheduled) {
+                flushScheduled = true;
+                ioExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        append();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Add a durable record to the pending operations, discarding the operations it supersedes.
+     * Operations being replayed cannot be discarded, as they may already have reached the server.
+     */
+    private synchronized void apply(@NonNull Record record) {
+        if (record.objectID != null) {
+            List<Record> records = recordsByObjectID.get(record.objectID);
+            if (records == null) {
+                records = new ArrayList<>();
+                recordsByObjectID.put(record.objectID, records);
+            }
+            if (record.supersedes) {
+                for (Iterator<Record> iterator = records.iterator(); iterator.hasNext(); ) {
+                    final Record previous = iterator.next();
+                    if (!inFlight.contains(previous)) {
+                        pending.remove(previous.seq);
+                        liveBytes -= previous.size;
+                        pendingBytes -= previous.size;
+                        iterator.remove();
+                    }
+                }
+            }
+            records.add(record);
+        }
+        pending.put(record.seq, record);
+        pendingBytes += record.size;
+    }
+
+    /**
+     * Remove replayed records from the pending operations.
+     */
+    private synchronized void remove(@NonNull List<Record> records) {
+        for (Record record : records) {
+            pending.remove(record.seq);
+            liveBytes -= record.size;
+            pendingBytes -= record.size;
+            if (record.objectID != null) {
+                final List<Record> objectRecords = recordsByObjectID.get(record.objectID);
+                objectRecords.remove(record);
+                if (objectRecords.isEmpty()) {
+                    recordsByObjectID.remove(record.objectID);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the log: read the commit position and all segments, truncating a partially written record at the end of a
+     * segment, if any. Runs on the I/O thread.
+     */
+    private void load() {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+            final long committed = readCommit();
+            final File[] files = directory.listFiles();
+            if (files == null) {
+                throw new IOException("Could not list directory " + directory);
+            }
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(TEMP_FILE_SUFFIX)) {
+                    file.delete();
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file));
+                    } catch (NumberFormatException e) {
+                        // Not ours: ignore.
+                    }
+                }
+            }
+            Collections.sort(segments, new Comparator<Segment>() {
+                @Override
+                public int compare(Segment lhs, Segment rhs) {
+                    return lhs.generation < rhs.generation ? -1 : (lhs.generation == rhs.generation ? 0 : 1);
+                }
+            });
+            // NOTE: After a compaction, records are not ordered across segments; and if the process died during a
+            // compaction, some records may appear twice.
+            final TreeMap<Long, Record> records = new TreeMap<>();
+            long maxSeq = committed;
+            for (Iterator<Segment> iterator = segments.iterator(); iterator.hasNext(); ) {
+                final Segment segment = iterator.next();
+                readSegment(segment, committed, records);
+                maxSeq = Math.max(maxSeq, segment.lastSeq);
+                nextGeneration = segment.generation + 1;
+                if (segment.lastSeq <= committed) {
+                    deleteFile(segment.file);
+                    iterator.remove();
+                } else {
+                    totalBytes += segment.bytes;
+                }
+            }
+            nextSeq = maxSeq + 1;
+            synchronized (this) {
+                for (Record record : records.values()) {
+                    liveBytes += record.size;
+                    apply(record);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        }
+        synchronized (this) {
+            loaded = true;
+        }
+        scheduleReplay();
+    }
+
+    private void readSegment(@NonNull Segment segment, long committed, @NonNull Map<Long, Record> records) throws IOException {
+        long offset = 0;
+        boolean truncated = false;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(segment.file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Record record;
+                try {
+                    final JSONObject json = new JSONObject(line);
+                    record = new Record(json.getLong(JSON_KEY_SEQ), json.optString(JSON_KEY_OBJECT_ID, null), json.getJSONObject(JSON_KEY_OPERATION));
+                } catch (JSONException e) {
+                    // Only the end of a segment may be corrupt, when the process died while appending.
+                    truncated = true;
+                    break;
+                }
+                offset += utf8Length(line) + 1;
+                segment.lastSeq = Math.max(segment.lastSeq, record.seq);
+                if (record.seq > committed && !records.containsKey(record.seq)) {
+                    records.put(record.seq, record);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (truncated) {
+            final RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                file.setLength(offset);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+        segment.bytes = segment.file.length();
+    }
+
+    /**
+     * Append queued records to the log, sync it, then make them available for replay. Runs on the I/O thread.
+     */
+    private void append() {
+        final List<Record> records;
+        synchronized (this) {
+            records = unflushed;
+            unflushed = new ArrayList<>();
+            flushScheduled = false;
+            if (failure != null || records.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            long bytes = 0;
+            for (Record record : records) {
+                record.seq = nextSeq++;
+                bytes += record.size;
+            }
+            if (totalBytes + bytes > maxDiskBytes && isCompactionWorthIt()) {
+                compact();
+            }
+            for (Record record : records) {
+                final Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (activeOutput == null || segment.bytes >= maxSegmentBytes) {
+                    openSegment();
+                }
+                final byte[] data = record.toLine().getBytes("UTF-8");
+                activeOutput.write(data);
+                final Segment active = segments.get(segments.size() - 1);
+                active.bytes += data.length;
+                active.lastSeq = record.seq;
+                totalBytes += data.length;
+            }
+            activeOutput.flush();
+            activeFileOutput.getFD().sync();
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            return;
+        }
+        synchronized (this) {
+            for (Record record : records) {
+                apply(record);
+            }
+        }
+        scheduleReplay();
+    }
+
+    /** Start a new active segment, syncing and closing the previous one. Runs on the I/O thread. */
+    private void openSegment() throws IOException {
+        if (activeOutput != null) {
+            activeOutput.flush();
+            activeFileOutput.getFD().sync();
+            closeActiveSegment();
+        }
+        final Segment segment = new Segment(nextGeneration++, new File(directory, segmentName(nextGeneration - 1)));
+        activeFileOutput = new FileOutputStream(segment.file, true);
+        activeOutput = new BufferedOutputStream(activeFileOutput, 64 * 1024);
+        segments.add(segment);
+    }
+
+    /** Close the active segment, if any. Runs on the I/O thread. */
+    private void closeActiveSegment() {
+        if (activeOutput != null) {
+            try {
+                activeOutput.close();
+            } catch (IOException e) {
+                // Nothing to do: it has already been synced, or will be discarded.
+            }
+            activeOutput = null;
+            activeFileOutput = null;
+        }
+    }
+
+    /**
+     * Whether compacting the log would reclaim enough space. Compacting a log made mostly of pending records would
+     * rewrite it for little or no gain.
+     */
+    private boolean isCompactionWorthIt() {
+        final long reclaimableBytes;
+        synchronized (this) {
+            reclaimableBytes = totalBytes - pendingBytes;
+        }
+        return reclaimableBytes >= totalBytes * MIN_RECLAIMABLE_FRACTION;
+    }
+
+    /**
+     * Rewrite the log with only the pending records, dropping replayed and superseded ones. The new segment is
+     * written to a temporary file, synced, then renamed; only then are the old segments deleted. Runs on the I/O
+     * thread.
+     */
+    private void compact() throws IOException {
+        final List<Record> records;
+        synchronized (this) {
+            records = new ArrayList<>(pending.values());
+        }
+        closeActiveSegment();
+        final Segment segment = new Segment(nextGeneration++, new File(directory, segmentName(nextGeneration - 1)));
+        final File tmpFile = new File(segment.file.getPath() + TEMP_FILE_SUFFIX);
+        final FileOutputStream fileOutput = new FileOutputStream(tmpFile);
+        try {
+            final OutputStream output = new BufferedOutputStream(fileOutput, 64 * 1024);
+            for (Record record : records) {
+                final byte[] data = record.toLine().getBytes("UTF-8");
+                output.write(data);
+                segment.bytes += data.length;
+                segment.lastSeq = Math.max(segment.lastSeq, record.seq);
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        if (!tmpFile.renameTo(segment.file)) {
+            throw new IOException("Could not save segment " + segment.file);
+        }
+        for (Segment oldSegment : segments) {
+            deleteFile(oldSegment.file);
+        }
+        segments.clear();
+        segments.add(segment);
+        totalBytes = segment.bytes;
+        compactionCount++;
+    }
+
+    /**
+     * Atomically record the position of the last replayed operation, then delete the segments that only contain
+     * replayed operations. Runs on the I/O thread.
+     */
+    private void commit(long seq) throws IOException {
+        final byte[] data;
+        try {
+            data = new JSONObject().put(JSON_KEY_SEQ, seq).toString().getBytes("UTF-8");
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+        final File commitFile = new File(directory, COMMIT_FILE_NAME);
+        final File tmpFile = new File(directory, COMMIT_FILE_NAME + TEMP_FILE_SUFFIX);
+        final FileOutputStream output = new FileOutputStream(tmpFile);
+        try {
+            output.write(data);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmpFile.renameTo(commitFile)) {
+            throw new IOException("Could not save commit position " + commitFile);
+        }
+        for (Iterator<Segment> iterator = segments.iterator(); iterator.hasNext(); ) {
+            final Segment segment = iterator.next();
+            if (segment.lastSeq <= seq) {
+                if (!iterator.hasNext()) {
+                    closeActiveSegment();
+                }
+                deleteFile(segment.file);
+                totalBytes -= segment.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Read the position of the last replayed operation.
+     *
+     * @return The sequence number of the last replayed operation, or 0 if none.
+     */
+    private long readCommit() throws IOException {
+        final File commitFile = new File(directory, COMMIT_FILE_NAME);
+        if (!commitFile.exists()) {
+            return 0;
+        }
+        final FileInputStream input = new FileInputStream(commitFile);
+        try {
+            return JSONStreamDecoder.readObject(input).getLong(JSON_KEY_SEQ);
+        } catch (JSONException e) {
+            throw new IOException("Corrupt commit position " + commitFile, e);
+        } finally {
+            input.close();
+        }
+    }
+
+    /** Schedule a replay, unless one is already scheduled or running. */
+    private synchronized void scheduleReplay() {
+        if (started && loaded && !closed && !replayScheduled && !pending.isEmpty()) {
+            replayScheduled = true;
+            replayExecutor.execute(replayTask);
+        }
+    }
+
+    private final Runnable replayTask = new Runnable() {
+        @Override
+        public void run() {
+            replay();
+        }
+    };
+
+    /**
+     * Replay the next batch of pending operations. Runs on the replay thread.
+     */
+    private void replay() {
+        final List<Record> batch = new ArrayList<>();
+        synchronized (this) {
+            retryFuture = null;
+            if (closed || pending.isEmpty()) {
+                replayScheduled = false;
+                return;
+            }
+            if (splitUntilSeq != 0 && pending.firstKey() > splitUntilSeq) {
+                splitUntilSeq = 0; // the rejected batch has been sorted out
+            }
+            final int batchSize = splitUntilSeq != 0 ? splitBatchSize : maxBatchSize;
+            for (Record record : pending.values()) {
+                if (batch.size() >= batchSize || (splitUntilSeq != 0 && record.seq > splitUntilSeq)) {
+                    break;
+                }
+                batch.add(record);
+            }
+            inFlight.addAll(batch);
+        }
+        JSONObject content = null;
+        AlgoliaException error = null;
+        try {
+            final JSONArray operations = new JSONArray();
+            for (Record record : batch) {
+                operations.put(new JSONObject(record.operation));
+            }
+            content = index.batch(operations, /* requestOptions: */ null);
+        } catch (JSONException e) {
+            error = new AlgoliaException(e.getMessage());
+        } catch (AlgoliaException e) {
+            error = e;
+        }
+        if (error != null && isRetryable(error)) {
+            synchronized (this) {
+                inFlight.clear();
+                final long delay = Math.min(minRetryDelay << Math.min(failedAttempts, 20), maxRetryDelay);
+                failedAttempts++;
+                if (closed) {
+                    replayScheduled = false;
+                } else {
+                    retryFuture = replayExecutor.schedule(replayTask, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+            notifyListener(batch.size(), null, error);
+            return;
+        }
+        final long lastSeq = batch.get(batch.size() - 1).seq;
+        if (error != null && batch.size() > 1) {
+            // Isolate the faulty operations by replaying the rejected batch in smaller batches.
+            synchronized (this) {
+                inFlight.clear();
+                splitUntilSeq = Math.max(splitUntilSeq, lastSeq);
+                splitBatchSize = (batch.size() + 1) / 2;
+                if (closed) {
+                    replayScheduled = false;
+                } else {
+                    replayExecutor.execute(replayTask);
+                }
+            }
+            notifyListener(batch.size(), null, error);
+            return;
+        }
+        // The batch is done: either it succeeded, or it is a single operation that was rejected.
+        try {
+            ioExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    commit(lastSeq);
+                    return null;
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        remove(batch);
+        synchronized (this) {
+            inFlight.clear();
+            failedAttempts = 0;
+            if (error == null && splitUntilSeq != 0) {
+                // The next batch is the sibling of a bigger half of the rejected batch: grow back, so that
+                // isolating a faulty operation only costs a logarithmic number of requests.
+                splitBatchSize = Math.min(splitBatchSize * 2, maxBatchSize);
+            }
+            if (closed || pending.isEmpty()) {
+                replayScheduled = false;
+            } else {
+                replayExecutor.execute(replayTask);
+            }
+        }
+        if (error == null) {
+            notifyListener(batch.size(), content, null);
+        } else {
+            final ReplayListener listener = this.listener;
+            if (listener != null) {
+                try {
+                    listener.operationDropped(this, new JSONObject(batch.get(0).operation), error);
+                } catch (JSONException e) {
+                    throw new RuntimeException(e); // should never happen
+                }
+            }
+        }
+    }
+
+    /**
+     * Test whether a replay error may be resolved by retrying later.
+     * Besides transient errors, this covers rate limiting and authentication errors (e.g. an expired API key).
+     */
+    private static boolean isRetryable(@NonNull AlgoliaException error) {
+        final int statusCode = error.getStatusCode();
+        return error.isTransient() || statusCode == 401 || statusCode == 403 || statusCode == 429;
+    }
+
+    private void notifyListener(int operationCount, @Nullable JSONObject content, @Nullable AlgoliaException error) {
+        final ReplayListener listener = this.listener;
+        if (listener != null) {
+            listener.batchReplayed(this, operationCount, content, error);
+        }
+    }
+
+    private static @NonNull String segmentName(long generation) {
+        return String.format(Locale.US, "%020d", generation) + SEGMENT_SUFFIX;
+    }
+
+    private static void deleteFile(@NonNull File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private static int utf8Length(@NonNull String string) {
+        try {
+            return string.getBytes("UTF-8").length;
+        } catch (IOException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+}
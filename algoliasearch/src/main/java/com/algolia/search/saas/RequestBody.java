@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonWriter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The JSON body of a request.
+ * <p>
+ * Most bodies are small, and are built as a string then sent with a known length. Potentially large bodies (like
+ * batches of objects) are instead serialized straight to the connection when the request is sent, so that they are
+ * never materialized as a whole in memory.
+ * </p>
+ * <p>
+ * In both cases, a top-level <code>apiKey</code> member can be injected without parsing the body.
+ * </p>
+ */
+class RequestBody {
+    /** Name of the member where the API key is injected. */
+    private static final String API_KEY_MEMBER = "apiKey";
+
+    /** The body as a string, if it is not streamed. */
+    private final @Nullable String json;
+
+    /** The object to stream, if the body is streamed. */
+    private final @Nullable JSONObject object;
+
+    private RequestBody(@Nullable String json, @Nullable JSONObject object) {
+        this.json = json;
+        this.object = object;
+    }
+
+    /**
+     * Create a body from a string.
+     *
+     * @param json The JSON string, or null.
+     * @return A new body, or null if <code>json</code> is null.
+     */
+    static @Nullable RequestBody of(@Nullable String json) {
+        return json == null ? null : new RequestBody(json, null);
+    }
+
+    /**
+     * Create a body streamed from an object.
+     * <p>
+     * WARNING: The object is serialized when the request is sent (possibly several times, once per host), so it must
+     * not be modified until the request has completed.
+     * </p>
+     *
+     * @param object The object to stream.
+     * @return A new body.
+     */
+    static @NonNull RequestBody streaming(@NonNull JSONObject object) {
+        return new RequestBody(null, object);
+    }
+
+    /**
+     * Whether this body is streamed, i.e. of unknown length.
+     */
+    boolean isStreamed() {
+        return object != null;
+    }
+
+    /**
+     * Encode this body. Only valid for bodies that are not streamed.
+     *
+     * @param apiKey API key to inject into the body, or null.
+     * @return The UTF-8 encoded body.
+     * @throws JSONException If the API key cannot be injected, because the body is not an object.
+     */
+    @NonNull byte[] toBytes(@Nullable String apiKey) throws JSONException, UnsupportedEncodingException {
+        if (json == null) {
+            throw new IllegalStateException("Streamed bodies cannot be encoded as a whole");
+        }
+        final String body = apiKey == null ? json : injectMember(json, API_KEY_MEMBER, apiKey);
+        return body.getBytes("UTF-8");
+    }
+
+    /**
+     * Get a writer streaming this body. Only valid for streamed bodies.
+     *
+     * @param apiKey API key to inject into the body, or null.
+     * @return A writer for this body.
+     */
+    @NonNull HttpRequest.BodyWriter writer(@Nullable final String apiKey) {
+        final JSONObject object = this.object;
+        if (object == null) {
+            throw new IllegalStateException("Only streamed bodies can be written");
+        }
+        return new HttpRequest.BodyWriter() {
+            @Override
+            public void writeTo(@NonNull OutputStream stream) throws IOException {
+                // NOTE: The writer is flushed but not closed, as the stream belongs to the caller.
+                final JsonWriter writer = JSONStreamEncoder.newWriter(stream);
+                writer.beginObject();
+                if (apiKey != null) {
+                    writer.name(API_KEY_MEMBER).value(apiKey);
+                }
+                JSONStreamEncoder.writeMembers(writer, object);
+                writer.endObject();
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Compress an encoded body with gzip.
+     *
+     * @param body The body to compress.
+     * @return The compressed body.
+     */
+    static @NonNull byte[] gzip(@NonNull byte[] body) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(body.length / 4 + 64);
+        final GZIPOutputStream gzip = new GZIPOutputStream(output);
+        gzip.write(body);
+        gzip.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Compress a streamed body with gzip, as it is written.
+     *
+     * @param writer The writer producing the body.
+     * @return A writer producing the compressed body.
+     */
+    static @NonNull HttpRequest.BodyWriter gzip(@NonNull final HttpRequest.BodyWriter writer) {
+        return new HttpRequest.BodyWriter() {
+            @Override
+            public void writeTo(@NonNull OutputStream stream) throws IOException {
+                // NOTE: The gzip stream is finished but not closed, as the underlying stream belongs to the caller.
+                final GZIPOutputStream gzip = new GZIPOutputStream(stream);
+                writer.writeTo(gzip);
+                gzip.finish();
+            }
+        };
+    }
+
+    /**
+     * Add a string member at the beginning of a serialized JSON object, without parsing it.
+     *
+     * @param json  The serialized object.
+     * @param name  The member's name.
+     * @param value The member's value.
+     * @return The serialized object, with the new member.
+     * @throws JSONException If <code>json</code> is not an object.
+     */
+    static @NonNull String injectMember(@NonNull String json, @NonNull String name, @NonNull String value) throws JSONException {
+        final int start = skipWhitespace(json, 0);
+        if (start >= json.length() || json.charAt(start) != '{') {
+            throw new JSONException("Not a JSON object");
+        }
+        final int next = skipWhitespace(json, start + 1);
+        final boolean isEmpty = next < json.length() && json.charAt(next) == '}';
+        final StringBuilder builder = new StringBuilder(json.length() + name.length() + value.length() + 8);
+        builder.append('{').append(JSONObject.quote(name)).append(':').append(JSONObject.quote(value));
+        if (!isEmpty) {
+            builder.append(',');
+        }
+        builder.append(json, start + 1, json.length());
+        return builder.toString();
+    }
+
+    private static int skipWhitespace(@NonNull String json, int index) {
+        while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+            ++index;
+        }
+        return index;
+    }
+}
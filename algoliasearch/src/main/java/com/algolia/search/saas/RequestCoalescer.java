@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deduplicates identical requests while they are in flight ("single flight").
+ * <p>
+ * The first request for a given key is actually started; subsequent requests with the same key made before it
+ * completes simply subscribe to it, and all subscribers are notified of the same result. Cancellation is
+ * reference-counted: cancelling a subscription only detaches its handler, and the underlying request is cancelled
+ * when its last subscriber cancels.
+ * </p>
+ * <p>
+ * NOTE: All subscribers receive the same {@link JSONObject} instance, which should therefore not be modified.
+ * </p>
+ */
+class RequestCoalescer {
+    /** Starts the request shared by all the subscribers of a flight. */
+    interface RequestFactory {
+        /**
+         * Start the underlying request.
+         *
+         * @param completionHandler The handler to notify upon completion.
+         * @return The started request.
+         */
+        @NonNull Request start(@NonNull CompletionHandler completionHandler);
+    }
+
+    /** Requests in flight, by key. Guarded by `this`. */
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    /**
+     * Execute a request, or subscribe to an identical request already in flight.
+     *
+     * @param key               Key identifying the request. Requests with equal keys must be interchangeable.
+     * @param completionHandler The handler to notify of the request's outcome.
+     * @param factory           Starts the request if none is in flight for this key.
+     * @return A cancellable subscription to the request.
+     */
+    @NonNull Request execute(@NonNull String key, @Nullable CompletionHandler completionHandler, @NonNull RequestFactory factory) {
+        final Flight flight;
+        final Subscription subscription;
+        final boolean isNewFlight;
+        synchronized (this) {
+            Flight existingFlight = flights.get(key);
+            isNewFlight = existingFlight == null;
+            if (isNewFlight) {
+                existingFlight = new Flight(key);
+                flights.put(key, existingFlight);
+            }
+            flight = existingFlight;
+            subscription = new Subscription(flight, completionHandler);
+            flight.subscriptions.add(subscription);
+        }
+        if (isNewFlight) {
+            // NOTE: Start the request outside the lock, since it may complete synchronously.
+            final Request request;
+            try {
+                request = factory.start(flight);
+            } catch (RuntimeException e) {
+                // The flight will never complete: fail the subscribers who joined it meanwhile, and let the caller
+                // see the exception.
+                synchronized (this) {
+                    flight.subscriptions.remove(subscription);
+                }
+                flight.requestCompleted(null, new AlgoliaException(e.getMessage(), e));
+                throw e;
+            }
+            synchronized (this) {
+                flight.request = request;
+                if (flight.cancelled) {
+                    request.cancel();
+                }
+            }
+        }
+        return subscription;
+    }
+
+    /**
+     * Get the number of requests currently in flight.
+     *
+     * @return The number of distinct requests in flight.
+     */
+    synchronized int getFlightCount() {
+        return flights.size();
+    }
+
+    /** A request in flight, shared by one or more subscriptions. */
+    private class Flight implements CompletionHandler {
+        final @NonNull String key;
+        final List<Subscription> subscriptions = new ArrayList<>();
+        Request request;
+        boolean cancelled;
+
+        Flight(@NonNull String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            final List<Subscription> subscribers;
+            synchronized (RequestCoalescer.this) {
+                detach();
+                subscribers = new ArrayList<>(subscriptions);
+                subscriptions.clear();
+            }
+            for (Subscription subscription : subscribers) {
+                subscription.deliver(content, error);
+            }
+        }
+
+        /** Remove this flight from the registry, so that new requests start a new flight. Must hold the lock. */
+        void detach() {
+            if (flights.get(key) == this) {
+                flights.remove(key);
+            }
+        }
+    }
+
+    /** A subscriber to a flight. */
+    private class Subscription implements Request {
+        private final @NonNull Flight flight;
+        private final @Nullable CompletionHandler completionHandler;
+        private boolean finished;
+        private boolean cancelled;
+
+        Subscription(@NonNull Flight flight, @Nullable CompletionHandler completionHandler) {
+            this.flight = flight;
+            this.completionHandler = completionHandler;
+        }
+
+        void deliver(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            synchronized (RequestCoalescer.this) {
+                if (cancelled) {
+                    return;
+                }
+                finished = true;
+            }
+            if (completionHandler != null) {
+                completionHandler.requestCompleted(content, error);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (RequestCoalescer.this) {
+                if (finished || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                flight.subscriptions.remove(this);
+                // Cancel the underlying request when nobody is interested anymore.
+                if (flight.subscriptions.isEmpty() && !flight.cancelled) {
+                    flight.cancelled = true;
+                    flight.detach();
+                    if (flight.request != null) {
+                        flight.request.cancel();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            synchronized (RequestCoalescer.this) {
+                return finished || cancelled;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (RequestCoalescer.this) {
+                return cancelled;
+            }
+        }
+    }
+}
@@ -102,6 +102,39 @@ public class RequestOptions {
         return urlParameters.get(name);
     }
 
+    // Compression
+    // -----------
+
+    /** Minimum size of the request body to compress it, or null to use the client's setting. */
+    @Nullable
+    Integer requestCompressionThreshold;
+
+    /**
+     * Override the client's request compression threshold for this request.
+     *
+     * @param threshold Minimum size of the request body to compress it (bytes),
+     *                  {@link AbstractClient#REQUEST_COMPRESSION_DISABLED} to disable compression,
+     *                  or `null` to use the client's setting.
+     * @see AbstractClient#setRequestCompressionThreshold(int)
+     */
+    public RequestOptions setRequestCompressionThreshold(@Nullable Integer threshold) {
+        if (threshold != null && threshold < 0 && threshold != AbstractClient.REQUEST_COMPRESSION_DISABLED) {
+            throw new IllegalArgumentException("Threshold cannot be negative");
+        }
+        this.requestCompressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Get the request compression threshold for this request.
+     *
+     * @return The threshold (bytes), {@link AbstractClient#REQUEST_COMPRESSION_DISABLED}, or `null` if the client's
+     *         setting applies.
+     */
+    public @Nullable Integer getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
     // Debug
     // -----
 
@@ -117,7 +150,14 @@ public class RequestOptions {
     public boolean equals(Object obj) {
         if (!(obj instanceof RequestOptions)) return false;
         RequestOptions another = (RequestOptions)obj;
-        return this.headers.equals(another.headers);
+        return this.headers.equals(another.headers)
+                && this.urlParameters.equals(another.urlParameters)
+                && (this.requestCompressionThreshold == null ? another.requestCompressionThreshold == null : this.requestCompressionThreshold.equals(another.requestCompressionThreshold));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * headers.hashCode() + urlParameters.hashCode();
     }
 
     // Construction
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+/**
+ * Priority of an asynchronous request, determining the lane it is scheduled on.
+ * <p>
+ * Each lane has its own concurrency limit (see {@link AbstractClient#setMaxConcurrentRequests(RequestPriority, int)}),
+ * so that long-running background work never delays user-facing searches. When several lanes have room for more
+ * requests, higher priorities are dispatched first.
+ * </p>
+ */
+public enum RequestPriority {
+    /** User-facing searches, whose latency is directly perceived. */
+    INTERACTIVE(4),
+    /** Reads nobody is actively waiting for, e.g. browsing or refreshing caches. */
+    BACKGROUND_READ(2),
+    /** Indexing operations. */
+    WRITE(2),
+    /** Long polling loops, e.g. waiting for a task to be published. */
+    POLLING(2);
+
+    /** Default maximum number of concurrent requests in this lane. */
+    final int defaultMaxConcurrency;
+
+    RequestPriority(int defaultMaxConcurrency) {
+        this.defaultMaxConcurrency = defaultMaxConcurrency;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Schedules asynchronous requests in lanes, by priority.
+ * <p>
+ * Each lane queues its tasks and runs at most a given number of them at the same time; tasks are then handed over to
+ * the client's search executor, read at dispatch time. When a task completes, the next task is dispatched, starting
+ * with the highest priority lanes.
+ * </p>
+ */
+class RequestScheduler {
+    /** A lane of tasks with a given priority. Guarded by the scheduler. */
+    private static class Lane {
+        final Queue<Runnable> queue = new ArrayDeque<>();
+        int maxConcurrency;
+        int running = 0;
+
+        Lane(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+    }
+
+    /** The client whose executor runs the tasks. */
+    private final @NonNull AbstractClient client;
+
+    /** Lanes, by priority. */
+    private final Map<RequestPriority, Lane> lanes = new EnumMap<>(RequestPriority.class);
+
+    /** Executors feeding each lane. */
+    private final Map<RequestPriority, Executor> executors = new EnumMap<>(RequestPriority.class);
+
+    RequestScheduler(@NonNull AbstractClient client) {
+        this.client = client;
+        for (final RequestPriority priority : RequestPriority.values()) {
+            lanes.put(priority, new Lane(priority.defaultMaxConcurrency));
+            executors.put(priority, new Executor() {
+                @Override
+                public void execute(@NonNull Runnable command) {
+                    enqueue(priority, command);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get an executor scheduling tasks with a given priority.
+     *
+     * @param priority The tasks' priority.
+     * @return An executor for that priority.
+     */
+    @NonNull Executor executor(@NonNull RequestPriority priority) {
+        return executors.get(priority);
+    }
+
+    synchronized int getMaxConcurrency(@NonNull RequestPriority priority) {
+        return lanes.get(priority).maxConcurrency;
+    }
+
+    void setMaxConcurrency(@NonNull RequestPriority priority, int maxConcurrency) {
+        synchronized (this) {
+            lanes.get(priority).maxConcurrency = maxConcurrency;
+        }
+        dispatch();
+    }
+
+    private void enqueue(@NonNull RequestPriority priority, @NonNull Runnable task) {
+        synchronized (this) {
+            lanes.get(priority).queue.add(task);
+        }
+        dispatch();
+    }
+
+    /**
+     * Hand over queued tasks to the executor, as long as their lanes allow it.
+     */
+    private void dispatch() {
+        while (true) {
+            final Lane lane;
+            final Runnable task;
+            synchronized (this) {
+                Lane nextLane = null;
+                // NOTE: Lanes are iterated by decreasing priority.
+                for (Lane candidate : lanes.values()) {
+                    if (!candidate.queue.isEmpty() && candidate.running < candidate.maxConcurrency) {
+                        nextLane = candidate;
+                        break;
+                    }
+                }
+                if (nextLane == null) {
+                    return;
+                }
+                lane = nextLane;
+                task = lane.queue.remove();
+                lane.running++;
+            }
+            // NOTE: Execute outside the lock, as the executor may run the task synchronously.
+            try {
+                client.searchExecutorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            synchronized (RequestScheduler.this) {
+                                lane.running--;
+                            }
+                            dispatch();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    lane.running--;
+                }
+                throw e;
+            }
+        }
+    }
+}
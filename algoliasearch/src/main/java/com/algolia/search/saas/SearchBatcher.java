@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges searches issued within a short time window into a single multiple queries request.
+ * <p>
+ * The first search starts a batch, which is sent when the batching window expires or when it reaches the maximum
+ * batch size, whichever comes first. Each search is then notified of its own result. Cancellation is tracked per
+ * search: a cancelled search is removed from its batch if the batch has not been sent yet; otherwise its result is
+ * discarded, and the underlying request is cancelled when all searches in the batch have been cancelled.
+ * </p>
+ */
+class SearchBatcher {
+    /** The client sending the batches. */
+    private final @NonNull Client client;
+
+    /** Schedules the sending of batches. Lazily created; its daemon thread lives as long as the client. Guarded by `this`. */
+    private ScheduledExecutorService scheduler;
+
+    /** Batch currently accepting searches, if any. Guarded by `this`. */
+    private Batch openBatch;
+
+    SearchBatcher(@NonNull Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Add a search to the current batch, or start a new batch.
+     *
+     * @param query             The search to perform.
+     * @param completionHandler The handler to notify of the search's outcome.
+     * @param window            Time to wait for other searches before sending a new batch (ms).
+     * @param maxBatchSize      Maximum number of searches in a batch.
+     * @return A cancellable request.
+     */
+    synchronized @NonNull Request search(@NonNull IndexQuery query, @Nullable CompletionHandler completionHandler, long window, int maxBatchSize) {
+        if (openBatch == null) {
+            final Batch batch = new Batch();
+            openBatch = batch;
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("AlgoliaSearchBatcher"));
+            }
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send(batch);
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+        final BatchedSearch search = new BatchedSearch(openBatch, query, completionHandler);
+        openBatch.searches.add(search);
+        if (openBatch.searches.size() >= maxBatchSize) {
+            send(openBatch);
+        }
+        return search;
+    }
+
+    /**
+     * Send a batch, unless it has already been sent.
+     *
+     * @param batch The batch to send.
+     */
+    private synchronized void send(@NonNull final Batch batch) {
+        if (openBatch != batch) {
+            return; // already sent
+        }
+        openBatch = null;
+        if (batch.searches.isEmpty()) {
+            return; // all searches cancelled
+        }
+        final List<IndexQuery> queries = new ArrayList<>(batch.searches.size());
+        for (BatchedSearch search : batch.searches) {
+            queries.add(search.query);
+        }
+        batch.request = client.new AsyncTaskRequest(batch) {
+            @NonNull
+            @Override
+            protected JSONObject run() throws AlgoliaException {
+                return client.multipleQueries(queries, /* strategy: */ null, /* requestOptions: */ null);
+            }
+        }.start();
+    }
+
+    /** A batch of searches, sent as one request. */
+    private class Batch implements CompletionHandler {
+        final List<BatchedSearch> searches = new ArrayList<>();
+        Request request;
+
+        @Override
+        public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            final List<BatchedSearch> recipients;
+            synchronized (SearchBatcher.this) {
+                recipients = new ArrayList<>(searches);
+            }
+            JSONArray results = null;
+            if (content != null) {
+                results = content.optJSONArray("results");
+                if (results == null || results.length() != recipients.size()) {
+                    error = new AlgoliaException("Invalid multiple queries response");
+                }
+            }
+            for (int i = 0; i < recipients.size(); ++i) {
+                JSONObject result = null;
+                if (error == null) {
+                    try {
+                        result = results.getJSONObject(i);
+                    } catch (JSONException e) {
+                        recipients.get(i).deliver(null, new AlgoliaException("Invalid multiple queries response", e));
+                        continue;
+                    }
+                }
+                recipients.get(i).deliver(result, error);
+            }
+        }
+    }
+
+    /** A search belonging to a batch. */
+    private class BatchedSearch implements Request {
+        private final @NonNull Batch batch;
+        final @NonNull IndexQuery query;
+        private final @Nullable CompletionHandler completionHandler;
+        private boolean finished;
+        private boolean cancelled;
+
+        BatchedSearch(@NonNull Batch batch, @NonNull IndexQuery query, @Nullable CompletionHandler completionHandler) {
+            this.batch = batch;
+            this.query = query;
+            this.completionHandler = completionHandler;
+        }
+
+        void deliver(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            synchronized (SearchBatcher.this) {
+                if (cancelled) {
+                    return;
+                }
+                finished = true;
+            }
+            if (completionHandler != null) {
+                completionHandler.requestCompleted(content, error);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (SearchBatcher.this) {
+                if (finished || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                if (batch.request == null) {
+                    // Not sent yet: simply leave the batch.
+                    batch.searches.remove(this);
+                    return;
+                }
+                // Cancel the underlying request when nobody is interested anymore.
+                for (BatchedSearch search : batch.searches) {
+                    if (!search.cancelled) {
+                        return;
+                    }
+                }
+                batch.request.cancel();
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            synchronized (SearchBatcher.this) {
+                return finished || cancelled;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (SearchBatcher.this) {
+                return cancelled;
+            }
+        }
+    }
+}
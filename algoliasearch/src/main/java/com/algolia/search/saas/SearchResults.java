@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of a search whose hits have been decoded by a {@link HitDecoder}.
+ *
+ * @param <T> Type of the decoded hits.
+ */
+public class SearchResults<T> {
+    /** The decoded hits, in the order returned by the API. */
+    public final @NonNull List<T> hits;
+
+    /**
+     * All other attributes of the response (<code>nbHits</code>, <code>page</code>, <code>facets</code>...), i.e.
+     * everything but the hits.
+     */
+    public final @NonNull JSONObject metadata;
+
+    SearchResults(@NonNull List<T> hits, @NonNull JSONObject metadata) {
+        this.hits = Collections.unmodifiableList(hits);
+        this.metadata = metadata;
+    }
+
+    /**
+     * Get the number of hits matched by the query.
+     *
+     * @return The number of hits, or 0 if unknown.
+     */
+    public int getNbHits() {
+        return metadata.optInt("nbHits");
+    }
+
+    /**
+     * Get the returned page number (zero-based).
+     *
+     * @return The page number, or 0 if unknown.
+     */
+    public int getPage() {
+        return metadata.optInt("page");
+    }
+
+    /**
+     * Get the number of pages available for the query.
+     *
+     * @return The number of pages, or 0 if unknown.
+     */
+    public int getNbPages() {
+        return metadata.optInt("nbPages");
+    }
+
+    /**
+     * Decode a search response from a stream.
+     *
+     * @param stream The stream to read from (UTF-8 encoded JSON).
+     * @param hitDecoder Decoder for the hits.
+     * @return The decoded results.
+     * @throws IOException If the stream cannot be read.
+     * @throws JSONException If the response is not valid JSON.
+     */
+    static @NonNull <T> SearchResults<T> decode(@NonNull InputStream stream, @NonNull HitDecoder<T> hitDecoder) throws IOException, JSONException {
+        final JsonReader reader = JSONStreamDecoder.newReader(stream);
+        try {
+            final List<T> hits = new ArrayList<>();
+            final JSONObject metadata = new JSONObject();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (name.equals("hits")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        final T hit = hitDecoder.decode(reader);
+                        if (hit != null) {
+                            hits.add(hit);
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    metadata.put(name, JSONStreamDecoder.readValue(reader));
+                }
+            }
+            reader.endObject();
+            return new SearchResults<>(hits, metadata);
+        } catch (MalformedJsonException | IllegalStateException e) {
+            // NOTE: `JsonReader` throws an `IllegalStateException` when the next token is not of the expected type.
+            throw new JSONException(e.getMessage());
+        }
+    }
+}
@@ -43,6 +43,21 @@ public abstract class Searchable {
 	 */
 	public abstract Request searchAsync(@Nullable Query query, @Nullable final RequestOptions requestOptions, @Nullable CompletionHandler completionHandler);
 
+	/**
+	 * Search inside this index (asynchronously), with a given priority.
+	 * Searchables that do not schedule requests by priority ignore it (this is the default implementation).
+	 *
+	 * @param query             Search parameters. May be null to use an empty query.
+	 * @param requestOptions    Request-specific options.
+	 * @param priority          Priority of the request, e.g. {@link RequestPriority#BACKGROUND_READ} for a search
+	 *                          nobody is actively waiting for.
+	 * @param completionHandler The listener that will be notified of the request's outcome.
+	 * @return A cancellable request.
+	 */
+	public Request searchAsync(@Nullable Query query, @Nullable final RequestOptions requestOptions, @NonNull RequestPriority priority, @Nullable CompletionHandler completionHandler) {
+		return searchAsync(query, requestOptions, completionHandler);
+	}
+
 	/**
 	 * Search inside this index (asynchronously).
 	 *
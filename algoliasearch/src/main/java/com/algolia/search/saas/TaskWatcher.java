@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the publication of any number of tasks, without blocking a thread per task.
+ * <p>
+ * Tasks are grouped by index. Each index with pending tasks is polled on a timer, following an exponential backoff
+ * schedule shared by all its tasks; delays are randomized ("jittered") so that many clients do not poll in
+ * lockstep. A poll checks all pending tasks of the index, then completes the waiters of published tasks.
+ * </p>
+ * <p>
+ * Polls run in the {@link RequestPriority#POLLING} lane of the client. Completion handlers are called on the client's
+ * completion executor.
+ * </p>
+ */
+public class TaskWatcher {
+    /** Delay before the first poll of an index (ms). */
+    static final long INITIAL_POLL_DELAY = 100;
+
+    /** Maximum delay between two polls of an index (ms). */
+    static final long MAX_POLL_DELAY = 10000;
+
+    /** The client used to poll. */
+    private final @NonNull Client client;
+
+    /** Pending tasks, by index name. Guarded by `this`. */
+    private final Map<String, IndexWatch> watches = new HashMap<>();
+
+    /** Timer scheduling the polls. Lazily created, and shut down when no task is pending. Guarded by `this`. */
+    private ScheduledExecutorService timer;
+
+    /** Source of jitter. */
+    private final Random random = new Random();
+
+    /**
+     * Construct a new task watcher.
+     *
+     * @param client The client used to poll tasks.
+     */
+    TaskWatcher(@NonNull Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Wait for the publication of a task.
+     *
+     * @param index             The index the task belongs to.
+     * @param taskID            Identifier of the task (as returned by the server).
+     * @param completionHandler The listener that will be notified of the task's status once published.
+     * @return A cancellable request.
+     */
+    public @NonNull Request watch(@NonNull Index index, @NonNull String taskID, @Nullable CompletionHandler completionHandler) {
+        final Waiter waiter = new Waiter(taskID, completionHandler);
+        synchronized (this) {
+            IndexWatch watch = watches.get(index.getRawIndexName());
+            if (watch == null) {
+                watch = new IndexWatch(index);
+                watches.put(index.getRawIndexName(), watch);
+                schedule(watch);
+            } else {
+                // NOTE: A new task is likely to be published soon, however long the other ones have been pending:
+                // restart the backoff, and bring the next poll forward if needed.
+                watch.delay = INITIAL_POLL_DELAY;
+                final long remainingDelay = TimeUnit.NANOSECONDS.toMillis(watch.nextPollTime - System.nanoTime());
+                if (watch.nextPoll != null && remainingDelay > INITIAL_POLL_DELAY && watch.nextPoll.cancel(false)) {
+                    schedule(watch);
+                }
+            }
+            watch.waiters.add(waiter);
+        }
+        return waiter;
+    }
+
+    /**
+     * Get the number of tasks being waited for.
+     *
+     * @return The number of pending tasks, across all indices.
+     */
+    public synchronized int getPendingTaskCount() {
+        int count = 0;
+        for (IndexWatch watch : watches.values()) {
+            count += watch.waiters.size();
+        }
+        return count;
+    }
+
+    /**
+     * Schedule the next poll of an index. Must hold the lock.
+     *
+     * @param watch The index to poll.
+     */
+    private void schedule(@NonNull final IndexWatch watch) {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("AlgoliaTaskWatcher"));
+        }
+        // NOTE: "Equal jitter": wait between half and all of the nominal delay.
+        final long delay = watch.delay / 2 + (long) (random.nextDouble() * (watch.delay / 2));
+        watch.nextPollTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        watch.nextPoll = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                client.requestScheduler.executor(RequestPriority.POLLING).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        poll(watch);
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Check all pending tasks of an index, then schedule the next poll if some are still pending.
+     *
+     * @param watch The index to poll.
+     */
+    private void poll(@NonNull IndexWatch watch) {
+        final List<Waiter> waiters;
+        synchronized (this) {
+            waiters = new ArrayList<>(watch.waiters);
+        }
+        try {
+            for (Waiter waiter : waiters) {
+                if (waiter.isFinished()) {
+                    continue;
+                }
+                // NOTE: A failure must only affect its own waiter, never the polling of the other ones.
+                JSONObject content = null;
+                AlgoliaException error = null;
+                try {
+                    final JSONObject status = watch.index.getTaskStatus(waiter.taskID);
+                    if (!"published".equals(status.getString("status"))) {
+                        continue;
+                    }
+                    content = status;
+                } catch (AlgoliaException e) {
+                    // Transient errors are retried at the next poll.
+                    if (e.isTransient()) {
+                        continue;
+                    }
+                    error = e;
+                } catch (JSONException e) {
+                    error = new AlgoliaException("Invalid task status", e);
+                } catch (RuntimeException e) {
+                    error = new AlgoliaException("Could not check task status", e);
+                }
+                try {
+                    waiter.complete(content, error);
+                } catch (RuntimeException e) {
+                    // Thrown by the completion handler when the completion executor is synchronous.
+                    Log.w(TaskWatcher.class.getName(), "Task completion handler failed", e);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                for (Iterator<Waiter> iterator = watch.waiters.iterator(); iterator.hasNext(); ) {
+                    if (iterator.next().isFinished()) {
+                        iterator.remove();
+                    }
+                }
+                if (watch.waiters.isEmpty()) {
+                    watches.remove(watch.index.getRawIndexName());
+                    if (watches.isEmpty()) {
+                        timer.shutdown();
+                        timer = null;
+                    }
+                } else {
+                    watch.delay = Math.min(watch.delay * 2, MAX_POLL_DELAY);
+                    schedule(watch);
+                }
+            }
+        }
+    }
+
+    /** Pending tasks of an index. */
+    private static class IndexWatch {
+        final @NonNull Index index;
+        final List<Waiter> waiters = new ArrayList<>();
+        /** Nominal delay before the next poll (ms). */
+        long delay = INITIAL_POLL_DELAY;
+        /** The next poll, as scheduled on the timer. */
+        ScheduledFuture<?> nextPoll;
+        /** When the next poll is scheduled (as per {@link System#nanoTime()}). */
+        long nextPollTime;
+
+        IndexWatch(@NonNull Index index) {
+            this.index = index;
+        }
+    }
+
+    /** A waiter for a task. */
+    private class Waiter implements Request {
+        final @NonNull String taskID;
+        private final @Nullable CompletionHandler completionHandler;
+        private boolean finished;
+        private boolean cancelled;
+
+        Waiter(@NonNull String taskID, @Nullable CompletionHandler completionHandler) {
+            this.taskID = taskID;
+            this.completionHandler = completionHandler;
+        }
+
+        void complete(@Nullable final JSONObject content, @Nullable final AlgoliaException error) {
+            synchronized (TaskWatcher.this) {
+                if (finished || cancelled) {
+                    return;
+                }
+                finished = true;
+            }
+            if (completionHandler == null) {
+                return;
+            }
+            client.completionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // NOTE: Cancellation might have intervened before the completion handler is called.
+                    if (isCancelled()) {
+                        return;
+                    }
+                    completionHandler.requestCompleted(content, error);
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (TaskWatcher.this) {
+                if (!finished) {
+                    cancelled = true;
+                }
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            synchronized (TaskWatcher.this) {
+                return finished || cancelled;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (TaskWatcher.this) {
+                return cancelled;
+            }
+        }
+    }
+}
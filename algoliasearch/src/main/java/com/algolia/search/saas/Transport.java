@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Performs HTTP exchanges on behalf of a client.
+ * <p>
+ * A transport is only responsible for one exchange with one host: host selection, retries and error handling are
+ * handled by the client. This allows plugging an alternative HTTP stack into a client via
+ * {@link AbstractClient#setTransport(Transport)}.
+ * </p>
+ * <p>
+ * Implementations must be thread-safe, since a client may perform several requests in parallel.
+ * </p>
+ */
+public interface Transport {
+    /**
+     * A prepared HTTP exchange, which can be executed once.
+     */
+    interface Call {
+        /**
+         * Execute this call synchronously.
+         * <p>
+         * NOTE: The caller is responsible for closing the returned response, so that the underlying connection can be
+         * reused.
+         * </p>
+         *
+         * @return The response returned by the server, whatever its status code.
+         * @throws IOException If the exchange failed at the network level.
+         */
+        @NonNull HttpResponse execute() throws IOException;
+
+        /**
+         * Cancel this call, aborting the underlying connection if it is in progress.
+         * Any thread blocked in {@link #execute()} or reading the response will receive an {@link IOException}.
+         */
+        void cancel();
+    }
+
+    /**
+     * Prepare a call for the specified request.
+     *
+     * @param request The request to send.
+     * @return A new call, ready to be executed.
+     */
+    @NonNull Call newCall(@NonNull HttpRequest request);
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges single-object writes issued within a time window into a single batch request.
+ * <p>
+ * The first write starts a batch, which is sent when the buffering window expires or when it reaches the maximum
+ * batch size, whichever comes first. Writes to the same object are merged when possible:
+ * </p>
+ * <ul>
+ *     <li>saving an object replaces the pending write to that object;</li>
+ *     <li>a partial update is merged into the pending save or partial update of that object, unless it applies an
+ *         operation (like <code>Increment</code>) to an attribute which is already pending.</li>
+ * </ul>
+ * <p>
+ * Every write of the batch is notified with the batch's task ID.
+ * </p>
+ */
+class WriteBuffer {
+    private static final String ACTION_SAVE = "updateObject";
+    private static final String ACTION_PARTIAL_UPDATE = "partialUpdateObject";
+    private static final String ACTION_PARTIAL_UPDATE_NO_CREATE = "partialUpdateObjectNoCreate";
+
+    /** The index where batches are sent. */
+    private final @NonNull Index index;
+
+    /** Schedules the sending of batches. Lazily created; its daemon thread lives as long as the index. Guarded by `this`. */
+    private ScheduledExecutorService scheduler;
+
+    /** Batch currently accepting writes, if any. Guarded by `this`. */
+    private Batch openBatch;
+
+    WriteBuffer(@NonNull Index index) {
+        this.index = index;
+    }
+
+    /**
+     * Buffer the saving of an object.
+     *
+     * @param object            New version of the object.
+     * @param objectID          Identifier of the object.
+     * @param completionHandler The handler to notify of the write's outcome.
+     * @param window            Time to wait for other writes before sending a new batch (ms).
+     * @param maxBatchSize      Maximum number of writes in a batch.
+     * @return A cancellable request.
+     */
+    synchronized @NonNull Request saveObject(@NonNull JSONObject object, @NonNull String objectID, @Nullable CompletionHandler completionHandler, long window, int maxBatchSize) {
+        return write(ACTION_SAVE, object, objectID, completionHandler, window, maxBatchSize);
+    }
+
+    /**
+     * Buffer the partial update of an object.
+     *
+     * @param partialObject     New values/operations for the object.
+     * @param objectID          Identifier of the object.
+     * @param createIfNotExists Whether the object should be created if it does not exist already.
+     * @param completionHandler The handler to notify of the write's outcome.
+     * @param window            Time to wait for other writes before sending a new batch (ms).
+     * @param maxBatchSize      Maximum number of writes in a batch.
+     * @return A cancellable request.
+     */
+    synchronized @NonNull Request partialUpdateObject(@NonNull JSONObject partialObject, @NonNull String objectID, boolean createIfNotExists, @Nullable CompletionHandler completionHandler, long window, int maxBatchSize) {
+        return write(createIfNotExists ? ACTION_PARTIAL_UPDATE : ACTION_PARTIAL_UPDATE_NO_CREATE, partialObject, objectID, completionHandler, window, maxBatchSize);
+    }
+
+    /**
+     * Send the current batch immediately, if any.
+     */
+    synchronized void flush() {
+        if (openBatch != null) {
+            send(openBatch);
+        }
+    }
+
+    private @NonNull Request write(@NonNull String action, @NonNull JSONObject body, @NonNull String objectID, @Nullable CompletionHandler completionHandler, long window, int maxBatchSize) {
+        if (openBatch == null) {
+            final Batch batch = new Batch();
+            openBatch = batch;
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("AlgoliaWriteBuffer"));
+            }
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send(batch);
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+        final BufferedWrite write = new BufferedWrite(objectID, completionHandler);
+        openBatch.add(action, body, objectID);
+        openBatch.writes.add(write);
+        if (openBatch.actions.size() >= maxBatchSize) {
+            send(openBatch);
+        }
+        return write;
+    }
+
+    /**
+     * Send a batch, unless it has already been sent.
+     *
+     * @param batch The batch to send.
+     */
+    private synchronized void send(@NonNull final Batch batch) {
+        if (openBatch != batch) {
+            return; // already sent
+        }
+        openBatch = null;
+        final JSONArray actions = new JSONArray();
+        try {
+            for (Action action : batch.actions) {
+                actions.put(new JSONObject()
+                        .put("action", action.action)
+                        .put("objectID", action.objectID)
+                        .put("body", action.body));
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+        batch.request = index.getClient().new AsyncTaskRequest(batch, RequestPriority.WRITE) {
+            @NonNull
+            @Override
+            protected JSONObject run() throws AlgoliaException {
+                return index.batch(actions, /* requestOptions: */ null);
+            }
+        }.start();
+    }
+
+    /** A write action, possibly merging several writes. */
+    private static class Action {
+        @NonNull String action;
+        final @NonNull String objectID;
+        @NonNull JSONObject body;
+
+        Action(@NonNull String action, @NonNull String objectID, @NonNull JSONObject body) {
+            this.action = action;
+            this.objectID = objectID;
+            this.body = body;
+        }
+    }
+
+    /** A batch of writes, sent as one request. */
+    private class Batch implements CompletionHandler {
+        final List<Action> actions = new ArrayList<>();
+        final List<BufferedWrite> writes = new ArrayList<>();
+        Request request;
+
+        /** Last action of each object, into which subsequent writes may be merged. */
+        private final Map<String, Action> lastActions = new HashMap<>();
+
+        void add(@NonNull String action, @NonNull JSONObject body, @NonNull String objectID) {
+            final Action lastAction = lastActions.get(objectID);
+            if (lastAction != null) {
+                if (action.equals(ACTION_SAVE)) {
+                    // The new version replaces whatever was pending.
+                    lastAction.action = ACTION_SAVE;
+                    lastAction.body = copy(body);
+                    return;
+                }
+                if (canMerge(lastAction, action, body)) {
+                    final Iterator<String> keys = body.keys();
+                    try {
+                        while (keys.hasNext()) {
+                            final String key = keys.next();
+                            lastAction.body.put(key, body.opt(key));
+                        }
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e); // should never happen
+                    }
+                    return;
+                }
+            }
+            final Action newAction = new Action(action, objectID, copy(body));
+            actions.add(newAction);
+            lastActions.put(objectID, newAction);
+        }
+
+        @Override
+        public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            final List<BufferedWrite> recipients;
+            synchronized (WriteBuffer.this) {
+                recipients = new ArrayList<>(writes);
+            }
+            for (BufferedWrite write : recipients) {
+                JSONObject result = null;
+                if (error == null) {
+                    try {
+                        result = new JSONObject()
+                                .put("taskID", content.opt("taskID"))
+                                .put("objectID", write.objectID);
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e); // should never happen
+                    }
+                }
+                write.deliver(result, error);
+            }
+        }
+    }
+
+    /**
+     * Test whether a partial update can be merged into a pending action on the same object.
+     * Operations on an attribute which is already pending cannot, as they depend on the attribute's previous value.
+     */
+    private static boolean canMerge(@NonNull Action lastAction, @NonNull String action, @NonNull JSONObject body) {
+        if (!lastAction.action.equals(ACTION_SAVE) && !lastAction.action.equals(action)) {
+            return false;
+        }
+        final Iterator<String> keys = body.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            final Object value = body.opt(key);
+            final boolean isOperation = value instanceof JSONObject && ((JSONObject) value).has("_operation");
+            if (isOperation && (lastAction.action.equals(ACTION_SAVE) || lastAction.body.has(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Shallow copy of an object, so that merging never alters the caller's object. */
+    private static @NonNull JSONObject copy(@NonNull JSONObject object) {
+        final JSONObject copy = new JSONObject();
+        final Iterator<String> keys = object.keys();
+        try {
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                copy.put(key, object.opt(key));
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e); // should never happen
+        }
+        return copy;
+    }
+
+    /**
+     * A write belonging to a batch.
+     * NOTE: Cancelling a write only prevents its notification: it may already have been merged with other writes.
+     */
+    private class BufferedWrite implements Request {
+        final @NonNull String objectID;
+        private final @Nullable CompletionHandler completionHandler;
+        private boolean finished;
+        private boolean cancelled;
+
+        BufferedWrite(@NonNull String objectID, @Nullable CompletionHandler completionHandler) {
+            this.objectID = objectID;
+            this.completionHandler = completionHandler;
+        }
+
+        void deliver(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            synchronized (WriteBuffer.this) {
+                if (cancelled) {
+                    return;
+                }
+                finished = true;
+            }
+            if (completionHandler != null) {
+                completionHandler.requestCompleted(content, error);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (WriteBuffer.this) {
+                if (!finished) {
+                    cancelled = true;
+                }
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            synchronized (WriteBuffer.this) {
+                return finished || cancelled;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (WriteBuffer.this) {
+                return cancelled;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas.helpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.AlgoliaException;
+import com.algolia.search.saas.BrowseHitIterator;
+import com.algolia.search.saas.Index;
+import com.algolia.search.saas.Query;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes all objects matching a query, client-side, with pipelined requests.
+ * <p>
+ * Compared to {@link Index#deleteByQuery(Query, com.algolia.search.saas.RequestOptions)}, which browses one page,
+ * deletes it and waits for the deletion to be published before browsing the next page, this helper:
+ * </p>
+ * <ul>
+ *     <li>browses ahead, fetching the next page while the previous one is being deleted;</li>
+ *     <li>sends several deletion batches at the same time;</li>
+ *     <li>waits only once, for the last deletion task (tasks of an index are published in order).</li>
+ * </ul>
+ * <p>
+ * Since deletions may disturb browse cursors, the query is then browsed again to delete any object that was missed,
+ * until no object matches (within a limited number of passes).
+ * </p>
+ * <p>
+ * NOTE: Prefer {@link Index#deleteBy(Query)} when server-side deletion is available.
+ * {@link #delete()} blocks until the deletion completes: it must not be called from the main thread.
+ * </p>
+ */
+public class BulkDeleter {
+    /** Default number of objects deleted per batch. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Default maximum number of deletion batches sent at the same time. */
+    public static final int DEFAULT_MAX_CONCURRENT_BATCHES = 2;
+
+    /** Maximum number of passes over the query's results. */
+    private static final int MAX_PASSES = 5;
+
+    /** The index from which objects are deleted. */
+    private final @NonNull Index index;
+
+    /** The query that objects to delete must match. */
+    private final @NonNull Query query;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxConcurrentBatches = DEFAULT_MAX_CONCURRENT_BATCHES;
+
+    private long startTime = 0;
+    private long endTime = 0;
+    private long deletedObjectCount = 0;
+
+    // State of the current pass, guarded by `this`.
+    private @Nullable AlgoliaException error;
+    private long lastTaskID = -1;
+
+    /**
+     * Construct a new bulk deleter.
+     *
+     * @param index The index from which objects will be deleted.
+     * @param query The query that objects to delete must match.
+     */
+    public BulkDeleter(@NonNull Index index, @NonNull Query query) {
+        this.index = index;
+        this.query = new Query(query);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of objects deleted per batch. This is also the number of hits browsed per page.
+     *
+     * @param batchSize The batch size, between 1 and 1000.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0 || batchSize > 1000) {
+            throw new IllegalArgumentException("Batch size must be between 1 and 1000");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxConcurrentBatches() {
+        return maxConcurrentBatches;
+    }
+
+    /**
+     * Set the maximum number of deletion batches sent at the same time.
+     *
+     * @param maxConcurrentBatches The maximum number of concurrent batches.
+     */
+    public void setMaxConcurrentBatches(int maxConcurrentBatches) {
+        if (maxConcurrentBatches <= 0) {
+            throw new IllegalArgumentException("Max concurrent batches must be strictly positive");
+        }
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    /**
+     * Get the number of objects deleted so far.
+     *
+     * @return The number of deleted objects.
+     */
+    public synchronized long getDeletedObjectCount() {
+        return deletedObjectCount;
+    }
+
+    /**
+     * Get the deletion throughput, from the start of the deletion until all deletions are published.
+     *
+     * @return The number of objects deleted per second.
+     */
+    public synchronized double getThroughput() {
+        if (startTime == 0) {
+            return 0;
+        }
+        final long duration = (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+        return deletedObjectCount * 1000.0 / Math.max(duration, 1);
+    }
+
+    /**
+     * Delete all objects matching the query, and wait until the deletions are published.
+     *
+     * @return The number of deleted objects.
+     * @throws AlgoliaException If a request fails. Objects deleted so far stay deleted; the deletion can be run again.
+     */
+    public long delete() throws AlgoliaException {
+        synchronized (this) {
+            startTime = System.currentTimeMillis();
+            endTime = 0;
+            deletedObjectCount = 0;
+        }
+        try {
+            for (int pass = 0; pass < MAX_PASSES; ++pass) {
+                if (runPass() == 0) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Deletion interrupted", e);
+        } finally {
+            synchronized (this) {
+                endTime = System.currentTimeMillis();
+            }
+        }
+        return getDeletedObjectCount();
+    }
+
+    /**
+     * Browse the query's results once, deleting them, then wait for the deletions to be published.
+     *
+     * @return The number of objects deleted during this pass.
+     */
+    private long runPass() throws AlgoliaException, InterruptedException {
+        synchronized (this) {
+            error = null;
+            lastTaskID = -1;
+        }
+        final Query browseQuery = new Query(query).setAttributesToRetrieve("objectID").setHitsPerPage(batchSize);
+        final BrowseHitIterator iterator = new BrowseHitIterator(index, browseQuery, /* requestOptions: */ null);
+        final ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentBatches);
+        final Semaphore slots = new Semaphore(2 * maxConcurrentBatches);
+        long passCount = 0;
+        try {
+            List<String> objectIDs = new ArrayList<>(batchSize);
+            while (iterator.hasNext() && getError() == null) {
+                objectIDs.add(iterator.next().optString("objectID"));
+                if (objectIDs.size() >= batchSize || !iterator.hasNext()) {
+                    slots.acquire();
+                    executor.execute(newBatch(objectIDs, slots));
+                    passCount += objectIDs.size();
+                    objectIDs = new ArrayList<>(batchSize);
+                }
+            }
+        } catch (BrowseHitIterator.BrowseFailedException e) {
+            setError(e.getCause());
+        } finally {
+            iterator.close();
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting.
+            }
+        }
+
+        final AlgoliaException passError;
+        final long passLastTaskID;
+        synchronized (this) {
+            passError = error;
+            passLastTaskID = lastTaskID;
+        }
+        if (passError != null) {
+            throw passError;
+        }
+        if (passLastTaskID != -1) {
+            index.waitTask(Long.toString(passLastTaskID));
+        }
+        return passCount;
+    }
+
+    /**
+     * Create a task deleting a batch of objects.
+     */
+    private @NonNull Runnable newBatch(@NonNull final List<String> objectIDs, @NonNull final Semaphore slots) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final JSONObject content = index.deleteObjects(objectIDs, /* requestOptions: */ null);
+                    final long taskID = content.optLong("taskID", -1);
+                    synchronized (BulkDeleter.this) {
+                        deletedObjectCount += objectIDs.size();
+                        lastTaskID = Math.max(lastTaskID, taskID);
+                    }
+                } catch (AlgoliaException e) {
+                    setError(e);
+                } finally {
+                    slots.release();
+                }
+            }
+        };
+    }
+
+    private synchronized @Nullable AlgoliaException getError() {
+        return error;
+    }
+
+    private synchronized void setError(@NonNull AlgoliaException error) {
+        if (this.error == null) {
+            this.error = error;
+        }
+    }
+}
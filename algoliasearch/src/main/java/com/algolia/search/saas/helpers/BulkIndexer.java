@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas.helpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.AlgoliaException;
+import com.algolia.search.saas.Index;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexes an unbounded stream of objects, in batches sent concurrently.
+ * <p>
+ * Objects are accumulated into batches bounded both by their number of objects and by their size. Up to a given
+ * number of batches are sent at the same time; when that many batches are already waiting, adding objects blocks
+ * until a batch completes ("backpressure"), so that memory usage stays bounded whatever the size of the stream.
+ * Batches failing with a transient error are retried with an exponential backoff.
+ * </p>
+ * <p>
+ * Usage: call {@link #add(JSONObject)} or {@link #addAll(Iterator)} from a background thread, then {@link #close()}
+ * to send the last batch and wait for all batches to complete.
+ * </p>
+ */
+public class BulkIndexer {
+    /**
+     * Listener for {@link BulkIndexer}.
+     */
+    public interface BatchListener {
+        /**
+         * Called when a batch has completed, either successfully or failing.
+         * WARNING: This is called on a background thread.
+         *
+         * @param indexer     The indexer where the batch originates from.
+         * @param objectCount Number of objects in the batch.
+         * @param content     The server's response (in case of success), containing the batch's task ID.
+         * @param error       The error (in case of failure).
+         */
+        void batchCompleted(@NonNull BulkIndexer indexer, int objectCount, @Nullable JSONObject content, @Nullable AlgoliaException error);
+    }
+
+    /** Default maximum number of objects in a batch. */
+    public static final int DEFAULT_MAX_BATCH_OBJECTS = 1000;
+
+    /** Default maximum size of a batch (bytes). */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+    /** Default maximum number of batches sent at the same time. */
+    public static final int DEFAULT_MAX_CONCURRENT_BATCHES = 2;
+
+    /** Default maximum number of retries of a batch failing with a transient error. */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /** Delay before the first retry of a batch (ms). Doubles at each retry. */
+    private static final long INITIAL_RETRY_DELAY = 500;
+
+    /** The index to which objects are added. */
+    private final @NonNull Index index;
+
+    private int maxBatchObjects = DEFAULT_MAX_BATCH_OBJECTS;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int maxConcurrentBatches = DEFAULT_MAX_CONCURRENT_BATCHES;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private @Nullable BatchListener listener;
+
+    /** Threads sending the batches. Created when the first batch is sent. */
+    private ExecutorService executor;
+
+    /** Slots for batches being sent or waiting to be sent. */
+    private Semaphore slots;
+
+    /** Batch being filled. */
+    private JSONArray currentBatch = new JSONArray();
+    private int currentBatchBytes = 0;
+
+    private boolean closed = false;
+
+    /** Task IDs of the successful batches, in completion order. */
+    private final List<String> taskIDs = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Errors of the failed batches, in completion order. */
+    private final List<AlgoliaException> errors = Collections.synchronizedList(new ArrayList<AlgoliaException>());
+
+    private long startTime = 0;
+    private long endTime = 0;
+    private int indexedObjectCount = 0;
+    private int failedObjectCount = 0;
+
+    /**
+     * Construct a new bulk indexer.
+     *
+     * @param index The index to which objects will be added.
+     */
+    public BulkIndexer(@NonNull Index index) {
+        this.index = index;
+    }
+
+    public int getMaxBatchObjects() {
+        return maxBatchObjects;
+    }
+
+    /**
+     * Set the maximum number of objects in a batch. Must be called before adding objects.
+     *
+     * @param maxBatchObjects The maximum number of objects.
+     */
+    public void setMaxBatchObjects(int maxBatchObjects) {
+        if (maxBatchObjects <= 0) {
+            throw new IllegalArgumentException("Max batch objects must be strictly positive");
+        }
+        this.maxBatchObjects = maxBatchObjects;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Set the maximum size of a batch. A single object bigger than this limit is sent alone. Must be called before
+     * adding objects.
+     *
+     * @param maxBatchBytes The maximum size (bytes).
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes <= 0) {
+            throw new IllegalArgumentException("Max batch bytes must be strictly positive");
+        }
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public int getMaxConcurrentBatches() {
+        return maxConcurrentBatches;
+    }
+
+    /**
+     * Set the maximum number of batches sent at the same time. As many batches may be waiting to be sent before
+     * adding objects blocks. Must be called before adding objects.
+     *
+     * @param maxConcurrentBatches The maximum number of concurrent batches.
+     */
+    public void setMaxConcurrentBatches(int maxConcurrentBatches) {
+        if (maxConcurrentBatches <= 0) {
+            throw new IllegalArgumentException("Max concurrent batches must be strictly positive");
+        }
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the maximum number of retries of a batch failing with a transient error.
+     *
+     * @param maxRetries The maximum number of retries. 0 disables retries.
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries cannot be negative");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Set a listener notified of the completion of each batch.
+     *
+     * @param listener The listener, or null to remove it.
+     */
+    public void setBatchListener(@Nullable BatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Add an object to the index. Blocks if too many batches are waiting to be sent.
+     *
+     * @param object The object to add.
+     * @throws InterruptedException If interrupted while waiting for a batch to complete.
+     */
+    public void add(@NonNull JSONObject object) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Indexer already closed");
+        }
+        // NOTE: Estimate the size instead of serializing the object, which would double the cost of each object.
+        final int objectBytes = estimateSize(object);
+        if (currentBatch.length() > 0 && (currentBatch.length() >= maxBatchObjects || currentBatchBytes + objectBytes > maxBatchBytes)) {
+            sendCurrentBatch();
+        }
+        currentBatch.put(object);
+        currentBatchBytes += objectBytes;
+    }
+
+    /**
+     * Add all objects from an iterator to the index. Blocks if too many batches are waiting to be sent.
+     *
+     * @param objects The objects to add.
+     * @throws InterruptedException If interrupted while waiting for a batch to complete.
+     */
+    public void addAll(@NonNull Iterator<JSONObject> objects) throws InterruptedException {
+        while (objects.hasNext()) {
+            add(objects.next());
+        }
+    }
+
+    /**
+     * Send the last batch, and wait for all batches to complete.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws AlgoliaException     If at least one batch failed (the first error is reported).
+     */
+    public void close() throws InterruptedException, AlgoliaException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (currentBatch.length() > 0) {
+            sendCurrentBatch();
+        }
+        if (executor != null) {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting.
+            }
+        }
+        synchronized (this) {
+            endTime = System.currentTimeMillis();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    /**
+     * Get the task IDs of the batches that succeeded so far.
+     * Waiting for the last one to be published ensures that all objects are searchable.
+     *
+     * @return The task IDs, in completion order.
+     */
+    public @NonNull List<String> getTaskIDs() {
+        synchronized (taskIDs) {
+            return new ArrayList<>(taskIDs);
+        }
+    }
+
+    /**
+     * Get the number of objects successfully sent so far.
+     *
+     * @return The number of indexed objects.
+     */
+    public synchronized int getIndexedObjectCount() {
+        return indexedObjectCount;
+    }
+
+    /**
+     * Get the number of objects whose batch failed so far.
+     *
+     * @return The number of failed objects.
+     */
+    public synchronized int getFailedObjectCount() {
+        return failedObjectCount;
+    }
+
+    /**
+     * Get the indexing throughput since the first batch was sent (until closing).
+     *
+     * @return The number of objects indexed per second.
+     */
+    public synchronized double getThroughput() {
+        if (startTime == 0) {
+            return 0;
+        }
+        final long duration = (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+        return indexedObjectCount * 1000.0 / Math.max(duration, 1);
+    }
+
+    /**
+     * Send the current batch, waiting for a slot if needed.
+     */
+    private void sendCurrentBatch() throws InterruptedException {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(maxConcurrentBatches);
+            slots = new Semaphore(2 * maxConcurrentBatches);
+            synchronized (this) {
+                startTime = System.currentTimeMillis();
+            }
+        }
+        slots.acquire();
+        final JSONArray batch = currentBatch;
+        currentBatch = new JSONArray();
+        currentBatchBytes = 0;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendBatch(batch);
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a batch, retrying in case of transient error.
+     *
+     * @param batch The objects to send.
+     */
+    private void sendBatch(@NonNull JSONArray batch) {
+        JSONObject content = null;
+        AlgoliaException error = null;
+        long retryDelay = INITIAL_RETRY_DELAY;
+        for (int attempt = 0; attempt <= maxRetries; ++attempt) {
+            try {
+                content = index.addObjects(batch, /* requestOptions: */ null);
+                error = null;
+                break;
+            } catch (AlgoliaException e) {
+                error = e;
+                if (!e.isTransient() || attempt == maxRetries) {
+                    break;
+                }
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException ie) {
+                    // Give up retrying, but let the pool and the caller see the interruption.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                retryDelay *= 2;
+            }
+        }
+        synchronized (this) {
+            if (error == null) {
+                indexedObjectCount += batch.length();
+            } else {
+                failedObjectCount += batch.length();
+            }
+        }
+        if (error == null) {
+            taskIDs.add(content.optString("taskID"));
+        } else {
+            errors.add(error);
+        }
+        if (listener != null) {
+            listener.batchCompleted(this, batch.length(), content, error);
+        }
+    }
+
+    /**
+     * Estimate the size of a JSON value once serialized, without serializing it. Escaping is not accounted for.
+     */
+    private static int estimateSize(@Nullable Object value) {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            int size = 2 + Math.max(0, object.length() - 1); // braces and commas
+            for (Iterator<String> keys = object.keys(); keys.hasNext(); ) {
+                final String key = keys.next();
+                size += utf8Length(key) + 3 + estimateSize(object.opt(key)); // quotes and colon
+            }
+            return size;
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            int size = 2 + Math.max(0, array.length() - 1); // brackets and commas
+            for (int i = 0; i < array.length(); ++i) {
+                size += estimateSize(array.opt(i));
+            }
+            return size;
+        } else if (value instanceof String) {
+            return utf8Length((String) value) + 2; // quotes
+        } else {
+            return String.valueOf(value).length(); // numbers, booleans and null
+        }
+    }
+
+    /**
+     * Compute the size of a string once encoded as UTF-8, without encoding it.
+     */
+    private static int utf8Length(@NonNull String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); ++i) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
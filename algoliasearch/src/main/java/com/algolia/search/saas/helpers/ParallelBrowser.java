@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas.helpers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.AlgoliaException;
+import com.algolia.search.saas.CompletionHandler;
+import com.algolia.search.saas.Index;
+import com.algolia.search.saas.Query;
+import com.algolia.search.saas.Request;
+import com.algolia.search.saas.RequestOptions;
+import com.algolia.search.saas.RequestPriority;
+
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Browses an index in several disjoint slices at the same time, to export large indices faster.
+ * <p>
+ * The keyspace is split by the caller into slices, each described by a query (typically with filters selecting a
+ * numeric range or a facet value; see {@link #numericRangeSlices(Query, String, long, long, int)}). Slices must be
+ * disjoint, or hits will be delivered several times. Up to a given number of slices are browsed concurrently; the
+ * next slice starts as soon as one is over.
+ * </p>
+ * <p>
+ * Pages of hits are delivered either as they arrive (unordered), or slice after slice (ordered). In ordered mode,
+ * slices ahead of the current one only prefetch a few pages, then pause until their turn comes, so that memory usage
+ * stays bounded.
+ * </p>
+ * <p>
+ * Each slice keeps the cursor following its last delivered page. An interrupted export can therefore be resumed
+ * with {@link #resumeSlice(int, String)} and {@link #skipSlice(int)}, without delivering any hit twice.
+ * </p>
+ * <p>
+ * NOTE: Browse requests run in the {@link RequestPriority#BACKGROUND_READ} lane of the client, whose concurrency
+ * limit also applies. Raise it with {@link com.algolia.search.saas.AbstractClient#setMaxConcurrentRequests} to browse
+ * more slices in parallel.
+ * </p>
+ */
+public class ParallelBrowser {
+    /**
+     * Listener for {@link ParallelBrowser}.
+     */
+    public interface ParallelBrowserHandler {
+        /**
+         * Called at each page of results.
+         *
+         * @param browser The browser where the results originate from.
+         * @param slice   Number of the slice where the results originate from.
+         * @param result  The results (in case of success).
+         * @param error   The error (in case of error). The slice is then stopped, but the other slices go on.
+         */
+        void handleBatch(@NonNull ParallelBrowser browser, int slice, @Nullable JSONObject result, @Nullable AlgoliaException error);
+    }
+
+    /** Default maximum number of slices browsed at the same time. */
+    public static final int DEFAULT_MAX_PARALLEL_SLICES = 4;
+
+    /** Maximum number of pages prefetched by a slice waiting for its turn, in ordered mode. */
+    private static final int MAX_BUFFERED_PAGES = 2;
+
+    /** The index being browsed. */
+    private final @NonNull Index index;
+
+    /** Eventual request-specific options. */
+    private final @Nullable RequestOptions requestOptions;
+
+    /** Listener. */
+    private final @NonNull ParallelBrowserHandler handler;
+
+    /** The slices, in order. */
+    private final @NonNull List<Slice> slices = new ArrayList<>();
+
+    private int maxParallelSlices = DEFAULT_MAX_PARALLEL_SLICES;
+    private boolean ordered = false;
+
+    /** Whether the browse has already started. */
+    private boolean started = false;
+
+    /** Whether the browse has been cancelled by the user. */
+    private boolean cancelled = false;
+
+    /** Number of the next slice to start. */
+    private int nextSlice = 0;
+
+    /** Number of the first slice whose pages have not all been delivered (ordered mode). */
+    private int headSlice = 0;
+
+    /** Whether a thread is delivering pages to the handler. */
+    private boolean delivering = false;
+
+    /**
+     * A fetched page, waiting to be delivered.
+     */
+    private static class Page {
+        final @Nullable JSONObject content;
+        final @Nullable AlgoliaException error;
+
+        Page(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            this.content = content;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The state of one slice.
+     */
+    private class Slice implements CompletionHandler {
+        final int number;
+        final @NonNull Query query;
+
+        /** Cursor of the next page to fetch, or null to start from the query. */
+        @Nullable String fetchCursor;
+
+        /** Cursor following the last delivered page, or null if no page has been delivered. */
+        @Nullable String resumeCursor;
+
+        /** Whether this slice has been started. */
+        boolean started = false;
+
+        /** Whether all pages have been fetched (or an error occurred). */
+        boolean fetchedAll = false;
+
+        /** Whether all pages have been delivered successfully. */
+        boolean finished = false;
+
+        /** Pages fetched but not delivered yet (ordered mode). */
+        final @NonNull LinkedList<Page> buffer = new LinkedList<>();
+
+        /** The currently ongoing request, if any. */
+        @Nullable Request request;
+
+        Slice(int number, @NonNull Query query) {
+            this.number = number;
+            this.query = query;
+        }
+
+        void fetch() {
+            if (fetchCursor == null) {
+                request = index.browseAsync(query, requestOptions, this);
+            } else {
+                request = index.browseFromAsync(fetchCursor, requestOptions, this);
+            }
+        }
+
+        @Override
+        public void requestCompleted(JSONObject content, AlgoliaException error) {
+            synchronized (ParallelBrowser.this) {
+                request = null;
+                if (cancelled) {
+                    return;
+                }
+                if (error == null) {
+                    fetchCursor = content.optString("cursor", null);
+                    fetchedAll = fetchCursor == null;
+                } else {
+                    fetchedAll = true;
+                }
+                buffer.add(new Page(content, error));
+                pump();
+            }
+            deliverPages();
+        }
+
+        /**
+         * Take the oldest buffered page, to be delivered to the handler. Must hold the lock.
+         */
+        @NonNull Page takePage() {
+            final Page page = buffer.removeFirst();
+            if (page.error == null) {
+                resumeCursor = page.content.optString("cursor", null);
+                finished = fetchedAll && buffer.isEmpty();
+            }
+            return page;
+        }
+
+        boolean isOver() {
+            return fetchedAll && buffer.isEmpty();
+        }
+    }
+
+    /**
+     * Construct a new parallel browser.
+     * NOTE: The browse does not start automatically. You have to call `start()` explicitly.
+     *
+     * @param index          The index to be browsed.
+     * @param slices         The queries describing each slice. They must select disjoint sets of records.
+     * @param requestOptions Request-specific options.
+     * @param handler        Handler called for each page of results.
+     */
+    public ParallelBrowser(@NonNull Index index, @NonNull List<Query> slices, @Nullable RequestOptions requestOptions, @NonNull ParallelBrowserHandler handler) {
+        if (slices.isEmpty()) {
+            throw new IllegalArgumentException("At least one slice is required");
+        }
+        this.index = index;
+        this.requestOptions = requestOptions;
+        this.handler = handler;
+        for (Query query : slices) {
+            this.slices.add(new Slice(this.slices.size(), new Query(query)));
+        }
+    }
+
+    /**
+     * Build slices splitting a numeric attribute's range into intervals of equal width.
+     * The first and last slices are open-ended, so that values outside the range are not lost.
+     * Records without the attribute are not part of any slice.
+     *
+     * @param query     The base query. Its filters, if any, are combined with each slice's.
+     * @param attribute The numeric attribute to split on. It must be declared in `numericAttributesForFiltering`.
+     * @param min       Lower bound of the attribute's values.
+     * @param max       Upper bound of the attribute's values.
+     * @param count     Number of slices.
+     * @return The queries describing each slice.
+     */
+    public static @NonNull List<Query> numericRangeSlices(@NonNull Query query, @NonNull String attribute, long min, long max, int count) {
+        if (count <= 0 || max < min) {
+            throw new IllegalArgumentException();
+        }
+        final String baseFilters = query.getFilters();
+        final List<Query> slices = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            String filters = null;
+            if (i > 0) {
+                filters = attribute + " >= " + sliceBoundary(min, max, i, count);
+            }
+            if (i < count - 1) {
+                final String upperBound = attribute + " < " + sliceBoundary(min, max, i + 1, count);
+                filters = filters == null ? upperBound : filters + " AND " + upperBound;
+            }
+            if (baseFilters != null && !baseFilters.isEmpty()) {
+                filters = filters == null ? baseFilters : "(" + baseFilters + ") AND " + filters;
+            }
+            slices.add(new Query(query).setFilters(filters));
+        }
+        return slices;
+    }
+
+    /**
+     * Compute the lower bound of a numeric range slice.
+     * NOTE: Computed on big integers, as the width of the range times the slice number may overflow a long.
+     */
+    private static long sliceBoundary(long min, long max, int slice, int count) {
+        return BigInteger.valueOf(max).subtract(BigInteger.valueOf(min))
+                .multiply(BigInteger.valueOf(slice))
+                .divide(BigInteger.valueOf(count))
+                .add(BigInteger.valueOf(min))
+                .longValue();
+    }
+
+    /**
+     * Set the maximum number of slices browsed at the same time. Must be called before starting.
+     *
+     * @param maxParallelSlices The maximum number of parallel slices.
+     */
+    public void setMaxParallelSlices(int maxParallelSlices) {
+        if (maxParallelSlices <= 0) {
+            throw new IllegalArgumentException("Max parallel slices must be strictly positive");
+        }
+        this.maxParallelSlices = maxParallelSlices;
+    }
+
+    public int getMaxParallelSlices() {
+        return maxParallelSlices;
+    }
+
+    /**
+     * Set whether pages are delivered slice after slice (ordered) or as they arrive (unordered, the default).
+     * Must be called before starting.
+     *
+     * @param ordered true to deliver pages in slice order.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Resume a slice from a cursor, obtained by {@link #getResumeCursor(int)} during a previous browse.
+     * Must be called before starting.
+     *
+     * @param slice  The number of the slice.
+     * @param cursor The cursor to resume from.
+     */
+    public synchronized void resumeSlice(int slice, @NonNull String cursor) {
+        if (started) {
+            throw new IllegalStateException();
+        }
+        slices.get(slice).fetchCursor = cursor;
+        slices.get(slice).resumeCursor = cursor;
+    }
+
+    /**
+     * Skip a slice which was finished during a previous browse (see {@link #isSliceFinished(int)}).
+     * Must be called before starting.
+     *
+     * @param slice The number of the slice.
+     */
+    public synchronized void skipSlice(int slice) {
+        if (started) {
+            throw new IllegalStateException();
+        }
+        final Slice state = slices.get(slice);
+        state.fetchedAll = true;
+        state.finished = true;
+    }
+
+    /**
+     * Get the cursor following the last page delivered for a slice.
+     *
+     * @param slice The number of the slice.
+     * @return The cursor from which to resume the slice, or null if no page has been delivered yet, or if the slice
+     *         is finished.
+     */
+    public synchronized @Nullable String getResumeCursor(int slice) {
+        return slices.get(slice).resumeCursor;
+    }
+
+    /**
+     * Test whether all pages of a slice have been successfully delivered.
+     *
+     * @param slice The number of the slice.
+     * @return true if the slice is finished.
+     */
+    public synchronized boolean isSliceFinished(int slice) {
+        return slices.get(slice).finished;
+    }
+
+    /**
+     * Test whether all slices are over, either finished or stopped because of an error.
+     *
+     * @return true if the browse is over.
+     */
+    public synchronized boolean isFinished() {
+        for (Slice slice : slices) {
+            if (!slice.isOver()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Start the browse.
+     */
+    public synchronized void start() {
+        if (started) {
+            throw new IllegalStateException();
+        }
+        started = true;
+        pump();
+    }
+
+    /**
+     * Cancel the browse.
+     * This cancels any currently ongoing request. The listener will not be called after the browse has been
+     * cancelled, except for a page already being delivered on another thread.
+     */
+    public synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        for (Slice slice : slices) {
+            if (slice.request != null) {
+                slice.request.cancel();
+                slice.request = null;
+            }
+        }
+    }
+
+    /**
+     * Deliver buffered pages to the handler, in order, until none is left.
+     * <p>
+     * The handler is called without holding the lock, so that a slow handler does not prevent the other slices from
+     * fetching pages. Only one thread delivers pages at any time; pages fetched meanwhile are delivered by that thread.
+     * </p>
+     */
+    private void deliverPages() {
+        synchronized (this) {
+            if (delivering) {
+                return;
+            }
+            delivering = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                final Slice slice;
+                final Page page;
+                synchronized (this) {
+                    slice = nextDeliverableSlice();
+                    if (slice == null) {
+                        delivering = false;
+                        done = true;
+                        return;
+                    }
+                    page = slice.takePage();
+                    pump();
+                }
+                handler.handleBatch(this, slice.number, page.content, page.error);
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    delivering = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the slice whose buffered page must be delivered next, as permitted by the ordering constraints. Must hold
+     * the lock.
+     *
+     * @return The slice, or null if no page can be delivered.
+     */
+    private @Nullable Slice nextDeliverableSlice() {
+        if (cancelled) {
+            return null;
+        }
+        if (ordered) {
+            return headSlice < slices.size() && !slices.get(headSlice).buffer.isEmpty() ? slices.get(headSlice) : null;
+        }
+        for (Slice slice : slices) {
+            if (!slice.buffer.isEmpty()) {
+                return slice;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start slices and fetch pages, as permitted by the parallelism and ordering constraints. Must hold the lock.
+     */
+    private void pump() {
+        if (cancelled) {
+            return;
+        }
+        // Move on to the next slice once all pages of the current one have been delivered.
+        if (ordered) {
+            while (headSlice < slices.size() && slices.get(headSlice).isOver()) {
+                ++headSlice;
+            }
+        }
+
+        // Start new slices while slots are available.
+        int runningCount = 0;
+        for (Slice slice : slices) {
+            if (slice.started && !slice.fetchedAll) {
+                ++runningCount;
+            }
+        }
+        while (runningCount < maxParallelSlices && nextSlice < slices.size()) {
+            final Slice slice = slices.get(nextSlice++);
+            if (!slice.fetchedAll) {
+                slice.started = true;
+                ++runningCount;
+            }
+        }
+
+        // Fetch the next page of running slices, unless they are too far ahead.
+        for (Slice slice : slices) {
+            if (slice.started && !slice.fetchedAll && slice.request == null) {
+                if (!ordered || slice.number == headSlice || slice.buffer.size() < MAX_BUFFERED_PAGES) {
+                    slice.fetch();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2012-2017 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.AlgoliaException;
+import com.algolia.search.saas.CompletionHandler;
+import com.algolia.search.saas.Index;
+import com.algolia.search.saas.Query;
+import com.algolia.search.saas.Request;
+import com.algolia.search.saas.RequestOptions;
+import com.algolia.search.saas.RequestPriority;
+import com.algolia.search.saas.Searchable;
+
+import org.json.JSONObject;
+
+/**
+ * Search "as you type" session on a {@link Searchable}.
+ * <p>
+ * Call {@link #search(Query)} for every change of the user's input. This helper takes care of:
+ * - debouncing the input: a query is only sent once the input has been stable for the debounce delay;
+ * - cancelling superseded requests, which aborts their network call and frees the search threads;
+ * - delivering only the results of the latest query to the completion handler, in order;
+ * - optionally, prefetching the next page of results (see {@link #setPrefetchEnabled(boolean)}).
+ * </p>
+ * <p>
+ * NOTE: This class is thread-safe, but the completion handler is called on the searchable's completion executor
+ * (by default, the main thread).
+ * </p>
+ */
+public class Searcher {
+    /** Default debounce delay (ms). */
+    public static final long DEFAULT_DEBOUNCE_DELAY = 100;
+
+    /**
+     * A search sent by this searcher.
+     */
+    private class Search implements CompletionHandler {
+        /** Sequence number of the query, or 0 for a prefetch that has not been requested (yet). */
+        int queryNumber;
+
+        final @Nullable Query query;
+        final @Nullable RequestOptions requestOptions;
+
+        /** The underlying request. */
+        Request request;
+
+        /** Whether (final) results have been received. */
+        boolean completed = false;
+        JSONObject content;
+        AlgoliaException error;
+
+        Search(int queryNumber, @Nullable Query query, @Nullable RequestOptions requestOptions) {
+            this.queryNumber = queryNumber;
+            this.query = query;
+            this.requestOptions = requestOptions;
+        }
+
+        void start(@NonNull RequestPriority priority) {
+            request = searchable.searchAsync(query, requestOptions, priority, this);
+        }
+
+        @Override
+        public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            synchronized (Searcher.this) {
+                // NOTE: Provisional results will be followed by the actual results.
+                if (content == null || !content.optBoolean(Index.JSON_KEY_PROVISIONAL)) {
+                    this.completed = true;
+                    this.content = content;
+                    this.error = error;
+                }
+                // NOTE: A superseded request may complete before it is cancelled; its results are outdated.
+                if (queryNumber != lastQueryNumber) {
+                    return;
+                }
+                lastDeliveredQueryNumber = queryNumber;
+            }
+            deliver(this, content, error);
+        }
+    }
+
+    /** The searchable being queried. */
+    private final @NonNull Searchable searchable;
+
+    /** Listener notified of the latest query's results. */
+    private final @NonNull CompletionHandler completionHandler;
+
+    /** Handler used to schedule debounced queries. */
+    private final @NonNull Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Delay during which the input must be stable before a query is sent (ms). */
+    private long debounceDelay = DEFAULT_DEBOUNCE_DELAY;
+
+    /** Whether to prefetch the next page of results. */
+    private boolean prefetchEnabled = false;
+
+    /** Sequence number of the latest query. */
+    private int lastQueryNumber = 0;
+
+    /** Sequence number of the latest query whose results have been delivered. */
+    private int lastDeliveredQueryNumber = 0;
+
+    /** Query waiting for the debounce delay to expire, if any. */
+    private @Nullable Runnable pendingSearch;
+
+    /** Search currently in flight, if any. */
+    private @Nullable Search currentSearch;
+
+    /** Prefetched search for the next page, if any. */
+    private @Nullable Search prefetchedSearch;
+
+    /** Number of queries dropped before being sent. */
+    private int debouncedQueryCount = 0;
+
+    /** Number of requests cancelled while in flight. */
+    private int cancelledRequestCount = 0;
+
+    /** Number of queries answered by a prefetch. */
+    private int prefetchHitCount = 0;
+
+    /** Number of prefetches that were never used. */
+    private int prefetchMissCount = 0;
+
+    /**
+     * Construct a new searcher.
+     *
+     * @param searchable        The searchable to query.
+     * @param completionHandler The listener that will be notified of the latest query's results.
+     */
+    public Searcher(@NonNull Searchable searchable, @NonNull CompletionHandler completionHandler) {
+        this.searchable = searchable;
+        this.completionHandler = completionHandler;
+    }
+
+    /**
+     * Get the debounce delay.
+     *
+     * @return The debounce delay (ms).
+     */
+    public synchronized long getDebounceDelay() {
+        return debounceDelay;
+    }
+
+    /**
+     * Set the debounce delay: a query is only sent once no other query has been submitted for this long.
+     *
+     * @param debounceDelay The new debounce delay (ms). 0 sends every query immediately.
+     */
+    public synchronized void setDebounceDelay(long debounceDelay) {
+        if (debounceDelay < 0) {
+            throw new IllegalArgumentException("Debounce delay cannot be negative");
+        }
+        this.debounceDelay = debounceDelay;
+    }
+
+    /**
+     * Test whether the next page of results is prefetched.
+     *
+     * @return true if prefetch is enabled, false otherwise.
+     */
+    public synchronized boolean isPrefetchEnabled() {
+        return prefetchEnabled;
+    }
+
+    /**
+     * Enable or disable prefetching of the next page of results.
+     * <p>
+     * When enabled, once the results for page <code>n</code> of a query have been delivered, page <code>n + 1</code>
+     * is requested in the background. If the next query is for that very page (e.g. when scrolling infinitely), it
+     * is answered without waiting for the network, nor for the debounce delay. Otherwise the prefetch is cancelled.
+     * When the searchable is an {@link Index} with its search cache enabled, prefetched pages are cached as well.
+     * </p>
+     *
+     * @param prefetchEnabled true to enable prefetch, false to disable it.
+     */
+    public synchronized void setPrefetchEnabled(boolean prefetchEnabled) {
+        this.prefetchEnabled = prefetchEnabled;
+        if (!prefetchEnabled) {
+            discardPrefetch();
+        }
+    }
+
+    /**
+     * Search with a new query, superseding any previous one.
+     *
+     * @param query Search parameters. May be null to use an empty query.
+     */
+    public void search(@Nullable Query query) {
+        search(query, /* requestOptions: */ null);
+    }
+
+    /**
+     * Search with a new query, superseding any previous one.
+     *
+     * @param query          Search parameters. May be null to use an empty query.
+     * @param requestOptions Request-specific options.
+     */
+    public synchronized void search(@Nullable Query query, @Nullable final RequestOptions requestOptions) {
+        cancelPending();
+        final int queryNumber = ++lastQueryNumber;
+        // NOTE: Copy the query, as the caller may modify it before it is sent.
+        final Query queryCopy = query == null ? null : new Query(query);
+        if (prefetchedSearch != null) {
+            if (matches(prefetchedSearch, queryCopy, requestOptions)) {
+                prefetchHitCount++;
+                final Search search = prefetchedSearch;
+                prefetchedSearch = null;
+                adopt(search, queryNumber);
+                return;
+            }
+            discardPrefetch();
+        }
+        if (debounceDelay == 0) {
+            send(new Search(queryNumber, queryCopy, requestOptions));
+            return;
+        }
+        pendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Searcher.this) {
+                    if (pendingSearch != this) {
+                        return;
+                    }
+                    pendingSearch = null;
+                    send(new Search(queryNumber, queryCopy, requestOptions));
+                }
+            }
+        };
+        handler.postDelayed(pendingSearch, debounceDelay);
+    }
+
+    /**
+     * Cancel the pending query, the request in flight and the prefetch, if any.
+     * The completion handler will not be called until a new search is performed.
+     */
+    public synchronized void cancel() {
+        cancelPending();
+        discardPrefetch();
+        // Invalidate any result that would still be delivered.
+        lastQueryNumber++;
+    }
+
+    /**
+     * Get the number of queries that were superseded before being sent.
+     *
+     * @return The number of debounced queries.
+     */
+    public synchronized int getDebouncedQueryCount() {
+        return debouncedQueryCount;
+    }
+
+    /**
+     * Get the number of requests that were superseded while in flight, and therefore cancelled.
+     *
+     * @return The number of cancelled requests.
+     */
+    public synchronized int getCancelledRequestCount() {
+        return cancelledRequestCount;
+    }
+
+    /**
+     * Get the number of queries whose results were never delivered, whether they were debounced or cancelled.
+     *
+     * @return The number of dropped queries.
+     */
+    public synchronized int getDroppedRequestCount() {
+        return debouncedQueryCount + cancelledRequestCount;
+    }
+
+    /**
+     * Get the number of queries that were answered by a prefetch.
+     *
+     * @return The number of prefetch hits.
+     */
+    public synchronized int getPrefetchHitCount() {
+        return prefetchHitCount;
+    }
+
+    /**
+     * Get the number of prefetches that were discarded without being used.
+     *
+     * @return The number of prefetch misses.
+     */
+    public synchronized int getPrefetchMissCount() {
+        return prefetchMissCount;
+    }
+
+    /**
+     * Drop the query waiting for the debounce delay and cancel the request in flight, if any.
+     */
+    private void cancelPending() {
+        if (pendingSearch != null) {
+            handler.removeCallbacks(pendingSearch);
+            pendingSearch = null;
+            debouncedQueryCount++;
+        }
+        if (currentSearch != null) {
+            // NOTE: A request may still be running after delivering provisional results.
+            if (currentSearch.queryNumber > lastDeliveredQueryNumber || !currentSearch.request.isFinished()) {
+                currentSearch.request.cancel();
+                cancelledRequestCount++;
+            }
+            currentSearch = null;
+        }
+    }
+
+    /**
+     * Cancel the prefetch, if any.
+     */
+    private void discardPrefetch() {
+        if (prefetchedSearch != null) {
+            prefetchedSearch.request.cancel();
+            prefetchedSearch = null;
+            prefetchMissCount++;
+        }
+    }
+
+    /**
+     * Send a search to the searchable.
+     *
+     * @param search The search to send.
+     */
+    private void send(@NonNull Search search) {
+        currentSearch = search;
+        search.start(RequestPriority.INTERACTIVE);
+    }
+
+    /**
+     * Make a prefetched search the current one.
+     *
+     * @param search      The prefetched search.
+     * @param queryNumber Sequence number of the query it answers.
+     */
+    private void adopt(@NonNull final Search search, final int queryNumber) {
+        search.queryNumber = queryNumber;
+        currentSearch = search;
+        if (search.completed) {
+            lastDeliveredQueryNumber = queryNumber;
+            // NOTE: Results are always delivered asynchronously.
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Searcher.this) {
+                        if (queryNumber != lastQueryNumber) {
+                            return;
+                        }
+                    }
+                    deliver(search, search.content, search.error);
+                }
+            });
+        }
+        // Otherwise, results will be delivered when the prefetch completes.
+    }
+
+    /**
+     * Deliver results to the completion handler, then prefetch the next page if applicable.
+     *
+     * @param search  The search whose results are delivered.
+     * @param content The results (in case of success).
+     * @param error   The error (in case of failure).
+     */
+    private void deliver(@NonNull Search search, @Nullable JSONObject content, @Nullable AlgoliaException error) {
+        completionHandler.requestCompleted(content, error);
+        if (content == null || content.optBoolean(Index.JSON_KEY_PROVISIONAL)) {
+            return;
+        }
+        synchronized (this) {
+            if (!prefetchEnabled || search.queryNumber != lastQueryNumber || prefetchedSearch != null) {
+                return;
+            }
+            final Integer page = search.query == null ? null : search.query.getPage();
+            final int nextPage = page == null ? 1 : page + 1;
+            if (nextPage >= content.optInt("nbPages")) {
+                return;
+            }
+            final Query nextQuery = search.query == null ? new Query() : new Query(search.query);
+            prefetchedSearch = new Search(0, nextQuery.setPage(nextPage), search.requestOptions);
+            // NOTE: Nobody is waiting for the next page yet, so keep it out of the way of interactive searches.
+            prefetchedSearch.start(RequestPriority.BACKGROUND_READ);
+        }
+    }
+
+    /**
+     * Test whether a search answers a query. Request options are compared by value, as callers may build new ones
+     * for every search.
+     */
+    private static boolean matches(@NonNull Search search, @Nullable Query query, @Nullable RequestOptions requestOptions) {
+        final String params = query == null ? new Query().build() : query.build();
+        return search.query != null && search.query.build().equals(params)
+                && (search.requestOptions == null ? requestOptions == null : search.requestOptions.equals(requestOptions));
+    }
+}
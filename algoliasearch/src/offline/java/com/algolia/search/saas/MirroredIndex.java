@@ -836,6 +836,25 @@ public class MirroredIndex extends Index
         }
     }
 
+    /**
+     * Search with a given priority. The priority only applies to a non-mirrored index: mixed online/offline requests
+     * schedule their own work.
+     *
+     * @param query Search query.
+     * @param requestOptions Request-specific options.
+     * @param priority Priority of the request.
+     * @param completionHandler The listener that will be notified of the request's outcome.
+     * @return A cancellable request.
+     */
+    @Override
+    public Request searchAsync(@Nullable Query query, @Nullable RequestOptions requestOptions, @NonNull RequestPriority priority, @Nullable CompletionHandler completionHandler) {
+        if (!mirrored) {
+            return super.searchAsync(query, requestOptions, priority, completionHandler);
+        } else {
+            return searchAsync(query != null ? query : new Query(), requestOptions, completionHandler);
+        }
+    }
+
     /**
      * A mixed online/offline request.
      * This request encapsulates two concurrent online and offline requests, to optimize response time.
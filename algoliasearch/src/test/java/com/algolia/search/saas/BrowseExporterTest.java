@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the `BrowseExporter` class.
+ */
+public class BrowseExporterTest extends RobolectricTestCase {
+    private static final int NB_PAGES = 4;
+    private static final int HITS_PER_PAGE = 10;
+
+    @Test
+    public void resume() throws Exception {
+        // The stub server returns `NB_PAGES` pages, using the page number as the cursor.
+        // The first attempt at fetching page 2 fails.
+        final AtomicInteger failingPage = new AtomicInteger(2);
+        final AtomicInteger requestCount = new AtomicInteger();
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                final String parameters = exchange.getRequestURI().getQuery();
+                final int page = parameters != null && parameters.startsWith("cursor=") ? Integer.parseInt(parameters.substring("cursor=".length())) : 0;
+                requestCount.incrementAndGet();
+                if (failingPage.compareAndSet(page, -1)) {
+                    StubServer.sendJSON(exchange, 400, "{\"message\":\"Invalid cursor\"}");
+                    return;
+                }
+                try {
+                    final JSONArray hits = new JSONArray();
+                    for (int i = 0; i < HITS_PER_PAGE; ++i) {
+                        hits.put(new JSONObject().put("objectID", Integer.toString(page * HITS_PER_PAGE + i)).put("text", "line\nbreak"));
+                    }
+                    final JSONObject content = new JSONObject().put("hits", hits);
+                    if (page < NB_PAGES - 1) {
+                        content.put("cursor", Integer.toString(page + 1));
+                    }
+                    StubServer.sendJSON(exchange, 200, content.toString());
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            final File file = new File(Files.createTempDirectory("algolia").toFile(), "export.ndjson");
+            final BrowseExporter exporter = new BrowseExporter(client.getIndex("foo"), new Query(), /* requestOptions: */ null, file);
+
+            // The first run stops at page 2, leaving a checkpoint.
+            try {
+                exporter.export();
+                fail("The export should have failed");
+            } catch (AlgoliaException e) {
+                assertEquals(400, e.getStatusCode());
+            }
+            assertEquals(2 * HITS_PER_PAGE, exporter.getRecordCount());
+            assertTrue(exporter.getCheckpointFile().exists());
+
+            // Simulate a torn write after the checkpoint.
+            final FileOutputStream output = new FileOutputStream(file, true);
+            output.write("{\"objectID\":\"garb".getBytes("UTF-8"));
+            output.close();
+
+            // The second run resumes from page 2.
+            final int requestsBefore = requestCount.get();
+            assertEquals(NB_PAGES * HITS_PER_PAGE, exporter.export());
+            assertEquals(NB_PAGES - 2, requestCount.get() - requestsBefore);
+            assertFalse(exporter.getCheckpointFile().exists());
+
+            // Every record is written exactly once, in order.
+            final List<String> lines = Files.readAllLines(file.toPath());
+            assertEquals(NB_PAGES * HITS_PER_PAGE, lines.size());
+            for (int i = 0; i < lines.size(); ++i) {
+                final JSONObject hit = new JSONObject(lines.get(i));
+                assertEquals(Integer.toString(i), hit.getString("objectID"));
+                assertEquals("line\nbreak", hit.getString("text"));
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
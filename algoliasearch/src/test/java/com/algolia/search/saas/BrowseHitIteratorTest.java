@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the `BrowseHitIterator` class.
+ */
+public class BrowseHitIteratorTest extends RobolectricTestCase {
+    private static final int NB_PAGES = 5;
+    private static final int HITS_PER_PAGE = 10;
+    private static final long FETCH_DELAY = 100;
+    private static final long PROCESSING_DELAY = 200;
+
+    /** Page failing with an error, or -1. */
+    private final AtomicInteger failingPage = new AtomicInteger(-1);
+
+    /** Number of pages requested so far. */
+    private final AtomicInteger requestedPages = new AtomicInteger();
+
+    private StubServer newServer() throws IOException {
+        // The stub server returns `NB_PAGES` pages, using the page number as the cursor.
+        return new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                final String parameters = exchange.getRequestURI().getQuery();
+                final int page = parameters != null && parameters.startsWith("cursor=") ? Integer.parseInt(parameters.substring("cursor=".length())) : 0;
+                requestedPages.incrementAndGet();
+                if (page == failingPage.get()) {
+                    StubServer.sendJSON(exchange, 400, "{\"message\":\"Invalid cursor\"}");
+                    return;
+                }
+                try {
+                    Thread.sleep(FETCH_DELAY);
+                    final JSONArray hits = new JSONArray();
+                    for (int i = 0; i < HITS_PER_PAGE; ++i) {
+                        hits.put(new JSONObject().put("objectID", Integer.toString(page * HITS_PER_PAGE + i)));
+                    }
+                    final JSONObject content = new JSONObject().put("hits", hits);
+                    if (page < NB_PAGES - 1) {
+                        content.put("cursor", Integer.toString(page + 1));
+                    }
+                    StubServer.sendJSON(exchange, 200, content.toString());
+                } catch (InterruptedException | JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+    }
+
+    private Index newIndex(StubServer server) {
+        final Client client = server.newClient();
+        return client.getIndex("foo");
+    }
+
+    @Test
+    public void readAhead() throws Exception {
+        final StubServer server = newServer();
+        try {
+            final BrowseHitIterator iterator = new BrowseHitIterator(newIndex(server), new Query(), /* requestOptions: */ null, 2);
+            // NOTE: Start timing once the first page has arrived, to ignore connection setup.
+            assertTrue(iterator.hasNext());
+            final long startTime = System.currentTimeMillis();
+            int count = 0;
+            while (iterator.hasNext()) {
+                assertEquals(Integer.toString(count), iterator.next().getString("objectID"));
+                ++count;
+                if (count % HITS_PER_PAGE == 0) {
+                    // The buffer never holds more pages than the read-ahead, plus the page being consumed.
+                    assertTrue(requestedPages.get() <= count / HITS_PER_PAGE + 2);
+                    // Simulate processing the page.
+                    Thread.sleep(PROCESSING_DELAY);
+                }
+            }
+            final long duration = System.currentTimeMillis() - startTime;
+            assertEquals(NB_PAGES * HITS_PER_PAGE, count);
+            // Following pages are fetched while processing: they should not add to the processing time.
+            final long serialDuration = NB_PAGES * PROCESSING_DELAY + (NB_PAGES - 1) * FETCH_DELAY;
+            assertTrue("Browse took too long (" + duration + " ms)", duration < serialDuration - 2 * FETCH_DELAY);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void error() throws Exception {
+        failingPage.set(2);
+        final StubServer server = newServer();
+        try {
+            final BrowseHitIterator iterator = new BrowseHitIterator(newIndex(server), new Query(), /* requestOptions: */ null);
+            int count = 0;
+            try {
+                while (iterator.hasNext()) {
+                    iterator.next();
+                    ++count;
+                }
+                fail("Iteration should have failed");
+            } catch (BrowseHitIterator.BrowseFailedException e) {
+                assertEquals(400, e.getCause().getStatusCode());
+            }
+            // Pages preceding the error are delivered.
+            assertEquals(2 * HITS_PER_PAGE, count);
+            // The iteration is over after the error.
+            assertFalse(iterator.hasNext());
+            iterator.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void unexpectedError() throws Exception {
+        final Client client = new Client(Helpers.app_id, Helpers.api_key);
+        final Index index = new Index(client, "foo") {
+            @Override
+            protected JSONObject browse(@NonNull Query query, @Nullable RequestOptions requestOptions) throws AlgoliaException {
+                throw new IllegalStateException("Unexpected");
+            }
+        };
+        final BrowseHitIterator iterator = new BrowseHitIterator(index, new Query(), /* requestOptions: */ null);
+        try {
+            iterator.hasNext();
+            fail("Iteration should have failed");
+        } catch (BrowseHitIterator.BrowseFailedException e) {
+            assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+        }
+        assertFalse(iterator.hasNext());
+        iterator.close();
+    }
+}
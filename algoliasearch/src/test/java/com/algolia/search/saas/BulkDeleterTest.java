@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import com.algolia.search.saas.helpers.BulkDeleter;
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `BulkDeleter` class.
+ */
+public class BulkDeleterTest extends RobolectricTestCase {
+    @Test
+    public void deleteAll() throws Exception {
+        // The stub server simulates an index, browsed in object ID order and using the last object ID as the cursor.
+        final NavigableSet<String> objectIDs = new ConcurrentSkipListSet<>();
+        for (int i = 0; i < 95; ++i) {
+            objectIDs.add(String.format("%03d", i));
+        }
+        final AtomicInteger nextTaskID = new AtomicInteger(1);
+        final AtomicInteger pendingBatches = new AtomicInteger();
+        final AtomicInteger maxPendingBatches = new AtomicInteger();
+        final Map<String, Integer> waitedTasks = Collections.synchronizedMap(new HashMap<String, Integer>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                final String path = exchange.getRequestURI().getPath();
+                try {
+                    if (path.endsWith("/browse")) {
+                        final Map<String, String> parameters = new HashMap<>();
+                        for (String parameter : exchange.getRequestURI().getRawQuery().split("&")) {
+                            final String[] pair = parameter.split("=", 2);
+                            parameters.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+                        }
+                        final int hitsPerPage = parameters.containsKey("hitsPerPage") ? Integer.parseInt(parameters.get("hitsPerPage")) : 10;
+                        final String after = parameters.get("cursor");
+                        final JSONArray hits = new JSONArray();
+                        for (String objectID : after == null ? objectIDs : objectIDs.tailSet(after, false)) {
+                            if (hits.length() == hitsPerPage) {
+                                break;
+                            }
+                            hits.put(new JSONObject().put("objectID", objectID));
+                        }
+                        final JSONObject content = new JSONObject().put("hits", hits);
+                        if (hits.length() == hitsPerPage) {
+                            content.put("cursor", hits.getJSONObject(hitsPerPage - 1).getString("objectID"));
+                        }
+                        StubServer.sendJSON(exchange, 200, content.toString());
+                    } else if (path.endsWith("/batch")) {
+                        maxPendingBatches.set(Math.max(maxPendingBatches.get(), pendingBatches.incrementAndGet()));
+                        Thread.sleep(20);
+                        final JSONArray requests = new JSONObject(new String(requestBody, "UTF-8")).getJSONArray("requests");
+                        for (int i = 0; i < requests.length(); ++i) {
+                            assertEquals("deleteObject", requests.getJSONObject(i).getString("action"));
+                            objectIDs.remove(requests.getJSONObject(i).getJSONObject("body").getString("objectID"));
+                        }
+                        pendingBatches.decrementAndGet();
+                        StubServer.sendJSON(exchange, 200, "{\"taskID\":" + nextTaskID.getAndIncrement() + "}");
+                    } else {
+                        final String taskID = path.substring(path.lastIndexOf('/') + 1);
+                        waitedTasks.put(taskID, waitedTasks.containsKey(taskID) ? waitedTasks.get(taskID) + 1 : 1);
+                        StubServer.sendJSON(exchange, 200, "{\"status\":\"published\"}");
+                    }
+                } catch (InterruptedException | JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            final BulkDeleter deleter = new BulkDeleter(client.getIndex("foo"), new Query());
+            deleter.setBatchSize(10);
+            deleter.setMaxConcurrentBatches(3);
+
+            assertEquals(95, deleter.delete());
+            assertTrue(objectIDs.isEmpty());
+            assertTrue(maxPendingBatches.get() <= 3);
+            // Only the last task is waited for.
+            assertEquals(Collections.singletonMap("10", 1), waitedTasks);
+            assertTrue(deleter.getThroughput() > 0);
+        } finally {
+            server.close();
+        }
+    }
+}
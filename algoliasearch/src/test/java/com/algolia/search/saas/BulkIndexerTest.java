@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import com.algolia.search.saas.helpers.BulkIndexer;
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `BulkIndexer` class.
+ */
+public class BulkIndexerTest extends RobolectricTestCase {
+    @Test
+    public void batches() throws Exception {
+        // The stub server fails the first batch with a transient error, and records the size of the others.
+        final AtomicInteger batchCount = new AtomicInteger();
+        final AtomicInteger objectCount = new AtomicInteger();
+        final AtomicInteger maxBatchSize = new AtomicInteger();
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                final int batchNumber = batchCount.incrementAndGet();
+                if (batchNumber == 1) {
+                    StubServer.sendJSON(exchange, 503, "{\"message\":\"Service unavailable\"}");
+                    return;
+                }
+                try {
+                    final JSONArray requests = new JSONObject(new String(requestBody, "UTF-8")).getJSONArray("requests");
+                    objectCount.addAndGet(requests.length());
+                    synchronized (maxBatchSize) {
+                        maxBatchSize.set(Math.max(maxBatchSize.get(), requests.length()));
+                    }
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                StubServer.sendJSON(exchange, 200, "{\"taskID\":" + batchNumber + "}");
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            final BulkIndexer indexer = new BulkIndexer(client.getIndex("foo"));
+            indexer.setMaxBatchObjects(10);
+            indexer.setMaxBatchBytes(1000);
+            indexer.setMaxConcurrentBatches(2);
+
+            // 95 small objects: 9 full batches and a partial one.
+            final int nbObjects = 95;
+            for (int i = 0; i < nbObjects; ++i) {
+                indexer.add(new JSONObject().put("objectID", Integer.toString(i)));
+            }
+            // Objects bigger than the size limit are sent one per batch.
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 1000; ++i) {
+                text.append('x');
+            }
+            for (int i = 0; i < 3; ++i) {
+                indexer.add(new JSONObject().put("text", text.toString()));
+            }
+            indexer.close();
+
+            assertEquals(nbObjects + 3, objectCount.get());
+            assertEquals(nbObjects + 3, indexer.getIndexedObjectCount());
+            assertEquals(0, indexer.getFailedObjectCount());
+            assertEquals(10, maxBatchSize.get());
+            // 10 + 3 batches, plus one retry.
+            assertEquals(14, batchCount.get());
+            final List<String> taskIDs = indexer.getTaskIDs();
+            assertEquals(13, taskIDs.size());
+            final Set<String> uniqueTaskIDs = new HashSet<>(taskIDs);
+            assertEquals(13, uniqueTaskIDs.size());
+            assertTrue(indexer.getThroughput() > 0);
+        } finally {
+            server.close();
+        }
+    }
+}
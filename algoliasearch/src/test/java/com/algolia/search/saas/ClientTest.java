@@ -24,15 +24,40 @@
 package com.algolia.search.saas;
 
 import android.annotation.SuppressLint;
+import android.support.annotation.NonNull;
 
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
 import org.mockito.internal.util.reflection.Whitebox;
 import org.robolectric.android.util.concurrent.RoboExecutorService;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * <a href="http://d.android.com/tools/testing/testing_android.html">Testing Fundamentals</a>
@@ -92,4 +117,380 @@ public class ClientTest extends RobolectricTestCase {
         }
         assertEquals("There should be only one foo user agent.", 1, found);
     }
+
+    @Test
+    public void hostsOrderedByLatency() throws Exception {
+        final Client client = new Client(Helpers.app_id, Helpers.api_key, new String[]{ "slow.test", "fast.test" });
+        final List<String> contactedHosts = new ArrayList<>();
+        client.setTransport(new Transport() {
+            @Override
+            public Call newCall(final HttpRequest request) {
+                return new Call() {
+                    @Override
+                    public HttpResponse execute() throws IOException {
+                        final String host = request.url.getHost();
+                        contactedHosts.add(host);
+                        if (host.equals("slow.test")) {
+                            try {
+                                Thread.sleep(50);
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                        }
+                        return new HttpResponse(200, null, new ByteArrayInputStream("{}".getBytes()));
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                };
+            }
+        });
+
+        // Both hosts get tried once (in declaration order), then the fastest one is preferred.
+        for (int i = 0; i < 4; ++i) {
+            client.listIndexes(/* requestOptions: */ null);
+        }
+        assertEquals(Arrays.asList("slow.test", "fast.test", "fast.test", "fast.test"), contactedHosts);
+
+        final List<HostStatistics> statistics = client.getHostStatistics();
+        assertEquals(2, statistics.size());
+        assertEquals("slow.test", statistics.get(0).host);
+        assertEquals(1, statistics.get(0).requestCount);
+        assertTrue(statistics.get(0).latency >= 50);
+        assertEquals(3, statistics.get(1).requestCount);
+        assertEquals(0, statistics.get(1).errorCount);
+
+        // Once measurements are outdated, hosts are probed again.
+        client.setHostProbeInterval(1);
+        Thread.sleep(5);
+        client.listIndexes(/* requestOptions: */ null);
+        assertEquals("slow.test", contactedHosts.get(contactedHosts.size() - 1));
+    }
+
+    @Test
+    public void hostStatusUnderConcurrentLoad() throws Exception {
+        final StubServer server = new StubServer(200, "{\"items\":[]}", 0);
+        try {
+            // NOTE: Nothing listens on port 1, so the first host fails fast, and is retried almost immediately.
+            final String deadHost = "localhost:1";
+            final Client client = new Client(Helpers.app_id, Helpers.api_key, new String[]{ deadHost, server.getHost() });
+            client.setHostDownDelay(1);
+
+            // Count the attempts on each host at the transport level.
+            final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+            attempts.put(deadHost, new AtomicInteger());
+            attempts.put(server.getHost(), new AtomicInteger());
+            final Transport transport = StubServer.transport();
+            client.setTransport(new Transport() {
+                @Override
+                public Call newCall(HttpRequest request) {
+                    attempts.get(request.url.getAuthority()).incrementAndGet();
+                    return transport.newCall(request);
+                }
+            });
+
+            // Hammer the client from many threads.
+            final int nbThreads = 16;
+            final int nbRequests = 50;
+            final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < nbThreads; ++i) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < nbRequests; ++j) {
+                            client.getRequestRaw("/1/indexes", /* urlParameters: */ null, /* search: */ false, /* requestOptions: */ null);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(); // propagates any failure
+            }
+            executor.shutdown();
+
+            // Every attempt must have been recorded exactly once.
+            assertEquals(nbThreads * nbRequests, server.getRequestCount());
+            for (HostStatistics statistics : client.getHostStatistics()) {
+                assertEquals(statistics.host, attempts.get(statistics.host).get(), statistics.requestCount);
+            }
+            final HostStatistics deadStatistics = client.getHostStatistics().get(0);
+            assertEquals(deadStatistics.requestCount, deadStatistics.errorCount);
+            assertFalse(deadStatistics.isUp);
+            final HostStatistics liveStatistics = client.getHostStatistics().get(1);
+            assertEquals(0, liveStatistics.errorCount);
+            assertTrue(liveStatistics.isUp);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void hedgedReads() throws Exception {
+        final StubServer slowServer = new StubServer(200, "{\"items\":[],\"host\":\"slow\"}", 2000);
+        final StubServer fastServer = new StubServer(200, "{\"items\":[],\"host\":\"fast\"}", 0);
+        try {
+            final Client client = new Client(Helpers.app_id, Helpers.api_key, new String[]{ slowServer.getHost(), fastServer.getHost() });
+            client.setTransport(StubServer.transport());
+            client.setHedgingEnabled(true);
+
+            // The slow host is unknown, so the request is hedged after the default delay, and the fast host wins.
+            assertEquals("fast", client.listIndexes(/* requestOptions: */ null).getString("host"));
+            assertEquals(1, slowServer.getRequestCount());
+            assertEquals(1, fastServer.getRequestCount());
+
+            // The cancelled attempt is accounted for (asynchronously) as a slow response.
+            final HostStatistics slowStatistics = waitForRequestCount(client, slowServer.getHost(), 1);
+            assertTrue(slowStatistics.isUp);
+            assertEquals(0, slowStatistics.errorCount);
+            assertTrue(slowStatistics.latency >= 500);
+
+            // The fast host is now tried first.
+            client.listIndexes(/* requestOptions: */ null);
+            assertEquals(2, fastServer.getRequestCount());
+
+            // Writes are never hedged: with a fresh client, the slow host comes first and is waited for.
+            final Client writeClient = new Client(Helpers.app_id, Helpers.api_key, new String[]{ slowServer.getHost(), fastServer.getHost() });
+            writeClient.setTransport(StubServer.transport());
+            writeClient.setHedgingEnabled(true);
+            assertEquals("slow", writeClient.getIndex("foo").setSettings(new JSONObject()).getString("host"));
+            assertEquals(2, slowServer.getRequestCount());
+            assertEquals(2, fastServer.getRequestCount());
+        } finally {
+            slowServer.close();
+            fastServer.close();
+        }
+    }
+
+    @Test
+    public void cancelAbortsNetworkCall() throws Exception {
+        final StubServer server = new StubServer(200, "{\"items\":[]}", 5000);
+        try {
+            final Client client = server.newClient();
+            final CountDownLatch callCancelled = new CountDownLatch(1);
+            final Transport transport = StubServer.transport();
+            client.setTransport(new Transport() {
+                @Override
+                public Call newCall(HttpRequest request) {
+                    final Call call = transport.newCall(request);
+                    return new Call() {
+                        @Override
+                        public HttpResponse execute() throws IOException {
+                            return call.execute();
+                        }
+
+                        @Override
+                        public void cancel() {
+                            callCancelled.countDown();
+                            call.cancel();
+                        }
+                    };
+                }
+            });
+            final Request request = client.listIndexesAsync(new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    fail("A cancelled request should not call its completion handler");
+                }
+            });
+            for (int i = 0; i < 100 && server.getRequestCount() == 0; ++i) {
+                Thread.sleep(10);
+            }
+            request.cancel();
+
+            // The network call is aborted, and the host is not blamed for it.
+            assertTrue(callCancelled.await(1, TimeUnit.SECONDS));
+            final HostStatistics statistics = waitForRequestCount(client, server.getHost(), 1);
+            assertEquals(0, statistics.errorCount);
+            assertEquals(1, server.getRequestCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void searchBatching() throws Exception {
+        // The stub server answers each query of a batch with the name of its index.
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                try {
+                    assertEquals("/1/indexes/*/queries", exchange.getRequestURI().getPath());
+                    final JSONArray requests = new JSONObject(new String(requestBody, "UTF-8")).getJSONArray("requests");
+                    batchSizes.add(requests.length());
+                    final JSONArray results = new JSONArray();
+                    for (int i = 0; i < requests.length(); ++i) {
+                        results.put(new JSONObject().put("index", requests.getJSONObject(i).getString("indexName")));
+                    }
+                    StubServer.sendJSON(exchange, 200, new JSONObject().put("results", results).toString());
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            client.setCompletionExecutor(StubServer.DIRECT_EXECUTOR);
+            client.setSearchBatchingWindow(50);
+            client.setMaxSearchBatchSize(3);
+
+            // Concurrent searches on several indices are merged, and each handler gets its own result.
+            final String[] indexNames = { "products", "articles", "products", "users" };
+            final CountDownLatch done = new CountDownLatch(indexNames.length - 1);
+            final Map<String, String> receivedIndices = new ConcurrentHashMap<>();
+            final List<Request> requests = new ArrayList<>();
+            for (int i = 0; i < indexNames.length; ++i) {
+                final String tag = Integer.toString(i);
+                requests.add(client.getIndex(indexNames[i]).searchAsync(new Query("q"), new CompletionHandler() {
+                    @Override
+                    public void requestCompleted(JSONObject content, AlgoliaException error) {
+                        receivedIndices.put(tag, content != null ? content.optString("index") : error.getMessage());
+                        done.countDown();
+                    }
+                }));
+            }
+            // A cancelled search leaves its batch before it is sent.
+            requests.get(3).cancel();
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            assertEquals("products", receivedIndices.get("0"));
+            assertEquals("articles", receivedIndices.get("1"));
+            assertEquals("products", receivedIndices.get("2"));
+            assertFalse(receivedIndices.containsKey("3"));
+
+            // The first batch is sent as soon as it is full; the second one is empty once the search is cancelled.
+            Thread.sleep(100);
+            assertEquals(Collections.singletonList(3), batchSizes);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void streamedBatchWithLongApiKey() throws Exception {
+        // The stub server records the headers and the body of each request.
+        final List<HttpExchange> exchanges = Collections.synchronizedList(new ArrayList<HttpExchange>());
+        final List<JSONObject> bodies = Collections.synchronizedList(new ArrayList<JSONObject>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                try {
+                    exchanges.add(exchange);
+                    bodies.add(new JSONObject(new String(requestBody, "UTF-8")));
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+                StubServer.sendJSON(exchange, 200, "{\"taskID\":1}");
+            }
+        });
+        try {
+            // A key too long to fit in a header is sent in the body.
+            final StringBuilder apiKey = new StringBuilder();
+            while (apiKey.length() <= 500) {
+                apiKey.append("0123456789");
+            }
+            final Client client = new Client(Helpers.app_id, apiKey.toString(), new String[]{ server.getHost() });
+            client.setTransport(StubServer.transport());
+            final Index index = client.getIndex("foo");
+
+            // Batches are streamed.
+            final JSONArray objects = new JSONArray();
+            for (int i = 0; i < 100; ++i) {
+                objects.put(new JSONObject().put("objectID", Integer.toString(i)).put("name", "Object \"" + i + "\" / \u00e9"));
+            }
+            index.addObjects(objects, /* requestOptions: */ null);
+            assertEquals("chunked", exchanges.get(0).getRequestHeaders().getFirst("Transfer-Encoding"));
+            assertEquals(null, exchanges.get(0).getRequestHeaders().getFirst("X-Algolia-API-Key"));
+            assertEquals(apiKey.toString(), bodies.get(0).getString("apiKey"));
+            final JSONArray requests = bodies.get(0).getJSONArray("requests");
+            assertEquals(100, requests.length());
+            assertEquals("Object \"42\" / \u00e9", requests.getJSONObject(42).getJSONObject("body").getString("name"));
+
+            // Other bodies are sent with a known length.
+            index.setSettings(new JSONObject().put("hitsPerPage", 5), /* forwardToReplicas: */ false, /* requestOptions: */ null);
+            assertEquals(null, exchanges.get(1).getRequestHeaders().getFirst("Transfer-Encoding"));
+            assertEquals(apiKey.toString(), bodies.get(1).getString("apiKey"));
+            assertEquals(5, bodies.get(1).getInt("hitsPerPage"));
+
+            // The key can be injected into any object, even empty.
+            assertEquals("{\"apiKey\":\"k\"}", RequestBody.injectMember("{}", "apiKey", "k"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void requestCompression() throws Exception {
+        // The stub server records the size of each body on the wire, and decompresses it.
+        final List<Integer> wireSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<JSONObject> bodies = Collections.synchronizedList(new ArrayList<JSONObject>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                wireSizes.add(requestBody.length);
+                InputStream body = new ByteArrayInputStream(requestBody);
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    body = new GZIPInputStream(body);
+                }
+                try {
+                    bodies.add(JSONStreamDecoder.readObject(body));
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+                StubServer.sendJSON(exchange, 200, "{\"taskID\":1}");
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            final Index index = client.getIndex("foo");
+            final JSONArray objects = new JSONArray();
+            for (int i = 0; i < 500; ++i) {
+                objects.put(new JSONObject()
+                        .put("objectID", Integer.toString(i))
+                        .put("name", "Product #" + i)
+                        .put("description", "A typical product description, with words repeated across products.")
+                        .put("categories", new JSONArray().put("Electronics").put("Phones & accessories")));
+            }
+
+            // Send the same batch without and with compression.
+            final long[] wireBytes = new long[2];
+            for (int pass = 0; pass < 2; ++pass) {
+                client.setRequestCompressionThreshold(pass == 0 ? AbstractClient.REQUEST_COMPRESSION_DISABLED : 1024);
+                wireSizes.clear();
+                index.saveObjects(objects, /* requestOptions: */ null);
+                wireBytes[pass] = wireSizes.get(0);
+                assertEquals(500, bodies.get(bodies.size() - 1).getJSONArray("requests").length());
+            }
+            assertTrue("Compression should divide the size by at least 4", wireBytes[1] * 4 < wireBytes[0]);
+
+            // Bodies below the threshold are not compressed.
+            final JSONObject settings = new JSONObject().put("hitsPerPage", 5);
+            wireSizes.clear();
+            index.setSettings(settings, /* forwardToReplicas: */ false, /* requestOptions: */ null);
+            assertEquals(settings.toString().length(), (int) wireSizes.get(0));
+
+            // Request options override the client's setting.
+            wireSizes.clear();
+            index.setSettings(settings, /* forwardToReplicas: */ false, new RequestOptions().setRequestCompressionThreshold(0));
+            assertEquals(5, bodies.get(bodies.size() - 1).getInt("hitsPerPage"));
+            assertTrue(wireSizes.get(0) != settings.toString().length());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static HostStatistics waitForRequestCount(Client client, String host, long requestCount) throws InterruptedException {
+        for (int i = 0; i < 100; ++i) {
+            for (HostStatistics statistics : client.getHostStatistics()) {
+                if (statistics.host.equals(host) && statistics.requestCount >= requestCount) {
+                    return statistics;
+                }
+            }
+            Thread.sleep(10);
+        }
+        fail("Host statistics never updated for " + host);
+        return null;
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `DiskCache` class.
+ */
+public class DiskCacheTest extends RobolectricTestCase {
+    @Test
+    public void putAndGet() throws Exception {
+        final File directory = Files.createTempDirectory("algolia").toFile();
+        final DiskCache cache = new DiskCache(directory, 60, 1024 * 1024);
+        final byte[] value = "{\"hits\":[]}".getBytes("UTF-8");
+        cache.put("a", value);
+        cache.flush();
+        assertArrayEquals(value, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertTrue(cache.size() > 0);
+
+        // Entries are reloaded by another instance.
+        cache.close();
+        final DiskCache otherCache = new DiskCache(directory, 60, 1024 * 1024);
+        otherCache.flush();
+        assertEquals(cache.size(), otherCache.size());
+        assertArrayEquals(value, otherCache.get("a"));
+
+        // Clearing removes all entries.
+        otherCache.clear();
+        otherCache.flush();
+        assertNull(otherCache.get("a"));
+        assertEquals(0, otherCache.size());
+        otherCache.close();
+    }
+
+    @Test
+    public void expiration() throws Exception {
+        final DiskCache cache = new DiskCache(Files.createTempDirectory("algolia").toFile(), 1, 1024 * 1024);
+        cache.put("a", new byte[]{ 1, 2, 3 });
+        cache.flush();
+        assertArrayEquals(new byte[]{ 1, 2, 3 }, cache.get("a"));
+        Thread.sleep(1100);
+        assertNull(cache.get("a"));
+        cache.close();
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        final File directory = Files.createTempDirectory("algolia").toFile();
+        // Measure the size of one entry.
+        final byte[] value = new byte[100];
+        DiskCache cache = new DiskCache(directory, 60, 1024 * 1024);
+        cache.put("size", value);
+        cache.flush();
+        final long entrySize = cache.size();
+        cache.clear();
+        cache.close();
+
+        // Fit two entries, then add a third one after using the first one.
+        cache = new DiskCache(directory, 60, entrySize * 2);
+        cache.put("a", value);
+        cache.put("b", value);
+        cache.flush();
+        cache.get("a");
+        cache.put("c", value);
+        cache.flush();
+        assertEquals(entrySize * 2, cache.size());
+        assertArrayEquals(value, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertArrayEquals(value, cache.get("c"));
+        cache.close();
+    }
+
+    @Test
+    public void closed() throws Exception {
+        final File directory = Files.createTempDirectory("algolia").toFile();
+        final DiskCache cache = new DiskCache(directory, 60, 1024 * 1024);
+        cache.close();
+
+        // Writes after closing are ignored.
+        cache.put("a", "{}".getBytes("UTF-8"));
+        cache.clear();
+        cache.flush();
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void disableWhileSearching() throws Exception {
+        final AtomicReference<Index> index = new AtomicReference<>();
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                // The disk cache is disabled while the search is in flight.
+                index.get().disableSearchDiskCache();
+                StubServer.sendJSON(exchange, 200, "{\"hits\":[],\"nbHits\":0}");
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            index.set(client.getIndex("foo"));
+            final File directory = Files.createTempDirectory("algolia").toFile();
+            index.get().enableSearchDiskCache(directory, 60, 1024 * 1024);
+
+            // The search succeeds, even though its response cannot be cached anymore.
+            final JSONObject content = index.get().search(new Query("foo"), /* requestOptions: */ null);
+            assertEquals(0, content.getInt("nbHits"));
+            final String[] files = directory.list();
+            assertFalse(files != null && files.length > 0);
+        } finally {
+            server.close();
+        }
+    }
+}
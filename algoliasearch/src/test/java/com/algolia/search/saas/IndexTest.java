@@ -24,6 +24,8 @@
 package com.algolia.search.saas;
 
 import android.annotation.SuppressLint;
+import android.support.annotation.NonNull;
+import android.util.JsonReader;
 
 import com.algolia.search.saas.helpers.DisjunctiveFaceting;
 
@@ -34,9 +36,11 @@ import org.junit.Test;
 import org.mockito.internal.util.reflection.Whitebox;
 import org.robolectric.android.util.concurrent.RoboExecutorService;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -44,6 +48,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -52,6 +57,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
@@ -163,6 +169,39 @@ public class IndexTest extends RobolectricTestCase {
         assertTrue("The test took longer than given timeout (" + elapsedMillis + " > " + waitTimeoutMillis + ").", elapsedMillis <= waitTimeoutMillis);
     }
 
+    @Test
+    public void searchWithHitDecoder() throws Exception {
+        // Decode only the city, skipping all other attributes (including highlighting).
+        final HitDecoder<String> decoder = new HitDecoder<String>() {
+            @Override
+            public String decode(@NonNull JsonReader reader) throws IOException {
+                String city = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("city")) {
+                        city = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return city;
+            }
+        };
+        SearchResults<String> results = index.searchSync(new Query("Francisco"), decoder, /* requestOptions: */ null);
+        assertEquals(1, results.getNbHits());
+        assertEquals(Collections.singletonList("San Francisco"), results.hits);
+        assertFalse(results.metadata.has("hits"));
+        assertEquals("Francisco", results.metadata.optString("query"));
+
+        // Same with the cache enabled: the cached response must decode identically.
+        index.enableSearchCache();
+        for (int i = 0; i < 2; ++i) {
+            results = index.searchSync(new Query("Francisco"), decoder, /* requestOptions: */ null);
+            assertEquals(Collections.singletonList("San Francisco"), results.hits);
+        }
+    }
+
     @Test
     public void searchAsyncWithVeryLongApiKey() throws Exception {
         final long begin = System.nanoTime();
@@ -854,6 +893,216 @@ public class IndexTest extends RobolectricTestCase {
         verifySearchTwiceCalls(2, 2);
     }
 
+    @Test
+    public void cacheBoundedByBytes() throws Exception {
+        // Given an index whose cache can only hold one response, using a client that returns ~60 bytes on search
+        final byte[] response = "{\"hits\":[],\"nbHits\":0,\"padding\":\"0123456789012345678\"}".getBytes("UTF-8");
+        final Client mockClient = mock(Client.class);
+        Whitebox.setInternalState(index, "client", mockClient);
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn(response);
+        index.enableSearchCacheWithMaxBytes(ExpiringCache.defaultExpirationTimeout, 100);
+        assertEquals(0, index.getSearchCacheWeight());
+
+        // When searching for two different queries, the second one evicts the first one
+        index.search(new Query("a"), /* requestOptions: */ null);
+        final int weight = index.getSearchCacheWeight();
+        assertTrue("Cache weight should account for the response size", weight >= response.length && weight <= 100);
+        index.search(new Query("b"), /* requestOptions: */ null);
+        assertEquals(weight, index.getSearchCacheWeight());
+        index.search(new Query("b"), /* requestOptions: */ null);
+        verify(mockClient, times(2)).postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
+        index.search(new Query("a"), /* requestOptions: */ null);
+        verify(mockClient, times(3)).postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
+    }
+
+    @Test
+    public void diskCacheSurvivesNewIndex() throws Exception {
+        final File directory = Files.createTempDirectory("algolia").toFile();
+        final Query query = new Query("San");
+
+        // Given an index with a disk cache, using a client that returns some json on search
+        Client mockClient = mock(Client.class);
+        when(mockClient.getApplicationID()).thenReturn(Helpers.app_id);
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{foo:42}".getBytes());
+        Index firstIndex = new Index(mockClient, indexName);
+        firstIndex.enableSearchDiskCache(directory, ExpiringCache.defaultExpirationTimeout, 1024 * 1024);
+        assertEquals(42, firstIndex.search(query, /* requestOptions: */ null).getInt("foo"));
+        ((DiskCache) Whitebox.getInternalState(firstIndex, "searchDiskCache")).flush();
+        firstIndex.disableSearchDiskCache();
+
+        // When searching the same query on another instance (e.g. after process death), expect no request
+        Client otherMockClient = mock(Client.class);
+        when(otherMockClient.getApplicationID()).thenReturn(Helpers.app_id);
+        Index secondIndex = new Index(otherMockClient, indexName);
+        secondIndex.enableSearchDiskCache(directory, ExpiringCache.defaultExpirationTimeout, 1024 * 1024);
+        assertEquals(42, secondIndex.search(query, /* requestOptions: */ null).getInt("foo"));
+        verify(otherMockClient, times(0)).postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
+
+        // But expect a request for another index
+        when(otherMockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{foo:43}".getBytes());
+        Index thirdIndex = new Index(otherMockClient, indexName + "_other");
+        thirdIndex.enableSearchDiskCache(directory, ExpiringCache.defaultExpirationTimeout, 1024 * 1024);
+        assertEquals(43, thirdIndex.search(query, /* requestOptions: */ null).getInt("foo"));
+        secondIndex.disableSearchDiskCache();
+        thirdIndex.disableSearchDiskCache();
+    }
+
+    @Test
+    public void diskCacheIsolatesApiKeys() throws Exception {
+        final File directory = Files.createTempDirectory("algolia").toFile();
+        final Query query = new Query("San");
+
+        // Given an index with a disk cache, using a client with a (secured) API key
+        Client mockClient = mock(Client.class);
+        when(mockClient.getApplicationID()).thenReturn(Helpers.app_id);
+        when(mockClient.getApiKey()).thenReturn("user1");
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{foo:42}".getBytes());
+        Index firstIndex = new Index(mockClient, indexName);
+        firstIndex.enableSearchDiskCache(directory, ExpiringCache.defaultExpirationTimeout, 1024 * 1024);
+        assertEquals(42, firstIndex.search(query, /* requestOptions: */ null).getInt("foo"));
+        ((DiskCache) Whitebox.getInternalState(firstIndex, "searchDiskCache")).flush();
+        firstIndex.disableSearchDiskCache();
+
+        // When searching the same query with another API key, expect a request
+        Client otherMockClient = mock(Client.class);
+        when(otherMockClient.getApplicationID()).thenReturn(Helpers.app_id);
+        when(otherMockClient.getApiKey()).thenReturn("user2");
+        when(otherMockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), any(RequestOptions.class))).thenReturn("{foo:43}".getBytes());
+        Index secondIndex = new Index(otherMockClient, indexName);
+        secondIndex.enableSearchDiskCache(directory, ExpiringCache.defaultExpirationTimeout, 1024 * 1024);
+        assertEquals(43, secondIndex.search(query, /* requestOptions: */ null).getInt("foo"));
+        secondIndex.disableSearchDiskCache();
+
+        // And expect a request with the same API key but other request options
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), any(RequestOptions.class))).thenReturn("{foo:44}".getBytes());
+        Index thirdIndex = new Index(mockClient, indexName);
+        thirdIndex.enableSearchDiskCache(directory, ExpiringCache.defaultExpirationTimeout, 1024 * 1024);
+        final RequestOptions requestOptions = new RequestOptions().setHeader("X-Algolia-UserToken", "user1");
+        assertEquals(44, thirdIndex.search(query, requestOptions).getInt("foo"));
+        thirdIndex.disableSearchDiskCache();
+    }
+
+    @Test
+    public void provisionalResultsFromPrefix() throws Exception {
+        // Given an index with a cache, using a client that returns some json on search
+        Client mockClient = mock(Client.class);
+        Whitebox.setInternalState(mockClient, "searchExecutorService", new RoboExecutorService());
+        Whitebox.setInternalState(mockClient, "requestScheduler", new RequestScheduler(mockClient));
+        Whitebox.setInternalState(mockClient, "completionExecutor", new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        });
+        Whitebox.setInternalState(index, "client", mockClient);
+        index.enableSearchCache();
+        index.setProvisionalResultsEnabled(true);
+        final List<JSONObject> results = new ArrayList<>();
+        final CompletionHandler handler = new CompletionHandler() {
+            @Override
+            public void requestCompleted(JSONObject content, AlgoliaException error) {
+                results.add(content);
+            }
+        };
+
+        // The first search has nothing to derive provisional results from
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{\"hits\":[{\"name\":\"Red shoe\"},{\"name\":\"Shoelace\"},{\"name\":\"Blue Shoés\"}],\"nbHits\":3,\"hitsPerPage\":20}".getBytes("UTF-8"));
+        index.searchAsync(new Query("shoe"), /* requestOptions: */ null, handler);
+        assertEquals(1, results.size());
+        assertFalse(results.get(0).has(Index.JSON_KEY_PROVISIONAL));
+
+        // A longer query is first answered by filtering the exhaustive cached results, then by the network
+        results.clear();
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{\"hits\":[{\"name\":\"Blue Shoés\"}],\"nbHits\":1,\"hitsPerPage\":20}".getBytes("UTF-8"));
+        index.searchAsync(new Query("shoes"), /* requestOptions: */ null, handler);
+        assertEquals(2, results.size());
+        final JSONObject provisional = results.get(0);
+        assertTrue(provisional.getBoolean(Index.JSON_KEY_PROVISIONAL));
+        assertEquals("shoes", provisional.getString("query"));
+        assertEquals(1, provisional.getInt("nbHits"));
+        assertEquals("Blue Shoés", provisional.getJSONArray("hits").getJSONObject(0).getString("name"));
+        assertFalse(results.get(1).has(Index.JSON_KEY_PROVISIONAL));
+
+        // Non exhaustive results cannot be filtered
+        results.clear();
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{\"hits\":[{\"name\":\"Boot\"}],\"nbHits\":50,\"hitsPerPage\":1}".getBytes("UTF-8"));
+        index.searchAsync(new Query("b"), /* requestOptions: */ null, handler);
+        index.searchAsync(new Query("bo"), /* requestOptions: */ null, handler);
+        assertEquals(2, results.size());
+        assertFalse(results.get(1).has(Index.JSON_KEY_PROVISIONAL));
+    }
+
+    @Test
+    public void provisionalResultsKeepStaleEntries() throws Exception {
+        // Given an index with a short-lived cache serving stale responses, using a client that returns some json on search
+        Client mockClient = mock(Client.class);
+        Whitebox.setInternalState(mockClient, "searchExecutorService", new RoboExecutorService());
+        Whitebox.setInternalState(mockClient, "requestScheduler", new RequestScheduler(mockClient));
+        Whitebox.setInternalState(mockClient, "completionExecutor", new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        });
+        Whitebox.setInternalState(index, "client", mockClient);
+        index.enableSearchCache(1, ExpiringCache.defaultMaxSize);
+        index.enableStaleWhileRevalidate(60);
+        index.setProvisionalResultsEnabled(true);
+        final List<JSONObject> results = new ArrayList<>();
+        final CompletionHandler handler = new CompletionHandler() {
+            @Override
+            public void requestCompleted(JSONObject content, AlgoliaException error) {
+                results.add(content);
+            }
+        };
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{\"hits\":[{\"name\":\"Red shoe\"},{\"name\":\"Blue Shoés\"}],\"nbHits\":2,\"hitsPerPage\":20}".getBytes("UTF-8"));
+        index.searchAsync(new Query("shoe"), /* requestOptions: */ null, handler);
+
+        // When typing a longer query once the prefix's entry has expired, provisional results are derived from it
+        Thread.sleep(1100);
+        results.clear();
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{\"hits\":[{\"name\":\"Blue Shoés\"}],\"nbHits\":1,\"hitsPerPage\":20}".getBytes("UTF-8"));
+        index.searchAsync(new Query("shoes"), /* requestOptions: */ null, handler);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).getBoolean(Index.JSON_KEY_PROVISIONAL));
+
+        // But the stale entry is kept, to be served (and revalidated) when coming back to the prefix
+        final JSONObject content = index.search(new Query("shoe"), /* requestOptions: */ null);
+        assertTrue(content.getBoolean(Index.JSON_KEY_STALE));
+        assertEquals(2, content.getInt("nbHits"));
+    }
+
+    @Test
+    public void cacheStaleWhileRevalidate() throws Exception {
+        // Given an index with a short-lived cache, using a client that returns some json on search
+        Client mockClient = mock(Client.class);
+        Whitebox.setInternalState(mockClient, "searchExecutorService", new RoboExecutorService());
+        Whitebox.setInternalState(mockClient, "requestScheduler", new RequestScheduler(mockClient));
+        Whitebox.setInternalState(index, "client", mockClient);
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{foo:42}".getBytes());
+        index.enableSearchCache(1, ExpiringCache.defaultMaxSize);
+        index.enableStaleWhileRevalidate(60);
+
+        // The first search goes to the network
+        final Query query = new Query("San");
+        JSONObject content = index.search(query, /* requestOptions: */ null);
+        assertFalse(content.getBoolean(Index.JSON_KEY_STALE));
+
+        // Once expired, the cached response is still served, flagged as stale, and refreshed in the background
+        Thread.sleep(1100);
+        when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{foo:43}".getBytes());
+        content = index.search(query, /* requestOptions: */ null);
+        assertTrue(content.getBoolean(Index.JSON_KEY_STALE));
+        assertEquals(42, content.getInt("foo"));
+        verify(mockClient, times(2)).postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
+
+        // The refreshed response is then served from the cache
+        content = index.search(query, /* requestOptions: */ null);
+        assertFalse(content.getBoolean(Index.JSON_KEY_STALE));
+        assertEquals(43, content.getInt("foo"));
+        verify(mockClient, times(2)).postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
+    }
+
     /**
      * Verifies the number of requests fired by two successive search queries
      *
@@ -874,6 +1123,7 @@ public class IndexTest extends RobolectricTestCase {
         Client mockClient = mock(Client.class);
         Whitebox.setInternalState(index, "client", mockClient);
         when(mockClient.postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn("{foo:42}".getBytes());
+        when(mockClient.postRequest(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class))).thenReturn(new JSONObject("{foo:42}"));
 
         // When searching twice separated by waitBetweenSeconds, fires nbTimes requests
         final Query query = new Query("San");
@@ -882,7 +1132,10 @@ public class IndexTest extends RobolectricTestCase {
             Thread.sleep(waitBetweenSeconds * 1000);
         }
         index.search(query, /* requestOptions: */ null);
-        verify(mockClient, times(nbTimes)).postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
+        // NOTE: Cached searches keep the raw response, whereas uncached searches decode it on the fly.
+        final boolean cacheEnabled = (Boolean) Whitebox.getInternalState(index, "isCacheEnabled");
+        verify(mockClient, times(cacheEnabled ? nbTimes : 0)).postRequestRaw(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
+        verify(mockClient, times(cacheEnabled ? 0 : nbTimes)).postRequest(anyString(), anyMap(), anyString(), anyBoolean(), isNull(RequestOptions.class));
     }
 
     @Test
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.helpers.ParallelBrowser;
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `ParallelBrowser` class.
+ */
+public class ParallelBrowserTest extends RobolectricTestCase {
+    private static final int NB_SLICES = 4;
+    private static final int NB_PAGES = 3;
+
+    private StubServer server;
+    private Index index;
+    private List<Query> slices;
+
+    /** Whether the first attempt at fetching page 1 of slice 1 fails. */
+    private final AtomicBoolean failSlice1 = new AtomicBoolean(false);
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        slices = ParallelBrowser.numericRangeSlices(new Query(), "price", 0, 400, NB_SLICES);
+        // The stub server returns `NB_PAGES` pages per slice, with cursors of the form `slice:page`.
+        // Slice 0 is slower than the others.
+        server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                final String parameters = exchange.getRequestURI().getQuery();
+                int slice;
+                int page = 0;
+                if (parameters.startsWith("cursor=")) {
+                    final String[] cursor = parameters.substring("cursor=".length()).split(":");
+                    slice = Integer.parseInt(cursor[0]);
+                    page = Integer.parseInt(cursor[1]);
+                } else {
+                    slice = -1;
+                    for (int i = 0; i < slices.size(); ++i) {
+                        if (parameters.equals("filters=" + slices.get(i).getFilters())) {
+                            slice = i;
+                        }
+                    }
+                }
+                if (slice == 1 && page == 1 && failSlice1.getAndSet(false)) {
+                    StubServer.sendJSON(exchange, 400, "{\"message\":\"Invalid cursor\"}");
+                    return;
+                }
+                try {
+                    Thread.sleep(slice == 0 ? 50 : 5);
+                    final JSONObject content = new JSONObject().put("hits", new JSONArray()
+                            .put(new JSONObject().put("objectID", slice + "-" + page)));
+                    if (page < NB_PAGES - 1) {
+                        content.put("cursor", slice + ":" + (page + 1));
+                    }
+                    StubServer.sendJSON(exchange, 200, content.toString());
+                } catch (InterruptedException | JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        final Client client = server.newClient();
+        client.setCompletionExecutor(StubServer.DIRECT_EXECUTOR);
+        client.setMaxConcurrentRequests(RequestPriority.BACKGROUND_READ, NB_SLICES);
+        index = client.getIndex("foo");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void numericRangeSlices() {
+        final List<Query> slices = ParallelBrowser.numericRangeSlices(new Query().setFilters("inStock:true"), "price", 0, 300, 3);
+        assertEquals("(inStock:true) AND price < 100", slices.get(0).getFilters());
+        assertEquals("(inStock:true) AND price >= 100 AND price < 200", slices.get(1).getFilters());
+        assertEquals("(inStock:true) AND price >= 200", slices.get(2).getFilters());
+
+        // Wide ranges do not overflow.
+        final List<Query> wideSlices = ParallelBrowser.numericRangeSlices(new Query(), "price", Long.MIN_VALUE, Long.MAX_VALUE, 2);
+        assertEquals("price < -1", wideSlices.get(0).getFilters());
+        assertEquals("price >= -1", wideSlices.get(1).getFilters());
+        final List<Query> timeSlices = ParallelBrowser.numericRangeSlices(new Query(), "time", 0, 4000000000000000000L, 4);
+        assertEquals("time >= 2000000000000000000 AND time < 3000000000000000000", timeSlices.get(2).getFilters());
+    }
+
+    @Test
+    public void ordered() throws Exception {
+        final List<String> objectIDs = Collections.synchronizedList(new ArrayList<String>());
+        final List<AlgoliaException> errors = Collections.synchronizedList(new ArrayList<AlgoliaException>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        final ParallelBrowser browser = new ParallelBrowser(index, slices, /* requestOptions: */ null, new ParallelBrowser.ParallelBrowserHandler() {
+            @Override
+            public void handleBatch(@NonNull ParallelBrowser browser, int slice, @Nullable JSONObject result, @Nullable AlgoliaException error) {
+                // NOTE: Called on a client thread: record errors to check them on the test thread.
+                if (error != null) {
+                    errors.add(error);
+                } else {
+                    objectIDs.add(result.optJSONArray("hits").optJSONObject(0).optString("objectID"));
+                }
+                if (browser.isFinished()) {
+                    finished.countDown();
+                }
+            }
+        });
+        browser.setMaxParallelSlices(2);
+        browser.setOrdered(true);
+        browser.start();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.emptyList(), errors);
+
+        // Although slice 0 is the slowest, pages are delivered in order.
+        final List<String> expected = new ArrayList<>();
+        for (int slice = 0; slice < NB_SLICES; ++slice) {
+            for (int page = 0; page < NB_PAGES; ++page) {
+                expected.add(slice + "-" + page);
+            }
+        }
+        assertEquals(expected, objectIDs);
+        for (int slice = 0; slice < NB_SLICES; ++slice) {
+            assertTrue(browser.isSliceFinished(slice));
+        }
+    }
+
+    @Test
+    public void slowHandler() throws Exception {
+        final AtomicBoolean firstPage = new AtomicBoolean(true);
+        final AtomicBoolean fetchedWhileHandling = new AtomicBoolean(false);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final ParallelBrowser browser = new ParallelBrowser(index, slices, /* requestOptions: */ null, new ParallelBrowser.ParallelBrowserHandler() {
+            @Override
+            public void handleBatch(@NonNull ParallelBrowser browser, int slice, @Nullable JSONObject result, @Nullable AlgoliaException error) {
+                // While the first page is being handled, the other slices go on fetching their pages.
+                if (firstPage.getAndSet(false)) {
+                    try {
+                        for (int i = 0; i < 500 && server.getRequestCount() < NB_SLICES * NB_PAGES; ++i) {
+                            Thread.sleep(10);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    fetchedWhileHandling.set(server.getRequestCount() == NB_SLICES * NB_PAGES);
+                }
+                if (browser.isFinished()) {
+                    finished.countDown();
+                }
+            }
+        });
+        browser.start();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(fetchedWhileHandling.get());
+    }
+
+    @Test
+    public void resume() throws Exception {
+        failSlice1.set(true);
+        final Set<String> objectIDs = Collections.synchronizedSet(new HashSet<String>());
+        final List<AlgoliaException> errors = Collections.synchronizedList(new ArrayList<AlgoliaException>());
+        final List<String> duplicates = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicReference<CountDownLatch> finished = new AtomicReference<>(new CountDownLatch(1));
+        final ParallelBrowser.ParallelBrowserHandler handler = new ParallelBrowser.ParallelBrowserHandler() {
+            @Override
+            public void handleBatch(@NonNull ParallelBrowser browser, int slice, @Nullable JSONObject result, @Nullable AlgoliaException error) {
+                // NOTE: Called on a client thread: record failures to check them on the test thread.
+                if (error != null) {
+                    errors.add(error);
+                } else {
+                    final String objectID = result.optJSONArray("hits").optJSONObject(0).optString("objectID");
+                    if (!objectIDs.add(objectID)) {
+                        duplicates.add(objectID);
+                    }
+                }
+                if (browser.isFinished()) {
+                    finished.get().countDown();
+                }
+            }
+        };
+
+        // The first browse fails in the middle of slice 1, but the other slices go on.
+        final ParallelBrowser browser = new ParallelBrowser(index, slices, /* requestOptions: */ null, handler);
+        browser.start();
+        assertTrue(finished.get().await(5, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+        assertEquals(NB_SLICES * NB_PAGES - 2, objectIDs.size());
+        assertFalse(browser.isSliceFinished(1));
+        assertEquals("1:1", browser.getResumeCursor(1));
+
+        // A second browse resumes where the first one stopped.
+        final ParallelBrowser resumedBrowser = new ParallelBrowser(index, slices, /* requestOptions: */ null, handler);
+        for (int slice = 0; slice < NB_SLICES; ++slice) {
+            if (browser.isSliceFinished(slice)) {
+                resumedBrowser.skipSlice(slice);
+            } else {
+                resumedBrowser.resumeSlice(slice, browser.getResumeCursor(slice));
+            }
+        }
+        finished.set(new CountDownLatch(1));
+        resumedBrowser.start();
+        assertTrue(finished.get().await(5, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+        assertEquals("Hits delivered twice", Collections.emptyList(), duplicates);
+        assertEquals(NB_SLICES * NB_PAGES, objectIDs.size());
+        assertTrue(resumedBrowser.isFinished());
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the `PersistentWriteQueue` class.
+ */
+public class PersistentWriteQueueTest extends RobolectricTestCase {
+    @Test
+    public void replayAfterRestart() throws Exception {
+        final AtomicInteger failuresLeft = new AtomicInteger(2);
+        final List<JSONArray> batches = Collections.synchronizedList(new ArrayList<JSONArray>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                if (failuresLeft.getAndDecrement() > 0) {
+                    StubServer.sendJSON(exchange, 503, "{\"message\":\"Service unavailable\"}");
+                    return;
+                }
+                try {
+                    batches.add(new JSONObject(new String(requestBody, "UTF-8")).getJSONArray("requests"));
+                    StubServer.sendJSON(exchange, 200, "{\"taskID\":" + batches.size() + ",\"objectIDs\":[]}");
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            final Index index = client.getIndex("foo");
+            final File directory = Files.createTempDirectory("algolia").toFile();
+
+            // Queue operations without replaying them.
+            PersistentWriteQueue queue = new PersistentWriteQueue(index, directory);
+            queue.saveObject(new JSONObject().put("name", "one"), "1");
+            queue.partialUpdateObject(new JSONObject().put("color", "red"), "1", true);
+            queue.partialUpdateObject(new JSONObject().put("color", "blue"), "2", true);
+            queue.deleteObject("2"); // supersedes the previous update
+            queue.addObject(new JSONObject().put("name", "three"));
+            queue.flush();
+            assertEquals(4, queue.getPendingCount());
+            queue.close();
+
+            // Simulate the process dying while appending.
+            final File[] segments = directory.listFiles();
+            assertNotNull(segments);
+            for (File segment : segments) {
+                if (segment.getName().endsWith(".log")) {
+                    final FileOutputStream output = new FileOutputStream(segment, true);
+                    output.write("{\"seq\":99,\"operat".getBytes("UTF-8"));
+                    output.close();
+                }
+            }
+
+            // Replay after restart, with transient failures.
+            queue = new PersistentWriteQueue(index, directory);
+            queue.setMinRetryDelay(10);
+            final List<AlgoliaException> errors = Collections.synchronizedList(new ArrayList<AlgoliaException>());
+            final CountDownLatch done = new CountDownLatch(1);
+            queue.setReplayListener(new PersistentWriteQueue.ReplayListener() {
+                @Override
+                public void batchReplayed(@NonNull PersistentWriteQueue queue, int operationCount, @Nullable JSONObject content, @Nullable AlgoliaException error) {
+                    if (error != null) {
+                        errors.add(error);
+                    } else {
+                        assertEquals(4, operationCount);
+                        assertEquals(1, content.optInt("taskID"));
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void operationDropped(@NonNull PersistentWriteQueue queue, @NonNull JSONObject operation, @NonNull AlgoliaException error) {
+                    fail("No operation should be dropped");
+                }
+            });
+            queue.start();
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            assertEquals(2, errors.size());
+            assertTrue(errors.get(0).isTransient());
+
+            assertEquals(1, batches.size());
+            final JSONArray operations = batches.get(0);
+            assertEquals(4, operations.length());
+            assertEquals("updateObject", operations.getJSONObject(0).getString("action"));
+            assertEquals("partialUpdateObject", operations.getJSONObject(1).getString("action"));
+            assertEquals("red", operations.getJSONObject(1).getJSONObject("body").getString("color"));
+            assertEquals("deleteObject", operations.getJSONObject(2).getString("action"));
+            assertEquals("2", operations.getJSONObject(2).getJSONObject("body").getString("objectID"));
+            assertEquals("addObject", operations.getJSONObject(3).getString("action"));
+            queue.close();
+            assertEquals(0, queue.getPendingCount());
+            assertEquals(0, queue.getDiskUsage());
+
+            // Replayed operations are not replayed again.
+            queue = new PersistentWriteQueue(index, directory);
+            queue.flush();
+            assertEquals(0, queue.getPendingCount());
+            queue.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void isolateRejectedOperations() throws Exception {
+        // The server is first rate limited, then rejects any batch containing a "bad" object.
+        final AtomicInteger requestCount = new AtomicInteger();
+        final List<String> indexedObjectIDs = Collections.synchronizedList(new ArrayList<String>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                if (requestCount.incrementAndGet() == 1) {
+                    StubServer.sendJSON(exchange, 429, "{\"message\":\"Too many requests\"}");
+                    return;
+                }
+                try {
+                    final JSONArray requests = new JSONObject(new String(requestBody, "UTF-8")).getJSONArray("requests");
+                    final List<String> objectIDs = new ArrayList<>();
+                    for (int i = 0; i < requests.length(); ++i) {
+                        if (requests.getJSONObject(i).getJSONObject("body").optBoolean("bad")) {
+                            StubServer.sendJSON(exchange, 400, "{\"message\":\"Invalid object\"}");
+                            return;
+                        }
+                        objectIDs.add(requests.getJSONObject(i).getString("objectID"));
+                    }
+                    indexedObjectIDs.addAll(objectIDs);
+                    StubServer.sendJSON(exchange, 200, "{\"taskID\":1,\"objectIDs\":[]}");
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            final PersistentWriteQueue queue = new PersistentWriteQueue(client.getIndex("foo"), Files.createTempDirectory("algolia").toFile());
+            queue.setMinRetryDelay(10);
+            final List<JSONObject> dropped = Collections.synchronizedList(new ArrayList<JSONObject>());
+            final List<Integer> errorStatusCodes = Collections.synchronizedList(new ArrayList<Integer>());
+            queue.setReplayListener(new PersistentWriteQueue.ReplayListener() {
+                @Override
+                public void batchReplayed(@NonNull PersistentWriteQueue queue, int operationCount, @Nullable JSONObject content, @Nullable AlgoliaException error) {
+                    if (error != null) {
+                        errorStatusCodes.add(error.getStatusCode());
+                    }
+                }
+
+                @Override
+                public void operationDropped(@NonNull PersistentWriteQueue queue, @NonNull JSONObject operation, @NonNull AlgoliaException error) {
+                    dropped.add(operation);
+                }
+            });
+            final List<String> expectedObjectIDs = new ArrayList<>();
+            for (int i = 1; i <= 16; ++i) {
+                queue.saveObject(new JSONObject().put("bad", i == 1), String.valueOf(i));
+                if (i != 1) {
+                    expectedObjectIDs.add(String.valueOf(i));
+                }
+            }
+            queue.flush();
+            queue.start();
+            for (int i = 0; i < 100 && queue.getPendingCount() > 0; ++i) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, queue.getPendingCount());
+
+            // Rate limiting is retried; the rejected batch is split until the bad object is isolated.
+            assertEquals(Arrays.asList(429, 400, 400), errorStatusCodes.subList(0, 3));
+            assertEquals(1, dropped.size());
+            assertEquals("1", dropped.get(0).getString("objectID"));
+            assertEquals(expectedObjectIDs, indexedObjectIDs);
+            // Batches grow back once the bad object is isolated: 1 rate limited + 5 rejected + 4 successful batches.
+            assertEquals(10, requestCount.get());
+            queue.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void boundedDiskUsage() throws Exception {
+        final Client client = new Client(Helpers.app_id, Helpers.api_key, new String[]{ "localhost" });
+        final File directory = Files.createTempDirectory("algolia").toFile();
+        final PersistentWriteQueue queue = new PersistentWriteQueue(client.getIndex("foo"), directory);
+        queue.setMaxDiskBytes(4096);
+        queue.setMaxSegmentBytes(1024);
+
+        // Superseded operations are compacted away.
+        for (int i = 0; i < 200; ++i) {
+            queue.saveObject(new JSONObject().put("value", i), "1");
+            if (i % 10 == 0) {
+                queue.flush();
+            }
+        }
+        queue.flush();
+        assertEquals(1, queue.getPendingCount());
+        assertTrue(queue.getCompactionCount() > 0);
+        assertTrue(queue.getDiskUsage() <= 4096);
+
+        // Once full, new operations are rejected.
+        try {
+            for (int i = 0; i < 200; ++i) {
+                queue.saveObject(new JSONObject().put("value", i), "object" + i);
+            }
+            fail("The queue should be full");
+        } catch (AlgoliaException e) {
+            assertNull(e.getCause());
+        }
+        queue.flush();
+        assertTrue(queue.getDiskUsage() <= 4096);
+        queue.close();
+    }
+
+    @Test
+    public void noUselessCompaction() throws Exception {
+        final Client client = new Client(Helpers.app_id, Helpers.api_key, new String[]{ "localhost" });
+        final File directory = Files.createTempDirectory("algolia").toFile();
+        final PersistentWriteQueue queue = new PersistentWriteQueue(client.getIndex("foo"), directory);
+        queue.setMaxDiskBytes(4096);
+        queue.setMaxSegmentBytes(1024);
+
+        // A superseded operation taking up a fifth of the log is not worth rewriting it for, even when the queue is full.
+        final StringBuilder value = new StringBuilder();
+        while (value.length() < 800) {
+            value.append("garbage ");
+        }
+        queue.saveObject(new JSONObject().put("value", value.toString()), "object0");
+        queue.flush();
+        try {
+            for (int i = 0; i < 200; ++i) {
+                queue.saveObject(new JSONObject().put("value", i), "object" + i);
+                queue.flush();
+            }
+            fail("The queue should be full");
+        } catch (AlgoliaException e) {
+            assertNull(e.getCause());
+        }
+        queue.flush();
+        assertEquals(0, queue.getCompactionCount());
+        assertTrue(queue.getDiskUsage() <= 4096);
+        queue.close();
+    }
+}
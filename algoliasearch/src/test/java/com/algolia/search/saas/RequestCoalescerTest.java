@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the `RequestCoalescer` class.
+ */
+public class RequestCoalescerTest extends RobolectricTestCase {
+    /** A request whose completion is triggered manually. */
+    private static class ManualRequest implements Request {
+        CompletionHandler completionHandler;
+        boolean cancelled;
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /** A factory recording the requests it starts. */
+    private static class ManualFactory implements RequestCoalescer.RequestFactory {
+        final List<ManualRequest> requests = new ArrayList<>();
+
+        @NonNull
+        @Override
+        public Request start(@NonNull CompletionHandler completionHandler) {
+            final ManualRequest request = new ManualRequest();
+            request.completionHandler = completionHandler;
+            requests.add(request);
+            return request;
+        }
+    }
+
+    /** A completion handler recording the results it receives. */
+    private static class RecordingHandler implements CompletionHandler {
+        final List<JSONObject> results = new ArrayList<>();
+
+        @Override
+        public void requestCompleted(JSONObject content, AlgoliaException error) {
+            results.add(content);
+        }
+    }
+
+    @Test
+    public void coalesceIdenticalRequests() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final ManualFactory factory = new ManualFactory();
+        final RecordingHandler handler1 = new RecordingHandler();
+        final RecordingHandler handler2 = new RecordingHandler();
+        final RecordingHandler handler3 = new RecordingHandler();
+
+        final Request request1 = coalescer.execute("a", handler1, factory);
+        final Request request2 = coalescer.execute("a", handler2, factory);
+        coalescer.execute("b", handler3, factory);
+        assertEquals(2, factory.requests.size());
+        assertEquals(2, coalescer.getFlightCount());
+        assertFalse(request1.isFinished());
+
+        // Both subscribers get the same result.
+        final JSONObject result = new JSONObject("{\"nbHits\": 1}");
+        factory.requests.get(0).completionHandler.requestCompleted(result, null);
+        assertEquals(1, handler1.results.size());
+        assertSame(result, handler1.results.get(0));
+        assertEquals(1, handler2.results.size());
+        assertSame(result, handler2.results.get(0));
+        assertTrue(request1.isFinished());
+        assertTrue(request2.isFinished());
+        assertEquals(0, handler3.results.size());
+        assertEquals(1, coalescer.getFlightCount());
+
+        // Once completed, an identical request starts a new flight.
+        coalescer.execute("a", new RecordingHandler(), factory);
+        assertEquals(3, factory.requests.size());
+    }
+
+    @Test
+    public void failedStart() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RecordingHandler handler1 = new RecordingHandler();
+        final List<AlgoliaException> errors = new ArrayList<>();
+        final CompletionHandler handler2 = new CompletionHandler() {
+            @Override
+            public void requestCompleted(JSONObject content, AlgoliaException error) {
+                errors.add(error);
+            }
+        };
+        try {
+            coalescer.execute("a", handler1, new RequestCoalescer.RequestFactory() {
+                @NonNull
+                @Override
+                public Request start(@NonNull CompletionHandler completionHandler) {
+                    // An identical request joins the flight before the start fails.
+                    coalescer.execute("a", handler2, new ManualFactory());
+                    throw new IllegalStateException("Cannot start");
+                }
+            });
+            fail("The exception should be propagated");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // The caller sees the exception; the other subscriber is notified of the error.
+        assertEquals(0, handler1.results.size());
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getCause() instanceof IllegalStateException);
+
+        // An identical request starts a new flight.
+        assertEquals(0, coalescer.getFlightCount());
+        final ManualFactory factory = new ManualFactory();
+        coalescer.execute("a", new RecordingHandler(), factory);
+        assertEquals(1, factory.requests.size());
+    }
+
+    @Test
+    public void referenceCountedCancellation() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final ManualFactory factory = new ManualFactory();
+        final RecordingHandler handler1 = new RecordingHandler();
+        final RecordingHandler handler2 = new RecordingHandler();
+
+        // Cancelling one subscriber does not cancel the shared request.
+        final Request request1 = coalescer.execute("a", handler1, factory);
+        final Request request2 = coalescer.execute("a", handler2, factory);
+        request1.cancel();
+        assertTrue(request1.isCancelled());
+        assertFalse(factory.requests.get(0).cancelled);
+        factory.requests.get(0).completionHandler.requestCompleted(new JSONObject(), null);
+        assertEquals(0, handler1.results.size());
+        assertEquals(1, handler2.results.size());
+
+        // Cancelling all subscribers cancels the shared request.
+        final Request request3 = coalescer.execute("b", handler1, factory);
+        final Request request4 = coalescer.execute("b", handler2, factory);
+        request3.cancel();
+        request4.cancel();
+        assertTrue(factory.requests.get(1).cancelled);
+        assertEquals(0, coalescer.getFlightCount());
+
+        // A late completion of a cancelled request is ignored.
+        factory.requests.get(1).completionHandler.requestCompleted(new JSONObject(), null);
+        assertEquals(0, handler1.results.size());
+        assertEquals(1, handler2.results.size());
+
+        // Cancelling after completion has no effect.
+        request2.cancel();
+        assertFalse(request2.isCancelled());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `RequestScheduler` class.
+ */
+public class RequestSchedulerTest extends RobolectricTestCase {
+    @Test
+    public void laneConcurrencyLimits() throws Exception {
+        final Client client = new Client(Helpers.app_id, Helpers.api_key);
+        client.setMaxConcurrentRequests(RequestPriority.POLLING, 1);
+        assertEquals(1, client.getMaxConcurrentRequests(RequestPriority.POLLING));
+        final Executor pollingExecutor = client.requestScheduler.executor(RequestPriority.POLLING);
+        final Executor interactiveExecutor = client.requestScheduler.executor(RequestPriority.INTERACTIVE);
+
+        // Fill the polling lane with long running tasks.
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger startedPolls = new AtomicInteger();
+        final CountDownLatch pollsDone = new CountDownLatch(2);
+        for (int i = 0; i < 2; ++i) {
+            pollingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    startedPolls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    pollsDone.countDown();
+                }
+            });
+        }
+
+        // Interactive tasks are not delayed by the polling lane.
+        final CountDownLatch searchDone = new CountDownLatch(1);
+        interactiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                searchDone.countDown();
+            }
+        });
+        assertTrue(searchDone.await(1, TimeUnit.SECONDS));
+
+        // Only one polling task runs at a time.
+        Thread.sleep(50);
+        assertEquals(1, startedPolls.get());
+        assertFalse(pollsDone.await(0, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(pollsDone.await(1, TimeUnit.SECONDS));
+        assertEquals(2, startedPolls.get());
+    }
+}
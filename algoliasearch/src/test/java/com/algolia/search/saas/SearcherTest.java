@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.algolia.search.saas.helpers.Searcher;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `Searcher` helper.
+ */
+public class SearcherTest extends RobolectricTestCase {
+    /** A searchable recording queries, whose requests are completed manually. */
+    private static class ManualSearchable extends Searchable {
+        final List<String> queries = new ArrayList<>();
+        final List<Integer> pages = new ArrayList<>();
+        final List<CompletionHandler> handlers = new ArrayList<>();
+        final List<ManualRequest> requests = new ArrayList<>();
+        final List<RequestPriority> priorities = new ArrayList<>();
+
+        @Override
+        public Request searchAsync(@Nullable Query query, @Nullable RequestOptions requestOptions, @NonNull RequestPriority priority, @Nullable CompletionHandler completionHandler) {
+            priorities.add(priority);
+            return searchAsync(query, requestOptions, completionHandler);
+        }
+
+        @Override
+        public Request searchAsync(@Nullable Query query, @Nullable RequestOptions requestOptions, @Nullable final CompletionHandler completionHandler) {
+            queries.add(query == null ? null : query.getQuery());
+            pages.add(query == null ? null : query.getPage());
+            final ManualRequest request = new ManualRequest();
+            requests.add(request);
+            handlers.add(new CompletionHandler() {
+                @Override
+                public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+                    request.completed = true;
+                    completionHandler.requestCompleted(content, error);
+                }
+            });
+            return request;
+        }
+    }
+
+    private static class ManualRequest implements Request {
+        boolean cancelled;
+        boolean completed;
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return cancelled || completed;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /** A handler recording the results it receives. */
+    private static class RecordingHandler implements CompletionHandler {
+        final List<JSONObject> results = new ArrayList<>();
+
+        @Override
+        public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+            results.add(content);
+        }
+    }
+
+    @Test
+    public void debounce() throws Exception {
+        final ManualSearchable searchable = new ManualSearchable();
+        final RecordingHandler handler = new RecordingHandler();
+        final Searcher searcher = new Searcher(searchable, handler);
+        searcher.setDebounceDelay(100);
+
+        // Fast typing: only the last query is sent, once the input is stable.
+        searcher.search(new Query("s"));
+        searcher.search(new Query("sh"));
+        final Query query = new Query("sho");
+        searcher.search(query);
+        query.setQuery("modified after the fact");
+        ShadowLooper.idleMainLooper(50);
+        assertTrue(searchable.queries.isEmpty());
+        ShadowLooper.idleMainLooper(50);
+        assertEquals(1, searchable.queries.size());
+        assertEquals("sho", searchable.queries.get(0));
+        assertEquals(2, searcher.getDebouncedQueryCount());
+        assertEquals(2, searcher.getDroppedRequestCount());
+
+        final JSONObject content = new JSONObject().put("query", "sho");
+        searchable.handlers.get(0).requestCompleted(content, null);
+        assertEquals(1, handler.results.size());
+        assertEquals(content, handler.results.get(0));
+    }
+
+    @Test
+    public void supersede() throws Exception {
+        final ManualSearchable searchable = new ManualSearchable();
+        final RecordingHandler handler = new RecordingHandler();
+        final Searcher searcher = new Searcher(searchable, handler);
+        searcher.setDebounceDelay(0);
+
+        // A new query cancels the request in flight.
+        searcher.search(new Query("s"));
+        searcher.search(new Query("sh"));
+        assertEquals(2, searchable.queries.size());
+        assertTrue(searchable.requests.get(0).cancelled);
+        assertFalse(searchable.requests.get(1).cancelled);
+        assertEquals(1, searcher.getCancelledRequestCount());
+
+        // Results of a superseded request are never delivered, even if the request ignored the cancellation.
+        final JSONObject latest = new JSONObject().put("query", "sh");
+        searchable.handlers.get(1).requestCompleted(latest, null);
+        searchable.handlers.get(0).requestCompleted(new JSONObject().put("query", "s"), null);
+        assertEquals(1, handler.results.size());
+        assertEquals(latest, handler.results.get(0));
+
+        // A request whose results have been delivered is not counted as dropped.
+        searcher.search(new Query("sho"));
+        assertFalse(searchable.requests.get(1).cancelled);
+        assertEquals(1, searcher.getDroppedRequestCount());
+
+        // Cancelling the searcher cancels the request in flight.
+        searcher.cancel();
+        assertTrue(searchable.requests.get(2).cancelled);
+        searchable.handlers.get(2).requestCompleted(new JSONObject(), null);
+        assertEquals(1, handler.results.size());
+        assertEquals(2, searcher.getDroppedRequestCount());
+    }
+
+    @Test
+    public void prefetch() throws Exception {
+        final ManualSearchable searchable = new ManualSearchable();
+        final RecordingHandler handler = new RecordingHandler();
+        final Searcher searcher = new Searcher(searchable, handler);
+        searcher.setDebounceDelay(0);
+        searcher.setPrefetchEnabled(true);
+
+        // Once the first page is delivered, the second one is prefetched.
+        searcher.search(new Query("s"));
+        searchable.handlers.get(0).requestCompleted(new JSONObject().put("page", 0).put("nbPages", 3), null);
+        assertEquals(1, handler.results.size());
+        assertEquals(2, searchable.queries.size());
+        assertEquals("s", searchable.queries.get(1));
+        assertEquals(Integer.valueOf(1), searchable.pages.get(1));
+        // The prefetch does not compete with interactive searches.
+        assertEquals(RequestPriority.INTERACTIVE, searchable.priorities.get(0));
+        assertEquals(RequestPriority.BACKGROUND_READ, searchable.priorities.get(1));
+        final JSONObject secondPage = new JSONObject().put("page", 1).put("nbPages", 3);
+        searchable.handlers.get(1).requestCompleted(secondPage, null);
+        assertEquals(1, handler.results.size());
+
+        // Asking for the second page does not hit the searchable; the third page is prefetched in turn.
+        searcher.search(new Query("s").setPage(1));
+        ShadowLooper.idleMainLooper(0);
+        assertEquals(2, handler.results.size());
+        assertEquals(secondPage, handler.results.get(1));
+        assertEquals(1, searcher.getPrefetchHitCount());
+        assertEquals(3, searchable.queries.size());
+        assertEquals(Integer.valueOf(2), searchable.pages.get(2));
+
+        // A new query cancels the prefetch.
+        searcher.search(new Query("sh"));
+        assertTrue(searchable.requests.get(2).cancelled);
+        assertEquals(1, searcher.getPrefetchMissCount());
+        searchable.handlers.get(3).requestCompleted(new JSONObject().put("page", 0).put("nbPages", 1), null);
+        assertEquals(3, handler.results.size());
+
+        // The last page has nothing to prefetch.
+        assertEquals(4, searchable.queries.size());
+        assertEquals(0, searcher.getDroppedRequestCount());
+    }
+
+    @Test
+    public void prefetchWithRequestOptions() throws Exception {
+        final ManualSearchable searchable = new ManualSearchable();
+        final RecordingHandler handler = new RecordingHandler();
+        final Searcher searcher = new Searcher(searchable, handler);
+        searcher.setDebounceDelay(0);
+        searcher.setPrefetchEnabled(true);
+        searcher.search(new Query("s"), new RequestOptions().setHeader("X-Forwarded-For", "1.2.3.4"));
+        searchable.handlers.get(0).requestCompleted(new JSONObject().put("page", 0).put("nbPages", 3), null);
+        searchable.handlers.get(1).requestCompleted(new JSONObject().put("page", 1).put("nbPages", 3), null);
+        assertEquals(2, searchable.queries.size());
+
+        // Equal request options, even if built anew, use the prefetched page.
+        searcher.search(new Query("s").setPage(1), new RequestOptions().setHeader("X-Forwarded-For", "1.2.3.4"));
+        ShadowLooper.idleMainLooper(0);
+        assertEquals(1, searcher.getPrefetchHitCount());
+        assertEquals(3, searchable.queries.size());
+
+        // Different request options do not.
+        searcher.search(new Query("s").setPage(2), new RequestOptions().setHeader("X-Forwarded-For", "5.6.7.8"));
+        assertEquals(1, searcher.getPrefetchHitCount());
+        assertEquals(1, searcher.getPrefetchMissCount());
+        assertEquals(4, searchable.queries.size());
+    }
+}
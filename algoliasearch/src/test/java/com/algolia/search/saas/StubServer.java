@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP server standing in for the Algolia API in tests that must not depend on the network.
+ * <p>
+ * As the client only speaks HTTPS, use {@link #newClient()} (or {@link #transport()}) to talk plain HTTP to the stub
+ * server.
+ * </p>
+ */
+class StubServer implements Closeable {
+    /** Produces the response to a request. */
+    interface Responder {
+        /**
+         * Respond to a request.
+         *
+         * @param exchange The exchange with the client. The request body has already been read.
+         * @param requestBody The request's body (empty if none).
+         * @throws IOException If the response cannot be sent.
+         */
+        void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException;
+    }
+
+    /** Runs commands on the calling thread. Use as a client's completion executor to get results synchronously. */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * Start a server answering every request with the same JSON body.
+     *
+     * @param statusCode The HTTP status code to return.
+     * @param body The JSON body to return.
+     * @param delayMillis Delay before responding (ms).
+     */
+    StubServer(final int statusCode, @NonNull final String body, final long delayMillis) throws IOException {
+        this(new Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                if (delayMillis > 0) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                sendJSON(exchange, statusCode, body);
+            }
+        });
+    }
+
+    /**
+     * Start a server answering requests with a custom responder.
+     *
+     * @param responder The responder handling each request.
+     */
+    StubServer(@NonNull final Responder responder) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                try {
+                    responder.respond(exchange, readFully(exchange.getRequestBody()));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** The host to give the client, i.e. <code>localhost:port</code>. */
+    @NonNull String getHost() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Build a client talking to this server only.
+     *
+     * @return A new client, using a plain HTTP transport.
+     */
+    @NonNull Client newClient() {
+        final Client client = new Client(Helpers.app_id, Helpers.api_key, new String[]{ getHost() });
+        client.setTransport(transport());
+        return client;
+    }
+
+    /** The number of requests received so far. */
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Send a JSON response.
+     *
+     * @param exchange The exchange to respond to.
+     * @param statusCode The HTTP status code.
+     * @param body The JSON body.
+     */
+    static void sendJSON(@NonNull HttpExchange exchange, int statusCode, @NonNull String body) throws IOException {
+        final byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    static @NonNull byte[] readFully(@NonNull InputStream stream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Build a transport sending requests over plain HTTP instead of HTTPS.
+     *
+     * @return A new transport.
+     */
+    static @NonNull Transport transport() {
+        final Transport delegate = new HttpURLConnectionTransport();
+        return new Transport() {
+            @Override
+            public Call newCall(@NonNull HttpRequest request) {
+                try {
+                    final URL url = new URL("http", request.url.getHost(), request.url.getPort(), request.url.getFile());
+                    return delegate.newCall(new HttpRequest(url, request.method, request.headers, request.body, request.streamingBody, request.connectTimeout, request.readTimeout));
+                } catch (IOException e) {
+                    throw new RuntimeException(e); // should never happen
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the `TaskWatcher` class.
+ */
+public class TaskWatcherTest extends RobolectricTestCase {
+    @Test
+    public void manyTasks() throws Exception {
+        // The stub server publishes task N after it has been polled (N % 3) + 1 times.
+        final Map<String, AtomicInteger> pollCounts = new ConcurrentHashMap<>();
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                final String path = exchange.getRequestURI().getPath();
+                final String taskID = path.substring(path.lastIndexOf('/') + 1);
+                pollCounts.putIfAbsent(path, new AtomicInteger());
+                final int count = pollCounts.get(path).incrementAndGet();
+                final boolean published = count >= Integer.parseInt(taskID) % 3 + 1;
+                StubServer.sendJSON(exchange, 200, "{\"status\":\"" + (published ? "published" : "notPublished") + "\"}");
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            client.setCompletionExecutor(StubServer.DIRECT_EXECUTOR);
+            // Less polling threads than waited tasks: tasks must not hold a thread while waiting.
+            client.setMaxConcurrentRequests(RequestPriority.POLLING, 1);
+
+            final int nbTasks = 10;
+            final CountDownLatch published = new CountDownLatch(2 * nbTasks);
+            for (String indexName : new String[]{ "foo", "bar" }) {
+                final Index index = client.getIndex(indexName);
+                for (int i = 1; i <= nbTasks; ++i) {
+                    index.waitTaskAsync(i, new CompletionHandler() {
+                        @Override
+                        public void requestCompleted(JSONObject content, AlgoliaException error) {
+                            if (error != null || !"published".equals(content.optString("status"))) {
+                                fail("Unexpected result: " + content + " / " + error);
+                            }
+                            published.countDown();
+                        }
+                    });
+                }
+            }
+            assertEquals(2 * nbTasks, client.getTaskWatcher().getPendingTaskCount());
+
+            // A cancelled waiter is never notified.
+            final Request cancelled = client.getIndex("foo").waitTaskAsync(1000, new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    fail("A cancelled waiter should not be notified");
+                }
+            });
+            cancelled.cancel();
+
+            assertTrue(published.await(10, TimeUnit.SECONDS));
+            // Each task is polled until it is published, and no further.
+            assertEquals(1, pollCounts.get("/1/indexes/foo/task/3").get());
+            assertEquals(3, pollCounts.get("/1/indexes/bar/task/2").get());
+            assertEquals(0, client.getTaskWatcher().getPendingTaskCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void failingHandler() throws Exception {
+        final StubServer server = new StubServer(200, "{\"status\":\"published\"}", 0);
+        try {
+            final Client client = server.newClient();
+            client.setCompletionExecutor(StubServer.DIRECT_EXECUTOR);
+            final Index index = client.getIndex("foo");
+            final CountDownLatch published = new CountDownLatch(1);
+            final CompletionHandler countingHandler = new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    published.countDown();
+                }
+            };
+
+            // A handler throwing does not prevent the other tasks of the index from being notified.
+            index.waitTaskAsync(1, new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    throw new IllegalStateException("Handler failure");
+                }
+            });
+            index.waitTaskAsync(2, countingHandler);
+            assertTrue(published.await(2, TimeUnit.SECONDS));
+            assertEquals(0, client.getTaskWatcher().getPendingTaskCount());
+
+            // Once idle, the watcher still accepts new tasks.
+            final CountDownLatch publishedAgain = new CountDownLatch(1);
+            index.waitTaskAsync(3, new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    publishedAgain.countDown();
+                }
+            });
+            assertTrue(publishedAgain.await(2, TimeUnit.SECONDS));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void newTaskResetsBackoff() throws Exception {
+        // The stub server never publishes task 1, and publishes task 2 right away.
+        final CountDownLatch backedOff = new CountDownLatch(5);
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                final boolean published = exchange.getRequestURI().getPath().endsWith("/2");
+                if (!published) {
+                    backedOff.countDown();
+                }
+                StubServer.sendJSON(exchange, 200, "{\"status\":\"" + (published ? "published" : "notPublished") + "\"}");
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            final Index index = client.getIndex("foo");
+            final Request pending = index.waitTaskAsync(1, null);
+
+            // After a few polls, the next one is due in several seconds...
+            assertTrue(backedOff.await(10, TimeUnit.SECONDS));
+
+            // ... but a new task is polled right away.
+            final CountDownLatch published = new CountDownLatch(1);
+            index.waitTaskAsync(2, new CompletionHandler() {
+                @Override
+                public void requestCompleted(JSONObject content, AlgoliaException error) {
+                    published.countDown();
+                }
+            });
+            assertTrue(published.await(1, TimeUnit.SECONDS));
+            pending.cancel();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012-2016 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.algolia.search.saas;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the `WriteBuffer` class.
+ */
+public class WriteBufferTest extends RobolectricTestCase {
+    @Test
+    public void mergeWrites() throws Exception {
+        final List<JSONArray> batches = Collections.synchronizedList(new ArrayList<JSONArray>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                try {
+                    assertTrue(exchange.getRequestURI().getPath().endsWith("/1/indexes/foo/batch"));
+                    batches.add(new JSONObject(new String(requestBody, "UTF-8")).getJSONArray("requests"));
+                    StubServer.sendJSON(exchange, 200, "{\"taskID\":7,\"objectIDs\":[]}");
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            client.setCompletionExecutor(StubServer.DIRECT_EXECUTOR);
+            final Index index = client.getIndex("foo");
+            index.setWriteBufferingWindow(100);
+
+            final CountDownLatch done = new CountDownLatch(6);
+            final List<String> notifications = Collections.synchronizedList(new ArrayList<String>());
+            final CompletionHandler handler = new CompletionHandler() {
+                @Override
+                public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+                    assertNull(error);
+                    notifications.add(content.optInt("taskID") + ":" + content.optString("objectID"));
+                    done.countDown();
+                }
+            };
+            index.partialUpdateObjectAsync(new JSONObject().put("a", 1), "1", handler);
+            index.partialUpdateObjectAsync(new JSONObject().put("a", 2).put("b", 2), "1", handler);
+            index.saveObjectAsync(new JSONObject().put("name", "two"), "2", handler);
+            index.partialUpdateObjectAsync(new JSONObject().put("color", "red"), "2", handler);
+            // An operation on a pending attribute cannot be merged.
+            index.partialUpdateObjectAsync(new JSONObject().put("b", new JSONObject().put("_operation", "Increment").put("value", 1)), "1", handler);
+            // Neither can a partial update with a different creation policy.
+            index.partialUpdateObjectAsync(new JSONObject().put("c", 3), "3", false, handler);
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+
+            assertEquals(1, batches.size());
+            final JSONArray actions = batches.get(0);
+            assertEquals(4, actions.length());
+            assertEquals("partialUpdateObject", actions.getJSONObject(0).getString("action"));
+            assertEquals("1", actions.getJSONObject(0).getString("objectID"));
+            assertEquals(new JSONObject().put("a", 2).put("b", 2).toString(), actions.getJSONObject(0).getJSONObject("body").toString());
+            assertEquals("updateObject", actions.getJSONObject(1).getString("action"));
+            assertEquals("2", actions.getJSONObject(1).getString("objectID"));
+            assertEquals("red", actions.getJSONObject(1).getJSONObject("body").getString("color"));
+            assertEquals("two", actions.getJSONObject(1).getJSONObject("body").getString("name"));
+            assertEquals("partialUpdateObject", actions.getJSONObject(2).getString("action"));
+            assertEquals("Increment", actions.getJSONObject(2).getJSONObject("body").getJSONObject("b").getString("_operation"));
+            assertEquals("partialUpdateObjectNoCreate", actions.getJSONObject(3).getString("action"));
+            assertEquals(6, notifications.size());
+            assertTrue(notifications.contains("7:1"));
+            assertTrue(notifications.contains("7:2"));
+            assertTrue(notifications.contains("7:3"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void maxBatchSize() throws Exception {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public void respond(@NonNull HttpExchange exchange, @NonNull byte[] requestBody) throws IOException {
+                try {
+                    batchSizes.add(new JSONObject(new String(requestBody, "UTF-8")).getJSONArray("requests").length());
+                    StubServer.sendJSON(exchange, 200, "{\"taskID\":" + batchSizes.size() + ",\"objectIDs\":[]}");
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            final Client client = server.newClient();
+            client.setCompletionExecutor(StubServer.DIRECT_EXECUTOR);
+            final Index index = client.getIndex("foo");
+            index.setWriteBufferingWindow(60000);
+            index.setMaxWriteBatchSize(3);
+
+            final CountDownLatch done = new CountDownLatch(4);
+            final CompletionHandler handler = new CompletionHandler() {
+                @Override
+                public void requestCompleted(@Nullable JSONObject content, @Nullable AlgoliaException error) {
+                    done.countDown();
+                }
+            };
+            for (int i = 0; i < 4; ++i) {
+                index.saveObjectAsync(new JSONObject().put("i", i), String.valueOf(i), handler);
+            }
+            // The first batch is sent when full; the second one when flushed.
+            index.flushWrites();
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            Collections.sort(batchSizes);
+            assertEquals(2, batchSizes.size());
+            assertEquals(1, (int) batchSizes.get(0));
+            assertEquals(3, (int) batchSizes.get(1));
+        } finally {
+            server.close();
+        }
+    }
+}